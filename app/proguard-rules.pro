@@ -9,6 +9,9 @@
 
 # Add any project specific keep options here:
 
+# Glide finds its modules by name from the manifest
+-keep public class * implements com.bumptech.glide.module.GlideModule
+
 # If your project uses WebView with JS, uncomment the following
 # and specify the fully qualified class name to the JavaScript interface
 # class:
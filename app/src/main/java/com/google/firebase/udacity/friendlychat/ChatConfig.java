@@ -0,0 +1,198 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.google.android.gms.tasks.OnCompleteListener;
+import com.google.android.gms.tasks.Task;
+import com.google.firebase.remoteconfig.FirebaseRemoteConfig;
+import com.google.firebase.remoteconfig.FirebaseRemoteConfigSettings;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Limits that can be changed from the Firebase console without a release, e.g. to send smaller
+ * photos and pages while the backend is under load.
+ * <p/>
+ * The values activated last, which Remote Config keeps across launches, apply as soon as this is
+ * created. fetch() then downloads new ones in the background, at most once per cache expiration,
+ * and activates them when they arrive. The process-wide settings of the photo upload queue are
+ * applied here, and each {@link Listener} applies the others to what it owns, without restarting
+ * the activity. Values outside a sane range are clamped to it, so a typo in the console can't make
+ * the app unusable. All methods must be called on the main thread.
+ */
+public class ChatConfig {
+
+    private static final String TAG = "ChatConfig";
+
+    public static final String FRIENDLY_MSG_LENGTH_KEY = "friendly_msg_length";
+    public static final String PHOTO_MAX_DIMENSION_KEY = "photo_max_dimension";
+    public static final String PHOTO_QUALITY_KEY = "photo_quality";
+    public static final String HISTORY_PAGE_SIZE_KEY = "history_page_size";
+    public static final String MAX_CONCURRENT_UPLOADS_KEY = "max_concurrent_uploads";
+
+    public static final int DEFAULT_MSG_LENGTH_LIMIT = 1000;
+
+    //The sane ranges the values are clamped to.
+    static final int MIN_MSG_LENGTH_LIMIT = 1;
+    static final int MAX_MSG_LENGTH_LIMIT = 10 * DEFAULT_MSG_LENGTH_LIMIT;
+    static final int MIN_PHOTO_DIMENSION = PhotoUploadQueue.DEFAULT_THUMBNAIL_DIMENSION;
+    static final int MAX_PHOTO_DIMENSION = 4096;
+    static final int MIN_PHOTO_QUALITY = 30;
+    static final int MAX_PHOTO_QUALITY = 100;
+    static final int MIN_HISTORY_PAGE_SIZE = 10;
+    static final int MAX_HISTORY_PAGE_SIZE = 500;
+    static final int MIN_CONCURRENT_UPLOADS = 1;
+    static final int MAX_CONCURRENT_UPLOADS = 8;
+
+    //How long fetched values are used before fetching again. Developer mode fetches every time.
+    public static final long DEFAULT_CACHE_EXPIRATION_SECONDS = 60 * 60;
+
+    public interface Listener {
+        //Called on the main thread after new values were activated.
+        void onConfigChanged(ChatConfig config);
+    }
+
+    private static ChatConfig sInstance;
+
+    public static synchronized ChatConfig getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ChatConfig(FirebaseRemoteConfig.getInstance(), PhotoUploadQueue.getInstance(context));
+        }
+        return sInstance;
+    }
+
+    private final FirebaseRemoteConfig mRemoteConfig;
+    private final PhotoUploadQueue mPhotoUploadQueue;
+    private final List<Listener> mListeners = new ArrayList<>();
+    private long mCacheExpirationSeconds = DEFAULT_CACHE_EXPIRATION_SECONDS;
+    private boolean mFetching;
+
+    ChatConfig(FirebaseRemoteConfig remoteConfig, PhotoUploadQueue photoUploadQueue) {
+        mRemoteConfig = remoteConfig;
+        mPhotoUploadQueue = photoUploadQueue;
+
+        // Create Remote Config Setting to enable developer mode.
+        // Fetching configs from the server is normally limited to 5 requests per hour.
+        // Enabling developer mode allows many more requests to be made per hour, so developers
+        // can test different config values during development.
+        FirebaseRemoteConfigSettings configSettings = new FirebaseRemoteConfigSettings.Builder()
+                .setDeveloperModeEnabled(BuildConfig.DEBUG)
+                .build();
+        mRemoteConfig.setConfigSettings(configSettings);
+
+        // Define default config values. Defaults are used when fetched config values are not
+        // available. Eg: if an error occurred fetching values from the server.
+        Map<String, Object> defaultConfigMap = new HashMap<>();
+        defaultConfigMap.put(FRIENDLY_MSG_LENGTH_KEY, DEFAULT_MSG_LENGTH_LIMIT);
+        defaultConfigMap.put(PHOTO_MAX_DIMENSION_KEY, PhotoUploadQueue.DEFAULT_MAX_DIMENSION);
+        defaultConfigMap.put(PHOTO_QUALITY_KEY, PhotoUploadQueue.DEFAULT_QUALITY);
+        defaultConfigMap.put(HISTORY_PAGE_SIZE_KEY, MessagePager.DEFAULT_PAGE_SIZE);
+        defaultConfigMap.put(MAX_CONCURRENT_UPLOADS_KEY, PhotoUploadQueue.DEFAULT_MAX_CONCURRENT_UPLOADS);
+        mRemoteConfig.setDefaults(defaultConfigMap);
+
+        applyToPhotoUploads();
+    }
+
+    public void setCacheExpiration(long cacheExpirationSeconds) {
+        mCacheExpirationSeconds = cacheExpirationSeconds;
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /*Fetch new values in the background. Within the cache expiration the cached ones are used, without a request.*/
+    public void fetch() {
+        if (mFetching) {
+            return;
+        }
+        mFetching = true;
+        long cacheExpirationSeconds = mRemoteConfig.getInfo().getConfigSettings().isDeveloperModeEnabled()
+                ? 0 : mCacheExpirationSeconds;
+        mRemoteConfig.fetch(cacheExpirationSeconds).addOnCompleteListener(new OnCompleteListener<Void>() {
+            @Override
+            public void onComplete(@NonNull Task<Void> task) {
+                mFetching = false;
+                if (!task.isSuccessful()) {
+                    //Keep the current values, the next fetch tries again.
+                    Log.w(TAG, "Failed to fetch the config", task.getException());
+                    return;
+                }
+                if (mRemoteConfig.activateFetched()) {
+                    applyToPhotoUploads();
+                    for (Listener listener : new ArrayList<>(mListeners)) {
+                        listener.onConfigChanged(ChatConfig.this);
+                    }
+                }
+            }
+        });
+    }
+
+    public int getMessageLengthLimit() {
+        return getInt(FRIENDLY_MSG_LENGTH_KEY, MIN_MSG_LENGTH_LIMIT, MAX_MSG_LENGTH_LIMIT);
+    }
+
+    public int getPhotoMaxDimension() {
+        return getInt(PHOTO_MAX_DIMENSION_KEY, MIN_PHOTO_DIMENSION, MAX_PHOTO_DIMENSION);
+    }
+
+    public int getPhotoQuality() {
+        return getInt(PHOTO_QUALITY_KEY, MIN_PHOTO_QUALITY, MAX_PHOTO_QUALITY);
+    }
+
+    public int getHistoryPageSize() {
+        return getInt(HISTORY_PAGE_SIZE_KEY, MIN_HISTORY_PAGE_SIZE, MAX_HISTORY_PAGE_SIZE);
+    }
+
+    public int getMaxConcurrentUploads() {
+        return getInt(MAX_CONCURRENT_UPLOADS_KEY, MIN_CONCURRENT_UPLOADS, MAX_CONCURRENT_UPLOADS);
+    }
+
+    private void applyToPhotoUploads() {
+        mPhotoUploadQueue.setMaxDimension(getPhotoMaxDimension());
+        mPhotoUploadQueue.setQuality(getPhotoQuality());
+        mPhotoUploadQueue.setMaxConcurrentUploads(getMaxConcurrentUploads());
+    }
+
+    private int getInt(String key, int min, int max) {
+        return clamp(mRemoteConfig.getLong(key), min, max);
+    }
+
+    /*The value within [min, max]. Remote Config values are longs, anything outside an int is clamped too.*/
+    static int clamp(long value, int min, int max) {
+        return (int) Math.max(min, Math.min(max, value));
+    }
+
+    @Override
+    public String toString() {
+        return "ChatConfig{messageLength=" + getMessageLengthLimit()
+                + ", photoMaxDimension=" + getPhotoMaxDimension()
+                + ", photoQuality=" + getPhotoQuality()
+                + ", pageSize=" + getHistoryPageSize()
+                + ", concurrentUploads=" + getMaxConcurrentUploads() + "}";
+    }
+}
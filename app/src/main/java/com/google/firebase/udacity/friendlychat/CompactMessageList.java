@@ -0,0 +1,314 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat;
+
+import java.nio.charset.Charset;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * A list of messages stored in parallel arrays instead of one FriendlyMessage per entry.
+ * <p/>
+ * Text is kept as UTF-8 bytes, which is half the size of a String's chars for most chats. Author
+ * names and the part of the photo URLs before the file name repeat a lot, so they are stored once
+ * in a pool shared by the list and its snapshots, and each entry only holds their number.
+ * get() builds a new FriendlyMessage every time, so code that only needs the key or wants to
+ * compare entries should use keyAt() and contentEquals().
+ * <p/>
+ * The list can be modified on one thread only. snapshot() returns a read-only copy that can be
+ * read from any thread, e.g. to diff it in the background.
+ */
+public class CompactMessageList extends AbstractList<FriendlyMessage> implements RandomAccess {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int NO_STRING = -1;
+    private static final int INITIAL_CAPACITY = 16;
+
+    //Rough heap cost of an entry besides its byte arrays: the array slots and the key String.
+    static final int ENTRY_BYTES = 7 * 4 + 1 + 80;
+    //Header and length of a byte array.
+    static final int ARRAY_BYTES = 16;
+
+    private final StringPool mPool;
+    private final boolean mReadOnly;
+
+    private int mSize;
+    private String[] mKeys;
+    private int[] mNames;
+    private byte[][] mTexts;
+    private int[] mPhotoPrefixes;
+    private byte[][] mPhotoSuffixes;
+    private int[] mThumbnailPrefixes;
+    private byte[][] mThumbnailSuffixes;
+    private byte[] mStatuses;
+    private long mEstimatedBytes;
+
+    public CompactMessageList() {
+        mPool = new StringPool();
+        mReadOnly = false;
+        mKeys = new String[INITIAL_CAPACITY];
+        mNames = new int[INITIAL_CAPACITY];
+        mTexts = new byte[INITIAL_CAPACITY][];
+        mPhotoPrefixes = new int[INITIAL_CAPACITY];
+        mPhotoSuffixes = new byte[INITIAL_CAPACITY][];
+        mThumbnailPrefixes = new int[INITIAL_CAPACITY];
+        mThumbnailSuffixes = new byte[INITIAL_CAPACITY][];
+        mStatuses = new byte[INITIAL_CAPACITY];
+    }
+
+    //The byte arrays are never modified, so the copy can share them.
+    private CompactMessageList(CompactMessageList other) {
+        mPool = other.mPool;
+        mReadOnly = true;
+        mSize = other.mSize;
+        mKeys = Arrays.copyOf(other.mKeys, mSize);
+        mNames = Arrays.copyOf(other.mNames, mSize);
+        mTexts = Arrays.copyOf(other.mTexts, mSize);
+        mPhotoPrefixes = Arrays.copyOf(other.mPhotoPrefixes, mSize);
+        mPhotoSuffixes = Arrays.copyOf(other.mPhotoSuffixes, mSize);
+        mThumbnailPrefixes = Arrays.copyOf(other.mThumbnailPrefixes, mSize);
+        mThumbnailSuffixes = Arrays.copyOf(other.mThumbnailSuffixes, mSize);
+        mStatuses = Arrays.copyOf(other.mStatuses, mSize);
+        mEstimatedBytes = other.mEstimatedBytes;
+    }
+
+    /*A read-only copy of the current entries.*/
+    public CompactMessageList snapshot() {
+        return new CompactMessageList(this);
+    }
+
+    @Override
+    public int size() {
+        return mSize;
+    }
+
+    @Override
+    public FriendlyMessage get(int index) {
+        checkIndex(index);
+        FriendlyMessage message = new FriendlyMessage(decode(mTexts[index]), mPool.get(mNames[index]),
+                joinUrl(mPhotoPrefixes[index], mPhotoSuffixes[index]));
+        message.setKey(mKeys[index]);
+        message.setThumbnailUrl(joinUrl(mThumbnailPrefixes[index], mThumbnailSuffixes[index]));
+        message.setStatus(mStatuses[index]);
+        return message;
+    }
+
+    public String keyAt(int index) {
+        checkIndex(index);
+        return mKeys[index];
+    }
+
+    public int statusAt(int index) {
+        checkIndex(index);
+        return mStatuses[index];
+    }
+
+    /*Whether the entry is a photo message. Its thumbnail may be uploaded before the photo itself.*/
+    public boolean hasPhotoAt(int index) {
+        checkIndex(index);
+        return mPhotoSuffixes[index] != null || mThumbnailSuffixes[index] != null;
+    }
+
+    /*Whether the entry at index has the same text, author and photos as the one at otherIndex of
+    other, without building either message. other must be this list or one of its snapshots.*/
+    public boolean contentEquals(int index, CompactMessageList other, int otherIndex) {
+        checkIndex(index);
+        other.checkIndex(otherIndex);
+        return mPool == other.mPool
+                && mNames[index] == other.mNames[otherIndex]
+                && mStatuses[index] == other.mStatuses[otherIndex]
+                && mPhotoPrefixes[index] == other.mPhotoPrefixes[otherIndex]
+                && mThumbnailPrefixes[index] == other.mThumbnailPrefixes[otherIndex]
+                && Arrays.equals(mTexts[index], other.mTexts[otherIndex])
+                && Arrays.equals(mPhotoSuffixes[index], other.mPhotoSuffixes[otherIndex])
+                && Arrays.equals(mThumbnailSuffixes[index], other.mThumbnailSuffixes[otherIndex]);
+    }
+
+    /*Approximate heap used by the entries, not counting the pool.*/
+    public long getEstimatedBytes() {
+        return mEstimatedBytes;
+    }
+
+    public long estimatedBytesAt(int index) {
+        checkIndex(index);
+        return ENTRY_BYTES + sizeOf(mTexts[index]) + sizeOf(mPhotoSuffixes[index]) + sizeOf(mThumbnailSuffixes[index]);
+    }
+
+    @Override
+    public FriendlyMessage set(int index, FriendlyMessage message) {
+        checkWritable();
+        FriendlyMessage previous = get(index);
+        mEstimatedBytes -= estimatedBytesAt(index);
+        put(index, message);
+        mEstimatedBytes += estimatedBytesAt(index);
+        return previous;
+    }
+
+    @Override
+    public void add(int index, FriendlyMessage message) {
+        checkWritable();
+        if (index < 0 || index > mSize) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + mSize);
+        }
+        if (mSize == mKeys.length) {
+            grow();
+        }
+        shift(index, index + 1, mSize - index);
+        mSize++;
+        put(index, message);
+        mEstimatedBytes += estimatedBytesAt(index);
+        modCount++;
+    }
+
+    @Override
+    public FriendlyMessage remove(int index) {
+        checkWritable();
+        FriendlyMessage previous = get(index);
+        removeRange(index, index + 1);
+        return previous;
+    }
+
+    //Also used by subList(from, to).clear(), so dropping the oldest entries is a single array copy.
+    @Override
+    protected void removeRange(int fromIndex, int toIndex) {
+        checkWritable();
+        for (int i = fromIndex; i < toIndex; i++) {
+            mEstimatedBytes -= estimatedBytesAt(i);
+        }
+        shift(toIndex, fromIndex, mSize - toIndex);
+        int newSize = mSize - (toIndex - fromIndex);
+        //Let the removed byte arrays be collected.
+        Arrays.fill(mTexts, newSize, mSize, null);
+        Arrays.fill(mPhotoSuffixes, newSize, mSize, null);
+        Arrays.fill(mThumbnailSuffixes, newSize, mSize, null);
+        Arrays.fill(mKeys, newSize, mSize, null);
+        mSize = newSize;
+        modCount++;
+    }
+
+    @Override
+    public void clear() {
+        removeRange(0, mSize);
+    }
+
+    private void put(int index, FriendlyMessage message) {
+        mKeys[index] = message.getKey();
+        mNames[index] = mPool.intern(message.getName());
+        mTexts[index] = encode(message.getText());
+        String photoUrl = message.getPhotoUrl();
+        int split = urlPrefixLength(photoUrl);
+        mPhotoPrefixes[index] = split > 0 ? mPool.intern(photoUrl.substring(0, split)) : NO_STRING;
+        mPhotoSuffixes[index] = photoUrl != null ? encode(photoUrl.substring(split)) : null;
+        String thumbnailUrl = message.getThumbnailUrl();
+        split = urlPrefixLength(thumbnailUrl);
+        mThumbnailPrefixes[index] = split > 0 ? mPool.intern(thumbnailUrl.substring(0, split)) : NO_STRING;
+        mThumbnailSuffixes[index] = thumbnailUrl != null ? encode(thumbnailUrl.substring(split)) : null;
+        mStatuses[index] = (byte) message.getStatus();
+    }
+
+    private void shift(int from, int to, int count) {
+        System.arraycopy(mKeys, from, mKeys, to, count);
+        System.arraycopy(mNames, from, mNames, to, count);
+        System.arraycopy(mTexts, from, mTexts, to, count);
+        System.arraycopy(mPhotoPrefixes, from, mPhotoPrefixes, to, count);
+        System.arraycopy(mPhotoSuffixes, from, mPhotoSuffixes, to, count);
+        System.arraycopy(mThumbnailPrefixes, from, mThumbnailPrefixes, to, count);
+        System.arraycopy(mThumbnailSuffixes, from, mThumbnailSuffixes, to, count);
+        System.arraycopy(mStatuses, from, mStatuses, to, count);
+    }
+
+    private void grow() {
+        int capacity = mKeys.length * 2;
+        mKeys = Arrays.copyOf(mKeys, capacity);
+        mNames = Arrays.copyOf(mNames, capacity);
+        mTexts = Arrays.copyOf(mTexts, capacity);
+        mPhotoPrefixes = Arrays.copyOf(mPhotoPrefixes, capacity);
+        mPhotoSuffixes = Arrays.copyOf(mPhotoSuffixes, capacity);
+        mThumbnailPrefixes = Arrays.copyOf(mThumbnailPrefixes, capacity);
+        mThumbnailSuffixes = Arrays.copyOf(mThumbnailSuffixes, capacity);
+        mStatuses = Arrays.copyOf(mStatuses, capacity);
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + mSize);
+        }
+    }
+
+    private void checkWritable() {
+        if (mReadOnly) {
+            throw new UnsupportedOperationException("Snapshots are read-only");
+        }
+    }
+
+    private String joinUrl(int prefix, byte[] suffix) {
+        if (suffix == null) {
+            return null;
+        }
+        return prefix == NO_STRING ? decode(suffix) : mPool.get(prefix) + decode(suffix);
+    }
+
+    //Everything up to the last '/' before the query, e.g. the bucket and folder of a storage URL.
+    private static int urlPrefixLength(String url) {
+        if (url == null) {
+            return 0;
+        }
+        int query = url.indexOf('?');
+        return url.lastIndexOf('/', query >= 0 ? query : url.length()) + 1;
+    }
+
+    private static byte[] encode(String value) {
+        return value != null ? value.getBytes(UTF_8) : null;
+    }
+
+    private static String decode(byte[] bytes) {
+        return bytes != null ? new String(bytes, UTF_8) : null;
+    }
+
+    private static int sizeOf(byte[] bytes) {
+        return bytes != null ? ARRAY_BYTES + bytes.length : 0;
+    }
+
+    /*Strings numbered in the order they were first seen. They are never removed: a chat has far
+    fewer authors and photo folders than messages. Snapshots read it from other threads.*/
+    private static class StringPool {
+        private final List<String> mStrings = new ArrayList<>();
+        private final Map<String, Integer> mNumbers = new HashMap<>();
+
+        synchronized int intern(String value) {
+            if (value == null) {
+                return NO_STRING;
+            }
+            Integer number = mNumbers.get(value);
+            if (number == null) {
+                number = mStrings.size();
+                mStrings.add(value);
+                mNumbers.put(value, number);
+            }
+            return number;
+        }
+
+        synchronized String get(int number) {
+            return number == NO_STRING ? null : mStrings.get(number);
+        }
+    }
+}
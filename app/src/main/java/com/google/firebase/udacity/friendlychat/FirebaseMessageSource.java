@@ -0,0 +1,171 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat;
+
+import android.util.Log;
+
+import com.google.firebase.database.ChildEventListener;
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.Query;
+import com.google.firebase.database.ValueEventListener;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link MessageSource} on the realtime database. Snapshots are handed over as they are, getValue()
+ * converts them, so they can be decoded off the main thread. The server time comes from the offset
+ * the client keeps at .info/serverTimeOffset, the same one it makes push keys with.
+ */
+public class FirebaseMessageSource implements MessageSource {
+
+    private static final String TAG = "FirebaseMessageSource";
+
+    private final DatabaseReference mRootReference;
+    //Server time minus device time. Updated on the main thread, read from any.
+    private volatile long mServerTimeOffsetMs;
+
+    public FirebaseMessageSource(DatabaseReference rootReference) {
+        mRootReference = rootReference;
+        //Kept for the life of the process, like the connection it belongs to.
+        rootReference.getDatabase().getReference(".info/serverTimeOffset")
+                .addValueEventListener(new ValueEventListener() {
+                    @Override
+                    public void onDataChange(DataSnapshot dataSnapshot) {
+                        Object offset = dataSnapshot.getValue();
+                        if (offset instanceof Number) {
+                            mServerTimeOffsetMs = ((Number) offset).longValue();
+                        }
+                    }
+
+                    @Override
+                    public void onCancelled(DatabaseError databaseError) {
+                        Log.w(TAG, "Server time offset unavailable", databaseError.toException());
+                    }
+                });
+    }
+
+    @Override
+    public long getServerTimeMs() {
+        return System.currentTimeMillis() + mServerTimeOffsetMs;
+    }
+
+    @Override
+    public Subscription getFirst(String path, String startKey, int limit, PageCallback callback) {
+        Query query = mRootReference.child(path).orderByKey();
+        if (startKey != null) {
+            query = query.startAt(startKey);
+        }
+        return readOnce(query.limitToFirst(limit), callback);
+    }
+
+    @Override
+    public Subscription getLast(String path, String endKey, int limit, PageCallback callback) {
+        Query query = mRootReference.child(path).orderByKey();
+        if (endKey != null) {
+            query = query.endAt(endKey);
+        }
+        return readOnce(query.limitToLast(limit), callback);
+    }
+
+    private static Subscription readOnce(final Query query, final PageCallback callback) {
+        final ValueEventListener listener = new ValueEventListener() {
+            @Override
+            public void onDataChange(DataSnapshot dataSnapshot) {
+                List<Child> children = new ArrayList<>((int) dataSnapshot.getChildrenCount());
+                for (DataSnapshot child : dataSnapshot.getChildren()) {
+                    children.add(new SnapshotChild(child));
+                }
+                callback.onPage(children);
+            }
+
+            @Override
+            public void onCancelled(DatabaseError databaseError) {
+                callback.onCancelled(databaseError.toException());
+            }
+        };
+        query.addListenerForSingleValueEvent(listener);
+        return new Subscription() {
+            @Override
+            public void remove() {
+                query.removeEventListener(listener);
+            }
+        };
+    }
+
+    @Override
+    public Subscription listen(String path, String startKey, final ChildListener listener) {
+        Query query = mRootReference.child(path).orderByKey();
+        if (startKey != null) {
+            query = query.startAt(startKey);
+        }
+        final ChildEventListener childEventListener = new ChildEventListener() {
+            @Override
+            public void onChildAdded(DataSnapshot dataSnapshot, String s) {
+                listener.onChildAdded(new SnapshotChild(dataSnapshot));
+            }
+
+            @Override
+            public void onChildChanged(DataSnapshot dataSnapshot, String s) {
+                listener.onChildChanged(new SnapshotChild(dataSnapshot));
+            }
+
+            @Override
+            public void onChildRemoved(DataSnapshot dataSnapshot) {
+                listener.onChildRemoved(dataSnapshot.getKey());
+            }
+
+            //The query is ordered by key, which never changes, so children never move.
+            @Override
+            public void onChildMoved(DataSnapshot dataSnapshot, String s) {
+
+            }
+
+            @Override
+            public void onCancelled(DatabaseError databaseError) {
+                listener.onCancelled(databaseError.toException());
+            }
+        };
+        final Query listenedQuery = query;
+        listenedQuery.addChildEventListener(childEventListener);
+        return new Subscription() {
+            @Override
+            public void remove() {
+                listenedQuery.removeEventListener(childEventListener);
+            }
+        };
+    }
+
+    private static class SnapshotChild implements Child {
+        private final DataSnapshot mSnapshot;
+
+        SnapshotChild(DataSnapshot snapshot) {
+            mSnapshot = snapshot;
+        }
+
+        @Override
+        public String getKey() {
+            return mSnapshot.getKey();
+        }
+
+        @Override
+        public Object getValue() {
+            return mSnapshot.getValue();
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat;
+
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.DatabaseReference;
+
+import java.util.Map;
+
+/**
+ * {@link MessageWriter} on the realtime database. PERMISSION_DENIED is what the server reports for
+ * a write the rules refuse, a failed .validate rule included.
+ */
+public class FirebaseMessageWriter implements MessageWriter {
+
+    private final DatabaseReference mRootReference;
+
+    public FirebaseMessageWriter(DatabaseReference rootReference) {
+        mRootReference = rootReference;
+    }
+
+    @Override
+    public String newKey() {
+        return mRootReference.push().getKey();
+    }
+
+    @Override
+    public void updateChildren(Map<String, Object> children, final CompletionCallback callback) {
+        mRootReference.updateChildren(children, new DatabaseReference.CompletionListener() {
+            @Override
+            public void onComplete(DatabaseError databaseError, DatabaseReference databaseReference) {
+                if (databaseError == null) {
+                    callback.onComplete(null, false);
+                } else {
+                    callback.onComplete(databaseError.toException(),
+                            databaseError.getCode() == DatabaseError.PERMISSION_DENIED);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,72 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat;
+
+import android.view.Choreographer;
+
+/**
+ * Records the time between frames into {@link PerfStats} and counts the frames that were skipped.
+ * <p/>
+ * Every vsync gets a callback while it runs, so it is only started for a sampled share of the
+ * times the list is shown. Must be used on the main thread.
+ */
+public class FrameMonitor implements Choreographer.FrameCallback {
+
+    private final PerfStats mPerfStats;
+    private final long mFrameIntervalNanos;
+
+    private boolean mRunning;
+    private long mLastFrameTimeNanos;
+
+    public FrameMonitor(PerfStats perfStats, float refreshRate) {
+        mPerfStats = perfStats;
+        mFrameIntervalNanos = (long) (1000000000 / (refreshRate > 0 ? refreshRate : 60f));
+    }
+
+    public void start() {
+        if (mRunning || !mPerfStats.isSampled()) {
+            return;
+        }
+        mRunning = true;
+        mLastFrameTimeNanos = 0;
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    public void stop() {
+        if (mRunning) {
+            mRunning = false;
+            Choreographer.getInstance().removeFrameCallback(this);
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (!mRunning) {
+            return;
+        }
+        if (mLastFrameTimeNanos != 0) {
+            long intervalNanos = frameTimeNanos - mLastFrameTimeNanos;
+            mPerfStats.frame.record(intervalNanos / 1000);
+            //Half a frame of jitter still counts as on time.
+            long skipped = (intervalNanos + mFrameIntervalNanos / 2) / mFrameIntervalNanos - 1;
+            if (skipped > 0) {
+                mPerfStats.addDroppedFrames(skipped);
+            }
+        }
+        mLastFrameTimeNanos = frameTimeNanos;
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+}
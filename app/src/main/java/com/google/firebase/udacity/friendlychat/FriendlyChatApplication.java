@@ -0,0 +1,44 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat;
+
+import android.app.Application;
+
+import com.bumptech.glide.Glide;
+
+/**
+ * Keeps the cold start short: only what the first screen needs is created on the main thread.
+ * <p/>
+ * Auth and the database are created by MainActivity on the critical path. Glide reads its modules
+ * and sizes its caches on a background thread here, before the first photo is bound. Storage (with
+ * the photo upload queue) and Remote Config are created by MainActivity once the main thread is
+ * idle, see {@link StartupTrace} for the stages.
+ */
+public class FriendlyChatApplication extends Application {
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Glide.get(FriendlyChatApplication.this);
+                StartupTrace.mark(StartupTrace.BACKGROUND_INIT_DONE);
+            }
+        }, "BackgroundInit").start();
+        StartupTrace.mark(StartupTrace.APPLICATION_CREATED);
+    }
+}
@@ -0,0 +1,55 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.content.res.Resources;
+
+import com.bumptech.glide.Glide;
+import com.bumptech.glide.GlideBuilder;
+import com.bumptech.glide.load.engine.bitmap_recycle.LruBitmapPool;
+import com.bumptech.glide.load.engine.cache.InternalCacheDiskCacheFactory;
+import com.bumptech.glide.load.engine.cache.LruResourceCache;
+import com.bumptech.glide.module.GlideModule;
+
+/**
+ * Gives Glide explicit cache budgets instead of its defaults. The memory cache and the bitmap pool
+ * are a percentage of the app's memory class, the disk cache a fixed size. All three are set in
+ * res/values/integers.xml. Registered in the manifest.
+ */
+public class FriendlyGlideModule implements GlideModule {
+
+    private static final int MB = 1024 * 1024;
+
+    @Override
+    public void applyOptions(Context context, GlideBuilder builder) {
+        Resources resources = context.getResources();
+        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        int memoryClassBytes = activityManager.getMemoryClass() * MB;
+
+        builder.setMemoryCache(new LruResourceCache(
+                memoryClassBytes / 100 * resources.getInteger(R.integer.image_memory_cache_percent)));
+        builder.setBitmapPool(new LruBitmapPool(
+                memoryClassBytes / 100 * resources.getInteger(R.integer.image_bitmap_pool_percent)));
+        builder.setDiskCache(new InternalCacheDiskCacheFactory(context,
+                resources.getInteger(R.integer.image_disk_cache_mb) * MB));
+    }
+
+    @Override
+    public void registerComponents(Context context, Glide glide) {
+    }
+}
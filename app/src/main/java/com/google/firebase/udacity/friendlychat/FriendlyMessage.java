@@ -15,11 +15,38 @@
  */
 package com.google.firebase.udacity.friendlychat;
 
+import com.google.firebase.database.Exclude;
+
+import java.util.HashMap;
+import java.util.Map;
+
 public class FriendlyMessage {
 
+    //Delivery state of a message sent from this device. Messages received from the database are sent.
+    public static final int STATUS_SENT = 0;
+    //Shown right away, but the server hasn't acknowledged the write yet.
+    public static final int STATUS_PENDING = 1;
+    //The last write failed. The message is still queued and retried.
+    public static final int STATUS_FAILED = 2;
+
     private String text;
     private String name;
     private String photoUrl;
+    //A small version of the photo, shown while the full one loads.
+    private String thumbnailUrl;
+
+    //The push key of the message. It is the name of the node, not part of its value,
+    //so it is excluded from serialization and filled in from the DataSnapshot.
+    private String key;
+
+    //Only known on the sending device, so it is not serialized either.
+    private int status = STATUS_SENT;
+
+    //The room the message is sent to. It is part of the path, see Room.
+    private String roomId;
+
+    //Set on a new version of a message sent before, so the outgoing queue writes a change marker with it.
+    private boolean edit;
 
     public FriendlyMessage() {
     }
@@ -53,4 +80,63 @@ public class FriendlyMessage {
     public void setPhotoUrl(String photoUrl) {
         this.photoUrl = photoUrl;
     }
+
+    public String getThumbnailUrl() {
+        return thumbnailUrl;
+    }
+
+    public void setThumbnailUrl(String thumbnailUrl) {
+        this.thumbnailUrl = thumbnailUrl;
+    }
+
+    //The value written to the database, for multi-path updates with updateChildren().
+    @Exclude
+    public Map<String, Object> toMap() {
+        Map<String, Object> result = new HashMap<>();
+        result.put("text", text);
+        result.put("name", name);
+        result.put("photoUrl", photoUrl);
+        result.put("thumbnailUrl", thumbnailUrl);
+        return result;
+    }
+
+    @Exclude
+    public String getKey() {
+        return key;
+    }
+
+    @Exclude
+    public void setKey(String key) {
+        this.key = key;
+    }
+
+    @Exclude
+    public String getRoomId() {
+        return roomId;
+    }
+
+    @Exclude
+    public void setRoomId(String roomId) {
+        this.roomId = roomId;
+    }
+
+    @Exclude
+    public int getStatus() {
+        return status;
+    }
+
+    @Exclude
+    public void setStatus(int status) {
+        this.status = status;
+    }
+
+    @Exclude
+    public boolean isEdit() {
+        return edit;
+    }
+
+    @Exclude
+    public void setEdit(boolean edit) {
+        this.edit = edit;
+    }
 }
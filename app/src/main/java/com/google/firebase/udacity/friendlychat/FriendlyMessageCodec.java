@@ -0,0 +1,71 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Builds FriendlyMessage objects straight from the child values of a snapshot.
+ * <p/>
+ * getValue(FriendlyMessage.class) finds the getters and setters by reflection for every message.
+ * This reads the plain map that getValue() returns and sets the fields directly. Author names
+ * repeat a lot, so they are interned and all the messages of an author share one String.
+ * An instance is not thread-safe, each thread decoding messages needs its own.
+ */
+public class FriendlyMessageCodec {
+
+    //Bounds the intern table, a chat with more distinct authors than this just stops sharing names.
+    private static final int MAX_INTERNED_NAMES = 1024;
+
+    private final Map<String, String> mNames = new HashMap<>();
+
+    /*value is what DataSnapshot.getValue() returns for a message: a map of its children.*/
+    public FriendlyMessage decode(String key, Object value) {
+        FriendlyMessage message = new FriendlyMessage();
+        message.setKey(key);
+        if (value instanceof Map) {
+            Map<?, ?> children = (Map<?, ?>) value;
+            message.setText(stringOf(children.get("text")));
+            message.setName(intern(stringOf(children.get("name"))));
+            message.setPhotoUrl(stringOf(children.get("photoUrl")));
+            message.setThumbnailUrl(stringOf(children.get("thumbnailUrl")));
+        }
+        return message;
+    }
+
+    private String intern(String name) {
+        if (name == null) {
+            return null;
+        }
+        String interned = mNames.get(name);
+        if (interned != null) {
+            return interned;
+        }
+        if (mNames.size() < MAX_INTERNED_NAMES) {
+            mNames.put(name, name);
+        }
+        return name;
+    }
+
+    //Like the reflective path, numbers and booleans stored under a string field are converted.
+    private static String stringOf(Object value) {
+        if (value == null || value instanceof String) {
+            return (String) value;
+        }
+        return value instanceof Map || value instanceof Iterable ? null : String.valueOf(value);
+    }
+}
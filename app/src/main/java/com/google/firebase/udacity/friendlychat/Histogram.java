@@ -0,0 +1,145 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+
+/**
+ * Counts values in log-linear buckets, so recording is a few shifts and an increment and the
+ * memory use is fixed no matter how many values are recorded.
+ * <p/>
+ * Every power of two is split into 8 buckets, so a percentile is off by at most 12.5%. Values are
+ * usually microseconds. Negative values count as 0. Thread-safe.
+ */
+public class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    //Enough buckets for any positive long.
+    private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final String mName;
+    private final long[] mCounts = new long[BUCKET_COUNT];
+    private long mCount;
+    private long mSum;
+    private long mMax;
+
+    public Histogram(String name) {
+        mName = name;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public synchronized void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        mCounts[indexOf(value)]++;
+        mCount++;
+        mSum += value;
+        if (value > mMax) {
+            mMax = value;
+        }
+    }
+
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    public synchronized long getMax() {
+        return mMax;
+    }
+
+    public synchronized double getMean() {
+        return mCount == 0 ? 0 : (double) mSum / mCount;
+    }
+
+    /*The lower bound of the bucket holding the value at this percentile, between 0 and 1.*/
+    public synchronized long getPercentile(double percentile) {
+        if (mCount == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile * mCount));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mCounts[i];
+            if (seen >= rank) {
+                return lowerBoundOf(i);
+            }
+        }
+        return mMax;
+    }
+
+    public synchronized void reset() {
+        Arrays.fill(mCounts, 0);
+        mCount = 0;
+        mSum = 0;
+        mMax = 0;
+    }
+
+    /*Summary plus the non-empty buckets as [lower bound, count] pairs.*/
+    public synchronized JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("count", mCount);
+        json.put("mean", getMean());
+        json.put("p50", getPercentile(0.5));
+        json.put("p90", getPercentile(0.9));
+        json.put("p99", getPercentile(0.99));
+        json.put("max", mMax);
+        JSONArray buckets = new JSONArray();
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            if (mCounts[i] != 0) {
+                buckets.put(new JSONArray().put(lowerBoundOf(i)).put(mCounts[i]));
+            }
+        }
+        json.put("buckets", buckets);
+        return json;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return mName + "{count=" + mCount
+                + ", p50=" + getPercentile(0.5)
+                + ", p90=" + getPercentile(0.9)
+                + ", p99=" + getPercentile(0.99)
+                + ", max=" + mMax + "}";
+    }
+
+    //Values below SUB_BUCKETS get a bucket each, above that each power of two gets SUB_BUCKETS buckets.
+    static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) ((value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long lowerBoundOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int subBucket = index % SUB_BUCKETS;
+        return (1L << exponent) + ((long) subBucket << (exponent - SUB_BUCKET_BITS));
+    }
+}
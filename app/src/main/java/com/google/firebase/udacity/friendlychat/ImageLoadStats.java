@@ -0,0 +1,92 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat;
+
+import com.bumptech.glide.load.resource.drawable.GlideDrawable;
+import com.bumptech.glide.request.RequestListener;
+import com.bumptech.glide.request.target.Target;
+
+/**
+ * Counts how photo loads in the message list are served.
+ * <p/>
+ * A load is a memory cache hit when Glide had the decoded photo at the requested size. Any other
+ * load comes from the disk cache or the network and is decoded. Its time from the request to the
+ * decoded photo is recorded, and a sample of it goes to {@link PerfStats}. That is the whole load,
+ * fetching included, not just the decode. Only used on the main thread.
+ */
+public class ImageLoadStats {
+
+    private static final ImageLoadStats sInstance = new ImageLoadStats();
+
+    public static ImageLoadStats getInstance() {
+        return sInstance;
+    }
+
+    private long mMemoryCacheHits;
+    private long mUncachedLoads;
+    private long mFailedLoads;
+    private long mLoadTimeNanos;
+
+    private ImageLoadStats() {
+    }
+
+    /*A listener for one request, it measures from now until the photo is ready.*/
+    public RequestListener<String, GlideDrawable> newRequestListener() {
+        final long startNanos = System.nanoTime();
+        final boolean sampled = PerfStats.getInstance().isSampled();
+        return new RequestListener<String, GlideDrawable>() {
+            @Override
+            public boolean onException(Exception e, String model, Target<GlideDrawable> target, boolean isFirstResource) {
+                mFailedLoads++;
+                return false;
+            }
+
+            @Override
+            public boolean onResourceReady(GlideDrawable resource, String model, Target<GlideDrawable> target,
+                                           boolean isFromMemoryCache, boolean isFirstResource) {
+                if (isFromMemoryCache) {
+                    mMemoryCacheHits++;
+                } else {
+                    mUncachedLoads++;
+                    long nanos = System.nanoTime() - startNanos;
+                    mLoadTimeNanos += nanos;
+                    if (sampled) {
+                        PerfStats.getInstance().imageLoad.record(nanos / 1000);
+                    }
+                }
+                return false;
+            }
+        };
+    }
+
+    public float getMemoryCacheHitRate() {
+        long loads = mMemoryCacheHits + mUncachedLoads;
+        return loads == 0 ? 0f : (float) mMemoryCacheHits / loads;
+    }
+
+    public long getAverageLoadTimeMs() {
+        return mUncachedLoads == 0 ? 0 : mLoadTimeNanos / mUncachedLoads / 1000000;
+    }
+
+    @Override
+    public String toString() {
+        return "ImageLoadStats{memoryCacheHits=" + mMemoryCacheHits
+                + ", uncachedLoads=" + mUncachedLoads
+                + ", failedLoads=" + mFailedLoads
+                + ", hitRate=" + getMemoryCacheHitRate()
+                + ", averageLoadMs=" + getAverageLoadTimeMs() + "}";
+    }
+}
@@ -15,14 +15,21 @@
  */
 package com.google.firebase.udacity.friendlychat;
 
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Looper;
+import android.os.MessageQueue;
 import android.support.annotation.NonNull;
+import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
 import android.text.Editable;
 import android.text.InputFilter;
 import android.text.TextWatcher;
+import android.util.Log;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
@@ -30,29 +37,16 @@ import android.view.View;
 import android.widget.Button;
 import android.widget.EditText;
 import android.widget.ImageButton;
-import android.widget.ListView;
 import android.widget.ProgressBar;
 import android.widget.Toast;
 
 import com.firebase.ui.auth.AuthUI;
-import com.google.android.gms.tasks.OnSuccessListener;
 import com.google.firebase.auth.FirebaseAuth;
 import com.google.firebase.auth.FirebaseUser;
-import com.google.firebase.database.ChildEventListener;
-import com.google.firebase.database.DataSnapshot;
-import com.google.firebase.database.DatabaseError;
-import com.google.firebase.database.DatabaseReference;
-import com.google.firebase.database.FirebaseDatabase;
-import com.google.firebase.remoteconfig.FirebaseRemoteConfig;
-import com.google.firebase.remoteconfig.FirebaseRemoteConfigSettings;
-import com.google.firebase.storage.FirebaseStorage;
-import com.google.firebase.storage.StorageReference;
-import com.google.firebase.storage.UploadTask;
-
-import java.util.ArrayList;
-import java.util.HashMap;
+
+import java.io.File;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
 
 
 public class MainActivity extends AppCompatActivity {
@@ -60,8 +54,16 @@ public class MainActivity extends AppCompatActivity {
     private static final String TAG = "MainActivity";
 
     public static final String ANONYMOUS = "anonymous";
-    public static final int DEFAULT_MSG_LENGTH_LIMIT = 1000;
-    public static final String FRIENDLY_MSG_LENGTH_KEY = "friendly_msg_length";
+
+    //Start loading the previous page when the first visible row is this close to the top.
+    private static final int LOAD_OLDER_THRESHOLD = 5;
+    //Keep at most this many pages of the configured size in the list while the user is reading the
+    //newest ones.
+    private static final int MAX_LOADED_PAGES = 10;
+
+    //Remembers the last room across launches.
+    private static final String PREFS_NAME = "chat";
+    private static final String PREF_ROOM_ID = "room_id";
 
     //Set the value RC_SIGN_IN flag used for startActivityForResult for FirebaseUI and don't use the default value.
     private static final int RC_SIGN_IN = 1;
@@ -69,7 +71,11 @@ public class MainActivity extends AppCompatActivity {
     //Set the value RC_PHOTO_PICKER flag used for startActivityForResult for Photo Picker Button
     private static final int RC_PHOTO_PICKER = 2;
 
-    private ListView mMessageListView;
+    //Measures dropped frames while the list is shown, for a sample of the times it is.
+    private FrameMonitor mFrameMonitor;
+
+    private RecyclerView mMessageRecyclerView;
+    private LinearLayoutManager mMessageLayoutManager;
     private MessageAdapter mMessageAdapter;
     private ProgressBar mProgressBar;
     private ImageButton mPhotoPickerButton;
@@ -77,29 +83,38 @@ public class MainActivity extends AppCompatActivity {
     private Button mSendButton;
 
     private String mUsername;
+    //The room shown and sent to.
+    private String mRoomId;
+    //Key of the search result to scroll to once the page holding it is shown.
+    private String mPendingScrollKey;
 
 
-    /*Two classes from Firebase Database API.*/
-    //Firebase database object is the entry point for our app to access the database.
-    private FirebaseDatabase mFirebaseDatabase;
-    //Database Reference object is a class that reference a specific part of the database.
-    // This will be referencing the messaging portion of our database.
-    private DatabaseReference mMessagesDatabaseReference;
+    /*Buffers sent messages and writes them to the messages portion of the database in batches.
+    It keeps them on disk until they are acknowledged.*/
+    private OutgoingMessageQueue mOutgoingMessageQueue;
+    //Tells the user when the server rejected a message, the repository takes care of the rest.
+    private OutgoingMessageQueue.Listener mOutgoingListener;
 
-    /*Event listener that reacts to the Firebase database changes in the real-time.*/
-    private ChildEventListener mChildEventListener;
+    /*Owns the subscription to the messages of the current room. It outlives the activity, so a rotation,
+    a quick app switch or switching back to a room shows the messages already in memory instead of
+    subscribing again.*/
+    private MessageRepository mMessageRepository;
+    //Hands every change of the messages to the adapter, which diffs it off the main thread.
+    private MessageRepository.Observer mMessagesObserver;
 
     /*One class from Firebase Auth API*/
     private FirebaseAuth mFirebaseAuth;
 
-    /*Two Classes from Firebase Storage API*/
-    private FirebaseStorage mFirebaseStorage;
-    //Storage Reference object is a class that reference a specific part of the storage.
-    //This will be referencing the chat_photos portion of our storage.
-    private StorageReference mChatPhotoStorageReference;
+    /*Downscales picked photos and uploads them to the chat_photos portion of Firebase Storage.
+    Created once the first screen is up, see getPhotoUploadQueue().*/
+    private PhotoUploadQueue mPhotoUploadQueue;
+    //Tells the user when a photo failed to upload.
+    private PhotoUploadQueue.Listener mPhotoUploadListener;
 
-    /*One class from Firebase Remote Config*/
-    private FirebaseRemoteConfig mFirebaseRemoteConfig;
+    /*Limits set from Firebase Remote Config. Created once the first screen is up.*/
+    private ChatConfig mChatConfig;
+    //Applies new limits while the activity is shown.
+    private ChatConfig.Listener mConfigListener;
 
 
     /*Event Listener that reacts to auth state change. It execute when user signs in, signs out, attached  to FriebaseAuth*/
@@ -113,38 +128,141 @@ public class MainActivity extends AppCompatActivity {
 
         mUsername = ANONYMOUS;
 
-        /*instantiate the two firebase database object*/
-        //getting instance to the firebase database
-        mFirebaseDatabase = FirebaseDatabase.getInstance();
-        //getting reference to the specific part of the database.
-        // getReference() will get the reference to the root, while child() will refer to the specific part i.e. "messages"
-        mMessagesDatabaseReference = mFirebaseDatabase.getReference().child("messages");
+        //The queue is shared by the whole process, it sends the messages left over from the last one.
+        mOutgoingMessageQueue = OutgoingMessageQueue.getInstance(this);
+        mOutgoingListener = new OutgoingMessageQueue.Listener() {
+            @Override
+            public void onMessageQueued(FriendlyMessage message) {
+            }
 
-        /*Instantiate the firebase auth object*/
-        mFirebaseAuth = FirebaseAuth.getInstance();
+            @Override
+            public void onMessagesSent(List<FriendlyMessage> messages) {
+            }
 
-        /*Instantiate the two firebase storage object*/
-        //getting instance to the firebase storage
-        mFirebaseStorage = FirebaseStorage.getInstance();
-        //getting reference to the specific part of the storage.
-        // getReference() will get the reference to the root, while child() will refer to the specific part i.e. "chat_photos"
-        mChatPhotoStorageReference = mFirebaseStorage.getReference().child("chat_photos");
+            @Override
+            public void onSendFailed(List<FriendlyMessage> messages) {
+            }
 
-        /*Instantiate the firebase remote config object*/
-        mFirebaseRemoteConfig = FirebaseRemoteConfig.getInstance();
+            @Override
+            public void onMessagesRejected(List<FriendlyMessage> messages) {
+                Toast.makeText(MainActivity.this, R.string.message_rejected, Toast.LENGTH_SHORT).show();
+            }
+        };
+        mOutgoingMessageQueue.addListener(mOutgoingListener);
 
+        mRoomId = getSharedPreferences(PREFS_NAME, MODE_PRIVATE).getString(PREF_ROOM_ID, Room.DEFAULT_ROOM_ID);
+        mMessageRepository = MessageRepository.getInstance(this, mRoomId);
+        setTitle(getString(R.string.room_title, mRoomId));
+
+        /*Instantiate the firebase auth object*/
+        mFirebaseAuth = FirebaseAuth.getInstance();
+
+        //Storage and Remote Config aren't needed for the first messages, they are set up once
+        //the main thread has nothing else to do.
+        Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+            @Override
+            public boolean queueIdle() {
+                StartupTrace.mark(StartupTrace.MAIN_THREAD_IDLE);
+                initDeferred();
+                StartupTrace.mark(StartupTrace.DEFERRED_INIT_DONE);
+                return false;
+            }
+        });
 
         // Initialize references to views
         mProgressBar = (ProgressBar) findViewById(R.id.progressBar);
-        mMessageListView = (ListView) findViewById(R.id.messageListView);
+        mMessageRecyclerView = (RecyclerView) findViewById(R.id.messageRecyclerView);
         mPhotoPickerButton = (ImageButton) findViewById(R.id.photoPickerButton);
         mMessageEditText = (EditText) findViewById(R.id.messageEditText);
         mSendButton = (Button) findViewById(R.id.sendButton);
 
-        // Initialize message ListView and its adapter
-        List<FriendlyMessage> friendlyMessages = new ArrayList<>();
-        mMessageAdapter = new MessageAdapter(this, R.layout.item_message, friendlyMessages);
-        mMessageListView.setAdapter(mMessageAdapter);
+        mFrameMonitor = new FrameMonitor(PerfStats.getInstance(), getWindowManager().getDefaultDisplay().getRefreshRate());
+
+        // Initialize message RecyclerView and its adapter
+        mMessageLayoutManager = new LinearLayoutManager(this);
+        //Like a chat transcript, the newest message is at the bottom
+        mMessageLayoutManager.setStackFromEnd(true);
+        mMessageRecyclerView.setLayoutManager(mMessageLayoutManager);
+        mMessageRecyclerView.setHasFixedSize(true);
+        mMessageAdapter = new MessageAdapter();
+        mMessageRecyclerView.setAdapter(mMessageAdapter);
+
+        // Decode photos at the width of the list rather than at their full resolution
+        mMessageRecyclerView.addOnLayoutChangeListener(new View.OnLayoutChangeListener() {
+            @Override
+            public void onLayoutChange(View view, int left, int top, int right, int bottom,
+                                       int oldLeft, int oldTop, int oldRight, int oldBottom) {
+                int width = view.getWidth() - view.getPaddingLeft() - view.getPaddingRight();
+                if (width > 0) {
+                    mMessageAdapter.setPhotoSize(width);
+                }
+            }
+        });
+
+        // Load the photos of the rows just off screen before they are scrolled in
+        mMessageRecyclerView.addOnScrollListener(
+                new PhotoPreloader(mMessageAdapter, mMessageLayoutManager, PhotoPreloader.DEFAULT_PRELOAD_COUNT));
+
+        // Follow new messages while the user is reading the newest ones
+        mMessageAdapter.registerAdapterDataObserver(new RecyclerView.AdapterDataObserver() {
+            @Override
+            public void onItemRangeInserted(int positionStart, int itemCount) {
+                if (mPendingScrollKey != null && scrollToPendingMessage()) {
+                    return;
+                }
+                int lastVisible = mMessageLayoutManager.findLastCompletelyVisibleItemPosition();
+                if (positionStart + itemCount == mMessageAdapter.getItemCount()
+                        && (lastVisible == RecyclerView.NO_POSITION || lastVisible >= positionStart - 1)) {
+                    mMessageRecyclerView.scrollToPosition(mMessageAdapter.getItemCount() - 1);
+                }
+            }
+        });
+
+        mMessagesObserver = new MessageRepository.Observer() {
+            @Override
+            public void onMessagesChanged(List<FriendlyMessage> messages) {
+                if (!messages.isEmpty()) {
+                    StartupTrace.mark(StartupTrace.FIRST_MESSAGES);
+                }
+                mMessageAdapter.submitList(messages);
+            }
+
+            @Override
+            public void onMessagesEdited(List<FriendlyMessage> messages, List<String> changedKeys, List<String> removedKeys) {
+                mMessageAdapter.submitEdits(messages, changedKeys, removedKeys);
+            }
+        };
+
+        // Load older pages when scrolling near the top, drop them again once back at the bottom. Below a
+        // search result, load the newer pages not loaded yet when scrolling near them
+        mMessageRecyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                int totalItemCount = mMessageAdapter.getItemCount();
+                if (totalItemCount == 0) {
+                    return;
+                }
+                int firstVisibleItem = mMessageLayoutManager.findFirstVisibleItemPosition();
+                int lastVisibleItem = mMessageLayoutManager.findLastVisibleItemPosition();
+                int loadedCount = mMessageRepository.getMessages().size();
+                int pageSize = mMessageRepository.getPageSize();
+                int maxLoadedMessages = MAX_LOADED_PAGES * pageSize;
+                if (firstVisibleItem <= LOAD_OLDER_THRESHOLD) {
+                    mMessageRepository.loadOlder();
+                } else if (lastVisibleItem >= totalItemCount - LOAD_OLDER_THRESHOLD
+                        && loadedCount > maxLoadedMessages && mPendingScrollKey == null) {
+                    //Not while paging back to a search result, that would drop the pages on the way.
+                    //Drop whole pages only, so the list doesn't shrink on every scroll event
+                    mMessageRepository.dropOldest((loadedCount - maxLoadedMessages) / pageSize * pageSize);
+                }
+                String gapStartKey = mMessageRepository.getGapStartKey();
+                List<FriendlyMessage> messages = mMessageAdapter.getMessages();
+                if (gapStartKey != null && !messages.isEmpty() && MessageIndex.keyAt(messages,
+                        Math.min(lastVisibleItem + LOAD_OLDER_THRESHOLD, messages.size() - 1)).compareTo(gapStartKey) > 0) {
+                    mMessageRepository.loadGap();
+                }
+            }
+        });
 
         // Initialize progress bar
         mProgressBar.setVisibility(ProgressBar.INVISIBLE);
@@ -181,7 +299,7 @@ public class MainActivity extends AppCompatActivity {
             public void afterTextChanged(Editable editable) {
             }
         });
-        mMessageEditText.setFilters(new InputFilter[]{new InputFilter.LengthFilter(DEFAULT_MSG_LENGTH_LIMIT)});
+        mMessageEditText.setFilters(new InputFilter[]{new InputFilter.LengthFilter(ChatConfig.DEFAULT_MSG_LENGTH_LIMIT)});
 
         // Send button sends a message and clears the EditText
         mSendButton.setOnClickListener(new View.OnClickListener() {
@@ -190,14 +308,10 @@ public class MainActivity extends AppCompatActivity {
 
                 //create a FriendlyMessage object for the message that the user typed in
                 FriendlyMessage friendlyMessage = new FriendlyMessage(mMessageEditText.getText().toString(), mUsername, null);
+                friendlyMessage.setRoomId(mRoomId);
 
-                /*A push ID contains 120 bits of information.
-                The first 48 bits are a timestamp, which both reduces the chance of collision
-                and allows consecutively created push IDs to sort chronologically.
-                The timestamp is followed by 72 bits of randomness,
-                which ensures that even two people creating push IDs at the exact same millisecond
-                are extremely unlikely to generate identical IDs.*/
-                mMessagesDatabaseReference.push().setValue(friendlyMessage);
+                //The queue gives it a push ID and writes it together with any other pending messages.
+                mOutgoingMessageQueue.send(friendlyMessage);
 
                 // Clear input box
                 mMessageEditText.setText("");
@@ -236,20 +350,49 @@ public class MainActivity extends AppCompatActivity {
             }
         };
 
-        // Create Remote Config Setting to enable developer mode.
-        // Fetching configs from the server is normally limited to 5 requests per hour.
-        // Enabling developer mode allows many more requests to be made per hour, so developers
-        // can test different config values during development.
-        //Also, Change DEBUG to RELEASE mode at the time of RELEASE BUILD.
-        FirebaseRemoteConfigSettings configSettings = new FirebaseRemoteConfigSettings.Builder()
-                .setDeveloperModeEnabled(BuildConfig.DEBUG)
-                .build();
-
-        // Define default config values. Defaults are used when fetched config values are not
-        // available. Eg: if an error occurred fetching values from the server.
-        Map<String, Object> defaultConfigMap = new HashMap<>();
-        defaultConfigMap.put(FRIENDLY_MSG_LENGTH_KEY, DEFAULT_MSG_LENGTH_LIMIT);
-        mFirebaseRemoteConfig.setDefaults(defaultConfigMap);
+        StartupTrace.mark(StartupTrace.ACTIVITY_CREATED);
+    }
+
+    /*Everything that can wait until the first frame is drawn.*/
+    private void initDeferred() {
+        if (isFinishing()) {
+            return;
+        }
+        //The queue is shared by the whole process, it resumes uploads interrupted by process death.
+        getPhotoUploadQueue();
+
+        //The last activated limits apply right away, new ones once they are fetched.
+        mChatConfig = ChatConfig.getInstance(this);
+        mConfigListener = new ChatConfig.Listener() {
+            @Override
+            public void onConfigChanged(ChatConfig config) {
+                applyConfig();
+            }
+        };
+        mChatConfig.addListener(mConfigListener);
+        applyConfig();
+        mChatConfig.fetch();
+    }
+
+    private void applyConfig() {
+        mMessageEditText.setFilters(new InputFilter[]{new InputFilter.LengthFilter(mChatConfig.getMessageLengthLimit())});
+        mMessageRepository.setPageSize(mChatConfig.getHistoryPageSize());
+    }
+
+    /*A photo can be picked before the idle handler ran, so the queue is created on first use.*/
+    private PhotoUploadQueue getPhotoUploadQueue() {
+        if (mPhotoUploadQueue == null) {
+            mPhotoUploadQueue = PhotoUploadQueue.getInstance(this);
+            mPhotoUploadListener = new PhotoUploadQueue.Listener() {
+                @Override
+                public void onUploadFailed(boolean willRetry) {
+                    Toast.makeText(MainActivity.this,
+                            willRetry ? R.string.photo_upload_retrying : R.string.photo_not_sent, Toast.LENGTH_SHORT).show();
+                }
+            };
+            mPhotoUploadQueue.addListener(mPhotoUploadListener);
+        }
+        return mPhotoUploadQueue;
     }
 
     /*startActivityForResult() return onAcivityResult() with RESULT_OK or RESULT_CANCEL.
@@ -269,22 +412,9 @@ public class MainActivity extends AppCompatActivity {
         else if (requestCode == RC_PHOTO_PICKER && resultCode == RESULT_OK) {
             //The Selected image will come as a URI
             Uri selectedImageUri = data.getData();
-            //Get a reference to store file at chat_photos/<FILENAME>
-            //<FILENAME> eg: content://local_images/foo/4 -> last path is 4
-            StorageReference photoRef = mChatPhotoStorageReference.child(selectedImageUri.getLastPathSegment());
-
-            //Upload photo to the Firebase Storage
-            photoRef.putFile(selectedImageUri).addOnSuccessListener(this, new OnSuccessListener<UploadTask.TaskSnapshot>() {
-                @Override
-                public void onSuccess(UploadTask.TaskSnapshot taskSnapshot) {
-                    //taskSnapshot is the key to get the URL of the image
-                    Uri downloadUrl = taskSnapshot.getDownloadUrl();
-                    //Create the friendlyMessage object
-                    FriendlyMessage friendlyMessage = new FriendlyMessage(null, mUsername, downloadUrl.toString());
-                    //Store it in the database.
-                    mMessagesDatabaseReference.push().setValue(friendlyMessage);
-                }
-            });
+            //Downscale it off the main thread and upload it with a thumbnail. The queue sends the
+            //message once both are uploaded.
+            getPhotoUploadQueue().enqueue(selectedImageUri, mUsername, mRoomId);
         }
     }
 
@@ -302,8 +432,12 @@ public class MainActivity extends AppCompatActivity {
         //Unset the Username
         mUsername = ANONYMOUS;
 
-        //unset the Adapter
-        mMessageAdapter.clear();
+        //forget the messages of every room, including the stored ones, they belong to the user who signed out
+        MessageRepository.clearAll(this);
+
+        //and drop what they hadn't sent yet, so it doesn't go out under the next user
+        mOutgoingMessageQueue.clear();
+        PhotoUploadQueue.clearAll(this);
 
         //detach the read listener
         detachDatabaseReadListener();
@@ -311,71 +445,154 @@ public class MainActivity extends AppCompatActivity {
     }
 
     private void attachDatabaseReadListener() {
+        //A repository left idle longer than its grace period is evicted, get the room's current one.
+        mMessageRepository = MessageRepository.getInstance(this, mRoomId);
+        if (mChatConfig != null) {
+            mMessageRepository.setPageSize(mChatConfig.getHistoryPageSize());
+        }
+        //The repository subscribes with its first observer and shows the messages it already has right away.
+        mMessageRepository.addObserver(mMessagesObserver);
+    }
 
-        //if listener is null, then only attach it
-        if (mChildEventListener == null) {
-        /*Instantiate new ChildEventListener*/
-            mChildEventListener = new ChildEventListener() {
-                //This method is called whenever a new child is inserted into the messages list.
-                //Importantly, it is also triggered for every child message in the list when the listener is attached.
-                @Override
-                public void onChildAdded(DataSnapshot dataSnapshot, String s) {
-
-                /*DataSnapshot contains data from the firebase database at the specific location
-                  at the exact time the listener is triggered*/
-                    //In this case, dataSnapshot will always contain the messag that has been added.
-                    //The getValue() method can take a parameter which is a class by passing this parameter
-                    //the code will deserialize the message from the database into our FriendlyMessage object.
-                    FriendlyMessage friendlyMessage = dataSnapshot.getValue(FriendlyMessage.class);
-                    //add the FriendlyMessage object to our adapter.
-                    mMessageAdapter.add(friendlyMessage);
-
-                }
-
-                //This is called when the content of the existing message gets changed.
-                @Override
-                public void onChildChanged(DataSnapshot dataSnapshot, String s) {
+    private void detachDatabaseReadListener() {
+        //The repository keeps its subscription for a grace period after its last observer leaves.
+        mMessageRepository.removeObserver(mMessagesObserver);
+    }
 
-                }
+    /*Show another room. The previous room's repository keeps its messages for its grace period,
+    so switching back shows them right away.*/
+    private void switchRoom(String roomId) {
+        if (roomId.equals(mRoomId)) {
+            return;
+        }
+        boolean attached = mFirebaseAuth.getCurrentUser() != null;
+        detachDatabaseReadListener();
+        mRoomId = roomId;
+        getSharedPreferences(PREFS_NAME, MODE_PRIVATE).edit().putString(PREF_ROOM_ID, roomId).apply();
+        mMessageRepository = MessageRepository.getInstance(this, roomId);
+        if (mChatConfig != null) {
+            mMessageRepository.setPageSize(mChatConfig.getHistoryPageSize());
+        }
+        setTitle(getString(R.string.room_title, roomId));
+        mPendingScrollKey = null;
+        //The next list has nothing in common with this one, don't diff them.
+        mMessageAdapter.submitList(Collections.<FriendlyMessage>emptyList());
+        if (attached) {
+            attachDatabaseReadListener();
+        }
+    }
 
-                //This method is called when an existing message is deleted.
-                @Override
-                public void onChildRemoved(DataSnapshot dataSnapshot) {
+    private void showSearchDialog() {
+        final EditText queryEditText = new EditText(this);
+        queryEditText.setHint(R.string.search_hint);
+        queryEditText.setSingleLine(true);
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.search)
+                .setView(queryEditText)
+                .setPositiveButton(R.string.search, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        search(queryEditText.getText().toString());
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
 
+    private void search(String query) {
+        final String roomId = mRoomId;
+        mMessageRepository.search(query, new MessageSearchIndex.SearchCallback() {
+            @Override
+            public void onResults(String query, final List<MessageSearchIndex.Result> results) {
+                if (isFinishing() || !roomId.equals(mRoomId)) {
+                    return;
                 }
-
-                //This method is called when whatever message changed position in the list.
-                @Override
-                public void onChildMoved(DataSnapshot dataSnapshot, String s) {
-
+                if (results.isEmpty()) {
+                    Toast.makeText(MainActivity.this, getString(R.string.no_search_results, query), Toast.LENGTH_SHORT).show();
+                    return;
                 }
-
-                //This method indicate that some sort of error occurred when you're trying to make changes.
-                //Typically this means that you don't have permission to read it.
-                @Override
-                public void onCancelled(DatabaseError databaseError) {
-
+                CharSequence[] labels = new CharSequence[results.size()];
+                for (int i = 0; i < labels.length; i++) {
+                    MessageSearchIndex.Result result = results.get(i);
+                    labels[i] = getString(R.string.search_result, result.name,
+                            result.snippet != null ? result.snippet : getString(R.string.search_result_photo));
                 }
-            };
+                new AlertDialog.Builder(MainActivity.this)
+                        .setTitle(query)
+                        .setItems(labels, new DialogInterface.OnClickListener() {
+                            @Override
+                            public void onClick(DialogInterface dialog, int which) {
+                                scrollToMessage(results.get(which).key);
+                            }
+                        })
+                        .show();
+            }
+        });
+    }
 
-        /*Add the listener to the database reference.*/
-            //This will trigger when one of the node of messages changes.
-            mMessagesDatabaseReference.addChildEventListener(mChildEventListener);
+    /*Scroll to a message, loading the page holding it first if needed.*/
+    private void scrollToMessage(String key) {
+        mPendingScrollKey = key;
+        if (mMessageRepository.loadUntil(key)) {
+            scrollToPendingMessage();
         }
     }
 
-    private void detachDatabaseReadListener() {
-        //If listener is not null then only detach it
-        if (mChildEventListener != null) {
-            mMessagesDatabaseReference.removeEventListener(mChildEventListener);
-            mChildEventListener = null;
+    /*Returns false if the adapter doesn't show the page holding the message yet.*/
+    private boolean scrollToPendingMessage() {
+        List<FriendlyMessage> messages = mMessageAdapter.getMessages();
+        if (messages.isEmpty() || MessageIndex.keyAt(messages, 0).compareTo(mPendingScrollKey) > 0) {
+            return false;
         }
+        //A message deleted in the meantime scrolls to the one after it.
+        int position = MessageIndex.indexOf(messages, mPendingScrollKey);
+        if (position < 0) {
+            position = Math.min(-position - 1, messages.size() - 1);
+        }
+        mPendingScrollKey = null;
+        mMessageLayoutManager.scrollToPositionWithOffset(position, 0);
+        return true;
+    }
+
+    private void showSwitchRoomDialog() {
+        final EditText roomIdEditText = new EditText(this);
+        roomIdEditText.setHint(R.string.room_id_hint);
+        roomIdEditText.setSingleLine(true);
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.switch_room)
+                .setView(roomIdEditText)
+                .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        String roomId = roomIdEditText.getText().toString().trim();
+                        if (Room.isValidId(roomId)) {
+                            switchRoom(roomId);
+                        } else {
+                            Toast.makeText(MainActivity.this, R.string.invalid_room_id, Toast.LENGTH_SHORT).show();
+                        }
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+
+    /*Show the performance histograms and write them to a JSON file, e.g. to pull with adb.*/
+    private void showPerfStats() {
+        PerfStats perfStats = PerfStats.getInstance();
+        File file = new File(getFilesDir(), "perf_stats.json");
+        perfStats.dump(file);
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.perf_stats)
+                .setMessage(perfStats + "\n\n" + file.getPath())
+                .setPositiveButton(android.R.string.ok, null)
+                .show();
     }
 
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         MenuInflater inflater = getMenuInflater();
         inflater.inflate(R.menu.main_menu, menu);
+        menu.findItem(R.id.perf_stats_menu).setVisible(BuildConfig.DEBUG);
         return true;
     }
 
@@ -386,6 +603,15 @@ public class MainActivity extends AppCompatActivity {
                 //sign out
                 AuthUI.getInstance().signOut(this);
                 return true;
+            case R.id.search_menu:
+                showSearchDialog();
+                return true;
+            case R.id.switch_room_menu:
+                showSwitchRoomDialog();
+                return true;
+            case R.id.perf_stats_menu:
+                showPerfStats();
+                return true;
             default:
                 return super.onOptionsItemSelected(item);
         }
@@ -397,6 +623,12 @@ public class MainActivity extends AppCompatActivity {
         super.onResume();
         //attach AuthStateListener in onResume()
         mFirebaseAuth.addAuthStateListener(mAuthStateListener);
+        mFrameMonitor.start();
+        //Coming back after a while picks up limits changed in the meantime. Before the cache
+        //expires this doesn't even make a request.
+        if (mChatConfig != null) {
+            mChatConfig.fetch();
+        }
     }
 
     @Override
@@ -407,9 +639,29 @@ public class MainActivity extends AppCompatActivity {
             mFirebaseAuth.removeAuthStateListener(mAuthStateListener);
         }
 
-        //When the activity is destroyed, the listener will also be cleaned up.
+        //The repository keeps the messages for a while, so coming back doesn't download them again.
         detachDatabaseReadListener();
-        mMessageAdapter.clear();
+
+        mFrameMonitor.stop();
+        //Like the perf stats menu, the numbers are only for debug builds.
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, ImageLoadStats.getInstance().toString());
+            Log.d(TAG, mOutgoingMessageQueue.toString());
+            Log.d(TAG, PerfStats.getInstance().toString());
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        //The config and the queues outlive the activity.
+        mOutgoingMessageQueue.removeListener(mOutgoingListener);
+        if (mChatConfig != null) {
+            mChatConfig.removeListener(mConfigListener);
+        }
+        if (mPhotoUploadQueue != null) {
+            mPhotoUploadQueue.removeListener(mPhotoUploadListener);
+        }
     }
 
 
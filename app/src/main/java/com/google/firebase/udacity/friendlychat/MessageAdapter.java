@@ -1,48 +1,337 @@
 package com.google.firebase.udacity.friendlychat;
 
-import android.app.Activity;
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.widget.RecyclerView;
+import android.text.TextUtils;
+import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.ArrayAdapter;
 import android.widget.ImageView;
 import android.widget.TextView;
 
+import com.bumptech.glide.DrawableRequestBuilder;
 import com.bumptech.glide.Glide;
+import com.bumptech.glide.load.engine.DiskCacheStrategy;
+import com.bumptech.glide.request.target.Target;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
-public class MessageAdapter extends ArrayAdapter<FriendlyMessage> {
-    public MessageAdapter(Context context, int resource, List<FriendlyMessage> objects) {
-        super(context, resource, objects);
+public class MessageAdapter extends RecyclerView.Adapter<MessageAdapter.MessageViewHolder> {
+
+    private static final int VIEW_TYPE_TEXT = 0;
+    private static final int VIEW_TYPE_PHOTO = 1;
+
+    //Diffs are computed off the main thread, one at a time, in the order the lists were submitted.
+    private static final Executor DIFF_EXECUTOR = Executors.newSingleThreadExecutor();
+
+    //Low-res version shown while a photo without a thumbnail loads, relative to the full size.
+    private static final float PHOTO_THUMBNAIL_SIZE_MULTIPLIER = 0.1f;
+
+    private static final float PENDING_ALPHA = 0.5f;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ImageLoadStats mImageLoadStats = ImageLoadStats.getInstance();
+    private final PerfStats mPerfStats = PerfStats.getInstance();
+
+    //Photos are decoded to fit a square as wide as the list, instead of at their full resolution.
+    private int mPhotoSize;
+
+    //The list currently shown. It is never modified, a new list is submitted instead.
+    private List<FriendlyMessage> mMessages = Collections.emptyList();
+    //Incremented on every submit, so only the diff of the latest list gets applied. Only written on
+    //the main thread, the diff thread reads it to skip lists that were replaced before their turn.
+    private volatile int mGeneration;
+    //Generation of mMessages. Lower than mGeneration while a diff is being computed.
+    private int mShownGeneration;
+
+    public MessageAdapter() {
+        setHasStableIds(true);
     }
 
-    @Override
-    public View getView(int position, View convertView, ViewGroup parent) {
-        if (convertView == null) {
-            convertView = ((Activity) getContext()).getLayoutInflater().inflate(R.layout.item_message, parent, false);
+    /*Replace the shown messages. The caller must not modify the list afterwards.*/
+    public void submitList(final List<FriendlyMessage> newMessages) {
+        final int generation = ++mGeneration;
+        final List<FriendlyMessage> oldMessages = mMessages;
+        if (oldMessages.isEmpty() || newMessages.isEmpty()) {
+            //Nothing to compare, skip the diff.
+            mMessages = newMessages;
+            mShownGeneration = generation;
+            notifyDataSetChanged();
+            return;
+        }
+        DIFF_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (generation != mGeneration) {
+                    //Already replaced, e.g. during a burst of submits, don't spend a diff on it.
+                    return;
+                }
+                final DiffUtil.DiffResult result = DiffUtil.calculateDiff(new MessageDiffCallback(oldMessages, newMessages), false);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != mGeneration) {
+                            //A newer list was submitted in the meantime.
+                            return;
+                        }
+                        mMessages = newMessages;
+                        mShownGeneration = generation;
+                        result.dispatchUpdatesTo(MessageAdapter.this);
+                    }
+                });
+            }
+        });
+    }
+
+    /*Replace the shown messages with a list that differs from them only by the given edits and
+    removals. The rows are found by key and notified one by one, without diffing the whole list.*/
+    public void submitEdits(List<FriendlyMessage> newMessages, List<String> changedKeys, List<String> removedKeys) {
+        if (mShownGeneration != mGeneration) {
+            //The shown list is about to be replaced, the edits are only valid against the next one.
+            submitList(newMessages);
+            return;
+        }
+        List<FriendlyMessage> oldMessages = mMessages;
+        mGeneration++;
+        mShownGeneration = mGeneration;
+        mMessages = newMessages;
+        //Changes first, so their positions are still the ones in the old list.
+        for (String key : changedKeys) {
+            int position = MessageIndex.indexOf(oldMessages, key);
+            if (position >= 0) {
+                notifyItemChanged(position);
+            }
+        }
+        //Then removals from the bottom up, so each position is still valid when it is notified.
+        int[] positions = new int[removedKeys.size()];
+        int count = 0;
+        for (String key : removedKeys) {
+            int position = MessageIndex.indexOf(oldMessages, key);
+            if (position >= 0) {
+                positions[count++] = position;
+            }
         }
+        Arrays.sort(positions, 0, count);
+        for (int i = count - 1; i >= 0; i--) {
+            notifyItemRemoved(positions[i]);
+        }
+    }
 
-        ImageView photoImageView = (ImageView) convertView.findViewById(R.id.photoImageView);
-        TextView messageTextView = (TextView) convertView.findViewById(R.id.messageTextView);
-        TextView authorTextView = (TextView) convertView.findViewById(R.id.nameTextView);
+    public List<FriendlyMessage> getMessages() {
+        return mMessages;
+    }
 
-        FriendlyMessage message = getItem(position);
+    public FriendlyMessage getItem(int position) {
+        return mMessages.get(position);
+    }
 
-        boolean isPhoto = message.getPhotoUrl() != null;
-        if (isPhoto) {
-            messageTextView.setVisibility(View.GONE);
-            photoImageView.setVisibility(View.VISIBLE);
-            Glide.with(photoImageView.getContext())
-                    .load(message.getPhotoUrl())
-                    .into(photoImageView);
+    @Override
+    public void onAttachedToRecyclerView(RecyclerView recyclerView) {
+        //The list is usually not laid out yet, so start with the screen width.
+        mPhotoSize = recyclerView.getResources().getDisplayMetrics().widthPixels;
+    }
+
+    /*Called once the list is measured, so photos are decoded at the size they are shown at.*/
+    public void setPhotoSize(int photoSize) {
+        mPhotoSize = photoSize;
+    }
+
+    public int getPhotoSize() {
+        return mPhotoSize;
+    }
+
+    /*The request for a message's photo. Prefetching uses the same one, so it fills the same cache entry.*/
+    static DrawableRequestBuilder<String> photoRequest(Context context, FriendlyMessage message, int photoSize) {
+        if (message.getPhotoUrl() == null) {
+            //Only the thumbnail is uploaded so far, show it until the message is edited to add the photo.
+            return thumbnailRequest(context, message.getThumbnailUrl());
+        }
+        DrawableRequestBuilder<String> request = Glide.with(context)
+                .load(message.getPhotoUrl())
+                .diskCacheStrategy(DiskCacheStrategy.ALL)
+                .override(photoSize, photoSize)
+                .fitCenter();
+        if (message.getThumbnailUrl() != null) {
+            request = request.thumbnail(thumbnailRequest(context, message.getThumbnailUrl()));
         } else {
-            messageTextView.setVisibility(View.VISIBLE);
-            photoImageView.setVisibility(View.GONE);
+            request = request.thumbnail(PHOTO_THUMBNAIL_SIZE_MULTIPLIER);
+        }
+        return request;
+    }
+
+    /*Thumbnails are decoded at their own size and scaled by the view, a full-width bitmap of one
+    wouldn't look any sharper.*/
+    private static DrawableRequestBuilder<String> thumbnailRequest(Context context, String thumbnailUrl) {
+        return Glide.with(context)
+                .load(thumbnailUrl)
+                .diskCacheStrategy(DiskCacheStrategy.ALL)
+                .override(Target.SIZE_ORIGINAL, Target.SIZE_ORIGINAL)
+                .dontTransform();
+    }
+
+    @Override
+    public int getItemCount() {
+        return mMessages.size();
+    }
+
+    //Rows are identified by the push key, so they keep their views across updates.
+    @Override
+    public long getItemId(int position) {
+        return stableIdOf(MessageIndex.keyAt(mMessages, position));
+    }
+
+    @Override
+    public int getItemViewType(int position) {
+        if (mMessages instanceof CompactMessageList) {
+            return ((CompactMessageList) mMessages).hasPhotoAt(position) ? VIEW_TYPE_PHOTO : VIEW_TYPE_TEXT;
+        }
+        FriendlyMessage message = mMessages.get(position);
+        return message.getPhotoUrl() != null || message.getThumbnailUrl() != null ? VIEW_TYPE_PHOTO : VIEW_TYPE_TEXT;
+    }
+
+    @Override
+    public MessageViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        LayoutInflater inflater = LayoutInflater.from(parent.getContext());
+        if (viewType == VIEW_TYPE_PHOTO) {
+            return new PhotoMessageViewHolder(inflater.inflate(R.layout.item_message_photo, parent, false), this);
+        }
+        return new TextMessageViewHolder(inflater.inflate(R.layout.item_message_text, parent, false));
+    }
+
+    @Override
+    public void onBindViewHolder(MessageViewHolder holder, int position) {
+        long start = mPerfStats.startTimer();
+        holder.bind(mMessages.get(position));
+        mPerfStats.recordSince(mPerfStats.bind, start);
+    }
+
+    @Override
+    public void onViewRecycled(MessageViewHolder holder) {
+        holder.unbind();
+    }
+
+    /*64-bit FNV-1a hash of the push key.*/
+    static long stableIdOf(String key) {
+        if (key == null) {
+            return RecyclerView.NO_ID;
+        }
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    static abstract class MessageViewHolder extends RecyclerView.ViewHolder {
+        final TextView authorTextView;
+
+        MessageViewHolder(View itemView) {
+            super(itemView);
+            authorTextView = (TextView) itemView.findViewById(R.id.nameTextView);
+        }
+
+        void bind(FriendlyMessage message) {
+            //Own messages show up before the server has them: dimmed until acknowledged, flagged if the write failed.
+            if (message.getStatus() == FriendlyMessage.STATUS_FAILED) {
+                authorTextView.setText(itemView.getContext().getString(R.string.message_not_sent, message.getName()));
+            } else {
+                authorTextView.setText(message.getName());
+            }
+            itemView.setAlpha(message.getStatus() == FriendlyMessage.STATUS_SENT ? 1f : PENDING_ALPHA);
+        }
+
+        void unbind() {
+        }
+    }
+
+    static class TextMessageViewHolder extends MessageViewHolder {
+        final TextView messageTextView;
+
+        TextMessageViewHolder(View itemView) {
+            super(itemView);
+            messageTextView = (TextView) itemView.findViewById(R.id.messageTextView);
+        }
+
+        @Override
+        void bind(FriendlyMessage message) {
+            super.bind(message);
             messageTextView.setText(message.getText());
         }
-        authorTextView.setText(message.getName());
+    }
+
+    static class PhotoMessageViewHolder extends MessageViewHolder {
+        final ImageView photoImageView;
+        final MessageAdapter adapter;
+
+        PhotoMessageViewHolder(View itemView, MessageAdapter adapter) {
+            super(itemView);
+            photoImageView = (ImageView) itemView.findViewById(R.id.photoImageView);
+            this.adapter = adapter;
+        }
+
+        @Override
+        void bind(FriendlyMessage message) {
+            super.bind(message);
+            photoRequest(photoImageView.getContext(), message, adapter.mPhotoSize)
+                    .listener(adapter.mImageLoadStats.newRequestListener())
+                    .into(photoImageView);
+        }
+
+        //Stop a pending load so a recycled row doesn't show the previous photo.
+        @Override
+        void unbind() {
+            Glide.clear(photoImageView);
+        }
+    }
 
-        return convertView;
+    private static class MessageDiffCallback extends DiffUtil.Callback {
+        private final List<FriendlyMessage> mOldMessages;
+        private final List<FriendlyMessage> mNewMessages;
+
+        MessageDiffCallback(List<FriendlyMessage> oldMessages, List<FriendlyMessage> newMessages) {
+            mOldMessages = oldMessages;
+            mNewMessages = newMessages;
+        }
+
+        @Override
+        public int getOldListSize() {
+            return mOldMessages.size();
+        }
+
+        @Override
+        public int getNewListSize() {
+            return mNewMessages.size();
+        }
+
+        @Override
+        public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+            return TextUtils.equals(MessageIndex.keyAt(mOldMessages, oldItemPosition),
+                    MessageIndex.keyAt(mNewMessages, newItemPosition));
+        }
+
+        @Override
+        public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+            //Compact lists compare their packed entries instead of building both messages.
+            if (mOldMessages instanceof CompactMessageList && mNewMessages instanceof CompactMessageList) {
+                return ((CompactMessageList) mOldMessages).contentEquals(oldItemPosition,
+                        (CompactMessageList) mNewMessages, newItemPosition);
+            }
+            FriendlyMessage oldMessage = mOldMessages.get(oldItemPosition);
+            FriendlyMessage newMessage = mNewMessages.get(newItemPosition);
+            return oldMessage == newMessage
+                    || (TextUtils.equals(oldMessage.getText(), newMessage.getText())
+                    && TextUtils.equals(oldMessage.getName(), newMessage.getName())
+                    && TextUtils.equals(oldMessage.getPhotoUrl(), newMessage.getPhotoUrl())
+                    && TextUtils.equals(oldMessage.getThumbnailUrl(), newMessage.getThumbnailUrl())
+                    && oldMessage.getStatus() == newMessage.getStatus());
+        }
     }
 }
@@ -0,0 +1,76 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat;
+
+import java.util.List;
+
+/**
+ * Finds messages by push key in a list kept in key order.
+ * <p/>
+ * Push keys start with their creation time and sort chronologically, so a list ordered by key is
+ * also ordered by time. As long as messages are inserted with insert(), the list itself is the
+ * index: a binary search finds the position of a key in log time, without a separate map whose
+ * positions would all shift whenever a page is prepended or a message is removed.
+ */
+public final class MessageIndex {
+
+    private MessageIndex() {
+    }
+
+    /*Position of the message with key, or (-(insertion point) - 1) like Collections.binarySearch().*/
+    public static int indexOf(List<FriendlyMessage> messages, String key) {
+        int low = 0;
+        int high = messages.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = keyAt(messages, mid).compareTo(key);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    /*Add a message in key order, or replace the one with the same key. Returns its position.*/
+    public static int insert(List<FriendlyMessage> messages, FriendlyMessage message) {
+        //New messages almost always come last, so check that before searching.
+        int size = messages.size();
+        if (size == 0 || keyAt(messages, size - 1).compareTo(message.getKey()) < 0) {
+            messages.add(message);
+            return size;
+        }
+        int index = indexOf(messages, message.getKey());
+        if (index >= 0) {
+            messages.set(index, message);
+            return index;
+        }
+        index = -index - 1;
+        messages.add(index, message);
+        return index;
+    }
+
+    /*The key at index, without building the message when the list is compact.*/
+    public static String keyAt(List<FriendlyMessage> messages, int index) {
+        if (messages instanceof CompactMessageList) {
+            return ((CompactMessageList) messages).keyAt(index);
+        }
+        return messages.get(index).getKey();
+    }
+}
@@ -0,0 +1,380 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Sits between the database listener and the adapter: decodes children off the main thread and
+ * coalesces bursts of added, edited and removed messages.
+ * <p/>
+ * When a listener is attached, every existing child is delivered back to back. Children are
+ * handed to a single worker thread, which decodes them in the order they arrived, so push-key
+ * order is kept. Decoded messages are collected and handed to the {@link Sink} as one unmodifiable
+ * batch through the delivery executor. On the main thread that is the next frame, or a fixed
+ * interval when one is configured. While a delivery is pending, newly decoded messages join it.
+ * A delivery carries at most maxBatchSize added messages, so a burst of tens of thousands, e.g. a
+ * large room opened from scratch, is spread over several frames instead of stalling one. The rest
+ * waits for the next delivery.
+ * Edits and removals go through the same worker, so they never overtake the add of their message.
+ * They are held back until all the adds before them are delivered.
+ * add(), change(), remove(), addOlderPage(), reloadRange() and clear() must be called on the
+ * delivery thread.
+ */
+public class MessageIngestBuffer {
+
+    //Flush on the next frame instead of after a fixed interval.
+    public static final long FLUSH_EVERY_FRAME = 0;
+    //Inserting and relaying out this many messages fits comfortably in a frame on a low-end phone.
+    public static final int DEFAULT_MAX_BATCH_SIZE = 200;
+
+    public interface Sink {
+        //Newly added messages, oldest first.
+        void onMessagesAdded(List<FriendlyMessage> messages);
+
+        //A page of messages older than all the others, oldest first.
+        void onOlderPageAdded(List<FriendlyMessage> messages);
+
+        //Every message from fromKey to toKey as the database has it now, oldest first.
+        void onRangeReloaded(String fromKey, String toKey, List<FriendlyMessage> messages);
+
+        //Edited messages and the keys of removed ones. Called after onMessagesAdded() for the same batch.
+        void onMessagesUpdated(List<FriendlyMessage> changed, List<String> removedKeys);
+    }
+
+    private final Sink mSink;
+    private final Executor mDeliveryExecutor;
+    //One worker for the buffers of all rooms, so a room doesn't keep a thread once it is closed.
+    private static final Executor sWorker = Executors.newSingleThreadExecutor();
+    //Only used on the worker thread.
+    private final FriendlyMessageCodec mCodec = new FriendlyMessageCodec();
+    private final PerfStats mPerfStats = PerfStats.getInstance();
+
+    private final Object mLock = new Object();
+    //Guarded by mLock.
+    private List<FriendlyMessage> mDecoded = new ArrayList<>();
+    //Only the latest edit of a message matters.
+    private Map<String, FriendlyMessage> mChanged = new LinkedHashMap<>();
+    private Set<String> mRemoved = new LinkedHashSet<>();
+    private boolean mDeliveryScheduled;
+    private volatile int mMaxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+    //Incremented by clear(), so snapshots added before it are dropped.
+    private int mGeneration;
+
+    //Counters to compare against one update per message: how many batches reached the sink
+    //(each one is a single relayout), how many messages they carried, the delivery-thread time
+    //spent applying them and the worker time spent decoding.
+    private long mFlushCount;
+    private long mFlushedMessageCount;
+    private long mFlushTimeNanos;
+    private volatile long mDecodeTimeNanos;
+
+    private final Runnable mDeliverRunnable = new Runnable() {
+        @Override
+        public void run() {
+            deliver(mMaxBatchSize);
+        }
+    };
+
+    /*Buffer that delivers to the main thread, once per frame or after flushIntervalMs.*/
+    public static MessageIngestBuffer onMainThread(Sink sink, final long flushIntervalMs) {
+        final Handler handler = new Handler(Looper.getMainLooper());
+        return new MessageIngestBuffer(sink, new Executor() {
+            @Override
+            public void execute(final Runnable runnable) {
+                if (flushIntervalMs != FLUSH_EVERY_FRAME) {
+                    handler.postDelayed(runnable, flushIntervalMs);
+                    return;
+                }
+                //Choreographer callbacks must be posted from the main thread.
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        Choreographer.getInstance().postFrameCallback(new Choreographer.FrameCallback() {
+                            @Override
+                            public void doFrame(long frameTimeNanos) {
+                                runnable.run();
+                            }
+                        });
+                    }
+                });
+            }
+        });
+    }
+
+    public MessageIngestBuffer(Sink sink, Executor deliveryExecutor) {
+        mSink = sink;
+        mDeliveryExecutor = deliveryExecutor;
+    }
+
+    /*Most added messages handed to the sink per delivery.*/
+    public void setMaxBatchSize(int maxBatchSize) {
+        mMaxBatchSize = maxBatchSize;
+    }
+
+    public void add(MessageSource.Child child) {
+        add(child, null, null);
+    }
+
+    /*Same as add(Child), with the key and the value getValue() would return.*/
+    public void add(String key, Object value) {
+        add(null, key, value);
+    }
+
+    private void add(final MessageSource.Child child, final String key, final Object value) {
+        final int generation = currentGeneration();
+        sWorker.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                FriendlyMessage message = decode(child, key, value);
+                recordDecode(start);
+                synchronized (mLock) {
+                    if (generation != mGeneration) {
+                        return;
+                    }
+                    mDecoded.add(message);
+                }
+                scheduleDelivery();
+            }
+        });
+    }
+
+    public void change(MessageSource.Child child) {
+        change(child, null, null);
+    }
+
+    public void change(String key, Object value) {
+        change(null, key, value);
+    }
+
+    private void change(final MessageSource.Child child, final String key, final Object value) {
+        final int generation = currentGeneration();
+        sWorker.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                FriendlyMessage message = decode(child, key, value);
+                recordDecode(start);
+                synchronized (mLock) {
+                    if (generation != mGeneration) {
+                        return;
+                    }
+                    mChanged.put(message.getKey(), message);
+                }
+                scheduleDelivery();
+            }
+        });
+    }
+
+    public void remove(final String key) {
+        final int generation = currentGeneration();
+        sWorker.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mLock) {
+                    if (generation != mGeneration) {
+                        return;
+                    }
+                    mChanged.remove(key);
+                    mRemoved.add(key);
+                }
+                scheduleDelivery();
+            }
+        });
+    }
+
+    //Called on the worker thread, getValue() converts the child there.
+    private FriendlyMessage decode(MessageSource.Child child, String key, Object value) {
+        return child != null ? mCodec.decode(child.getKey(), child.getValue()) : mCodec.decode(key, value);
+    }
+
+    //Called on the worker thread. The histogram gets a sample of the decodes, the total gets all of them.
+    private void recordDecode(long startNanos) {
+        long nanos = System.nanoTime() - startNanos;
+        mDecodeTimeNanos += nanos;
+        if (mPerfStats.isSampled()) {
+            mPerfStats.decode.record(nanos / 1000);
+        }
+    }
+
+    //Called on the worker thread.
+    private void scheduleDelivery() {
+        synchronized (mLock) {
+            if (mDeliveryScheduled) {
+                return;
+            }
+            mDeliveryScheduled = true;
+        }
+        mDeliveryExecutor.execute(mDeliverRunnable);
+    }
+
+    /*Decode an older page, skipping the child with skipKey, and deliver it on its own.*/
+    public void addOlderPage(final List<MessageSource.Child> page, final String skipKey) {
+        final int generation = currentGeneration();
+        sWorker.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                final List<FriendlyMessage> messages = new ArrayList<>();
+                for (MessageSource.Child child : page) {
+                    if (!child.getKey().equals(skipKey)) {
+                        messages.add(mCodec.decode(child.getKey(), child.getValue()));
+                    }
+                }
+                mDecodeTimeNanos += System.nanoTime() - start;
+                if (messages.isEmpty()) {
+                    return;
+                }
+                mDeliveryExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation == currentGeneration()) {
+                            mSink.onOlderPageAdded(Collections.unmodifiableList(messages));
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /*Decode a range of messages read again, see MessagePager.reload(), and deliver it on its own.*/
+    public void reloadRange(final String fromKey, final String toKey, final List<MessageSource.Child> children) {
+        final int generation = currentGeneration();
+        sWorker.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                final List<FriendlyMessage> messages = new ArrayList<>(children.size());
+                for (MessageSource.Child child : children) {
+                    messages.add(mCodec.decode(child.getKey(), child.getValue()));
+                }
+                mDecodeTimeNanos += System.nanoTime() - start;
+                mDeliveryExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation == currentGeneration()) {
+                            mSink.onRangeReloaded(fromKey, toKey, Collections.unmodifiableList(messages));
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /*Hand everything decoded so far to the sink right away, in one batch however large.*/
+    public void flush() {
+        deliver(Integer.MAX_VALUE);
+    }
+
+    /*Drop everything that hasn't been delivered yet, e.g. when the listener is detached.*/
+    public void clear() {
+        synchronized (mLock) {
+            mGeneration++;
+            mDecoded = new ArrayList<>();
+            mChanged = new LinkedHashMap<>();
+            mRemoved = new LinkedHashSet<>();
+        }
+    }
+
+    private int currentGeneration() {
+        synchronized (mLock) {
+            return mGeneration;
+        }
+    }
+
+    private void deliver(int maxBatchSize) {
+        List<FriendlyMessage> batch;
+        List<FriendlyMessage> changed;
+        List<String> removed;
+        boolean more = false;
+        synchronized (mLock) {
+            mDeliveryScheduled = false;
+            if (mDecoded.isEmpty() && mChanged.isEmpty() && mRemoved.isEmpty()) {
+                return;
+            }
+            if (mDecoded.size() > maxBatchSize) {
+                //Deliver the oldest ones, the rest goes with the next delivery.
+                batch = new ArrayList<>(mDecoded.subList(0, maxBatchSize));
+                mDecoded.subList(0, maxBatchSize).clear();
+                changed = Collections.emptyList();
+                removed = Collections.emptyList();
+                mDeliveryScheduled = true;
+                more = true;
+            } else {
+                batch = mDecoded;
+                changed = new ArrayList<>(mChanged.values());
+                removed = new ArrayList<>(mRemoved);
+                mDecoded = new ArrayList<>();
+                mChanged = new LinkedHashMap<>();
+                mRemoved = new LinkedHashSet<>();
+            }
+        }
+        if (more) {
+            mDeliveryExecutor.execute(mDeliverRunnable);
+        }
+
+        //Like the decodes, the histogram only gets the sampled deliveries, the total gets all of them.
+        long sampleStart = mPerfStats.startTimer();
+        long start = System.nanoTime();
+        if (!batch.isEmpty()) {
+            mSink.onMessagesAdded(Collections.unmodifiableList(batch));
+        }
+        if (!changed.isEmpty() || !removed.isEmpty()) {
+            mSink.onMessagesUpdated(Collections.unmodifiableList(changed), Collections.unmodifiableList(removed));
+        }
+        mFlushTimeNanos += System.nanoTime() - start;
+        mPerfStats.recordSince(mPerfStats.ingestBatch, sampleStart);
+        mFlushCount++;
+        mFlushedMessageCount += batch.size() + changed.size() + removed.size();
+    }
+
+    public long getFlushCount() {
+        return mFlushCount;
+    }
+
+    public long getFlushedMessageCount() {
+        return mFlushedMessageCount;
+    }
+
+    public long getFlushTimeNanos() {
+        return mFlushTimeNanos;
+    }
+
+    public long getDecodeTimeNanos() {
+        return mDecodeTimeNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "MessageIngestBuffer{messages=" + mFlushedMessageCount
+                + ", batches=" + mFlushCount
+                + ", mainThreadMs=" + mFlushTimeNanos / 1000000
+                + ", workerDecodeMs=" + mDecodeTimeNanos / 1000000 + "}";
+    }
+}
@@ -0,0 +1,922 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Loads the messages of a room one page at a time instead of streaming the whole history.
+ * <p/>
+ * Only the current day's bucket of the room is listened to (see {@link Room}). Its newest page is
+ * fetched first. A live listener is then attached from the oldest key of that page onwards, so new
+ * messages keep arriving in real-time. When the day changes, the next
+ * bucket is listened to as well. Older pages are fetched on demand by push key, and
+ * once a bucket is exhausted the bucket index gives the previous non-empty day. A page never spans
+ * two buckets, so it can be shorter than the page size. When messages are already stored on the
+ * device, only the ones after the last stored key are listened for. If the last stored key is from
+ * before yesterday, the messages since are read forward page by page, bucket by bucket, until the
+ * live window is reached, so nothing between the two is missing. reload() reads a range of stored
+ * messages again, to find out what was edited or deleted while nobody listened. It is meant for the
+ * newest ones: for the older ones, readChanges() reads the change markers written since (see
+ * {@link Room}) and reloadMessages() reads only the messages they name. loadAround() reads the page
+ * ending at a given message, e.g. a search result, straight from its bucket. Older pages then continue
+ * from there, and the gap between that page and the messages held before is filled forward a page at a
+ * time by loadGap(), when the user scrolls towards it. The reads go through a {@link MessageSource}, and
+ * the current day is the server's, not the device's. Children whose key is not a push key, e.g.
+ * written by hand, can't be placed in a bucket: they are skipped, and only used as page bounds.
+ */
+public class MessagePager {
+
+    private static final String TAG = "MessagePager";
+
+    public static final int DEFAULT_PAGE_SIZE = 50;
+
+    //Buckets listened to at once: the current day, and the previous one for a while after midnight.
+    private static final int MAX_LIVE_BUCKETS = 2;
+    //Attach to the next bucket a bit after midnight, when messages have started going there.
+    private static final long ROLLOVER_DELAY_MS = 1000;
+
+    /*Children are handed over undecoded, so they can be decoded off the main thread.*/
+    public interface Listener {
+        //Called for every message at or after the start of the live window, in key order.
+        void onMessageAdded(MessageSource.Child child);
+
+        //Called with a page older than the newest message, oldest message first: the one before the oldest
+        //message, the one around a message loadAround() jumped to, or one in the gap after it. Its child
+        //with skipKey, if any, is already held by the caller.
+        void onOlderPageLoaded(List<MessageSource.Child> page, String skipKey);
+
+        //Called when a message in the live window was edited.
+        void onMessageChanged(MessageSource.Child child);
+
+        //Called when a message in the live window was deleted, e.g. by a moderator.
+        void onMessageRemoved(String key);
+
+        //Called with every message from fromKey to toKey, oldest first, after reload(). After
+        //reloadMessages(), called for each message with fromKey and toKey its key.
+        void onRangeReloaded(String fromKey, String toKey, List<MessageSource.Child> children);
+
+        //Called after readChanges() with the keys of the messages changed since, and the key of the
+        //newest change marker, to read from next time. It is null if there are no markers at all.
+        void onChangesRead(Set<String> keys, String newestChangeKey);
+
+        void onCancelled(Exception error);
+    }
+
+    private final MessageSource mSource;
+    private final Room mRoom;
+    private final Listener mListener;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private int mPageSize;
+
+    //Live listeners by bucket, oldest bucket first.
+    private final List<String> mLiveBuckets = new ArrayList<>();
+    private final List<MessageSource.Subscription> mLiveSubscriptions = new ArrayList<>();
+    private MessageSource.Subscription mFirstPageSubscription;
+    //The page being read while catching up on the days since the last stored message.
+    private MessageSource.Subscription mCatchUpSubscription;
+    //The page being read by reload().
+    private MessageSource.Subscription mReloadSubscription;
+    //The messages being read by reloadMessages().
+    private final List<MessageSource.Subscription> mMessageReloadSubscriptions = new ArrayList<>();
+    //The page of change markers being read by readChanges().
+    private MessageSource.Subscription mChangesSubscription;
+
+    //Key of the oldest message currently held by the caller, the bucket it was read from, and the
+    //bucket older pages are read from.
+    private String mOldestKey;
+    private String mOldestKeyBucket;
+    private String mOldestBucket;
+    private boolean mLoadingOlder;
+    private boolean mReachedStart;
+    //Key of the stored message the live window was resumed after.
+    private String mSkipKey;
+    //How many more older messages to load without waiting for the user to scroll, when the newest bucket
+    //alone doesn't fill a page.
+    private int mFillRemaining;
+    //After loadAround(), the caller holds nothing between mGapFromKey and mGapToKey, both exclusive.
+    //mGapFromKey was read from mGapFromKeyBucket, the gap is read on from mGapBucket. Null without a gap.
+    private String mGapFromKey;
+    private String mGapFromKeyBucket;
+    private String mGapBucket;
+    private String mGapToKey;
+    private boolean mLoadingGap;
+    //Incremented by stop(), so pages requested before are ignored.
+    private int mGeneration;
+    //Incremented by stop() and onOldestDropped(), so older pages requested before are ignored. The
+    //first page, the catch-up and the reload still line up after a trim, they only check mGeneration.
+    private int mOlderGeneration;
+
+    private final Runnable mRolloverRunnable = new Runnable() {
+        @Override
+        public void run() {
+            String bucket = currentBucket();
+            if (!mLiveBuckets.contains(bucket)) {
+                attachLiveListener(bucket, null);
+            }
+            scheduleRollover();
+        }
+    };
+
+    public MessagePager(MessageSource source, Room room, int pageSize, Listener listener) {
+        mSource = source;
+        mRoom = room;
+        mPageSize = pageSize;
+        mListener = listener;
+    }
+
+    public int getPageSize() {
+        return mPageSize;
+    }
+
+    public void setPageSize(int pageSize) {
+        mPageSize = pageSize;
+    }
+
+    public boolean isStarted() {
+        return !mLiveSubscriptions.isEmpty() || mFirstPageSubscription != null || mCatchUpSubscription != null;
+    }
+
+    public boolean hasReachedStart() {
+        return mReachedStart;
+    }
+
+    /*Fetch the newest page of the current bucket once to find where the live window begins, then listen from there.*/
+    public void start() {
+        if (isStarted()) {
+            return;
+        }
+        mReachedStart = false;
+        final String bucket = currentBucket();
+        mOldestBucket = bucket;
+        final int generation = mGeneration;
+        mFirstPageSubscription = mSource.getLast(mRoom.bucketPath(bucket), null, mPageSize,
+                new MessageSource.PageCallback() {
+                    @Override
+                    public void onPage(List<MessageSource.Child> children) {
+                        if (generation != mGeneration) {
+                            //stopped before the first page arrived.
+                            return;
+                        }
+                        mFirstPageSubscription = null;
+                        String firstKey = children.isEmpty() ? null : children.get(0).getKey();
+                        attachLiveListener(bucket, firstKey);
+                        scheduleRollover();
+                        if (children.size() < mPageSize) {
+                            //Today is quiet, fill the first page from the previous days.
+                            mOldestKey = firstKey;
+                            mOldestKeyBucket = bucket;
+                            mFillRemaining = mPageSize - children.size();
+                            mLoadingOlder = true;
+                            findPreviousBucket(bucket, mOlderGeneration);
+                        }
+                    }
+
+                    @Override
+                    public void onCancelled(Exception error) {
+                        if (generation != mGeneration) {
+                            return;
+                        }
+                        mFirstPageSubscription = null;
+                        mListener.onCancelled(error);
+                    }
+                });
+    }
+
+    /*Resume after messages that are already stored on the device: only listen for the ones after
+    lastKey. oldestKey is the oldest stored message, older pages are fetched from there.*/
+    public void startAfter(String lastKey, String oldestKey) {
+        if (isStarted()) {
+            return;
+        }
+        mReachedStart = false;
+        mOldestKey = oldestKey;
+        mOldestKeyBucket = Room.bucketOf(oldestKey);
+        mOldestBucket = mOldestKeyBucket;
+        catchUp(Room.bucketOf(lastKey), lastKey, mGeneration);
+    }
+
+    /*Deliver the messages of bucket after afterKey (all of them if null), then those of the later
+    buckets. Yesterday's and today's buckets are listened to instead of read.*/
+    private void catchUp(final String bucket, final String afterKey, final int generation) {
+        mCatchUpSubscription = null;
+        String current = currentBucket();
+        if (bucket.compareTo(Room.previousBucket(current)) >= 0) {
+            mSkipKey = afterKey;
+            attachLiveListener(bucket, afterKey);
+            if (!bucket.equals(current)) {
+                attachLiveListener(current, null);
+            }
+            scheduleRollover();
+            return;
+        }
+        //startAt() is inclusive, so ask for one extra message and skip the one already delivered.
+        mCatchUpSubscription = mSource.getFirst(mRoom.bucketPath(bucket), afterKey,
+                afterKey != null ? mPageSize + 1 : mPageSize, new MessageSource.PageCallback() {
+                    @Override
+                    public void onPage(List<MessageSource.Child> children) {
+                        if (generation != mGeneration) {
+                            return;
+                        }
+                        int count = 0;
+                        String newestKey = afterKey;
+                        for (MessageSource.Child child : children) {
+                            if (!child.getKey().equals(afterKey)) {
+                                if (isValid(child)) {
+                                    mListener.onMessageAdded(child);
+                                }
+                                newestKey = child.getKey();
+                                count++;
+                            }
+                        }
+                        if (count < mPageSize) {
+                            //Nothing newer in this bucket.
+                            findNextBucket(bucket, generation);
+                        } else {
+                            catchUp(bucket, newestKey, generation);
+                        }
+                    }
+
+                    @Override
+                    public void onCancelled(Exception error) {
+                        if (generation == mGeneration) {
+                            mCatchUpSubscription = null;
+                            mListener.onCancelled(error);
+                        }
+                    }
+                });
+    }
+
+    /*Look up the oldest non-empty bucket after this one in the bucket index. startAt() is inclusive,
+    so ask for two and take the one that is newer. Without one, the current bucket is next.*/
+    private void findNextBucket(final String bucket, final int generation) {
+        mCatchUpSubscription = mSource.getFirst(mRoom.bucketsPath(), bucket, 2, new MessageSource.PageCallback() {
+            @Override
+            public void onPage(List<MessageSource.Child> children) {
+                if (generation != mGeneration) {
+                    return;
+                }
+                String next = null;
+                for (MessageSource.Child child : children) {
+                    if (next == null && child.getKey().compareTo(bucket) > 0) {
+                        next = child.getKey();
+                    }
+                }
+                catchUp(next != null ? next : currentBucket(), null, generation);
+            }
+
+            @Override
+            public void onCancelled(Exception error) {
+                if (generation == mGeneration) {
+                    mCatchUpSubscription = null;
+                    mListener.onCancelled(error);
+                }
+            }
+        });
+    }
+
+    private void attachLiveListener(final String bucket, String firstKey) {
+        MessageSource.Subscription subscription = mSource.listen(mRoom.bucketPath(bucket), firstKey,
+                new MessageSource.ChildListener() {
+                    @Override
+                    public void onChildAdded(MessageSource.Child child) {
+                        //startAt() is inclusive, the message we resumed after is already there.
+                        if ((mSkipKey != null && mSkipKey.equals(child.getKey())) || !isValid(child)) {
+                            return;
+                        }
+                        if (mOldestKey == null) {
+                            mOldestKey = child.getKey();
+                            mOldestKeyBucket = bucket;
+                        }
+                        mListener.onMessageAdded(child);
+                    }
+
+                    @Override
+                    public void onChildChanged(MessageSource.Child child) {
+                        if (isValid(child)) {
+                            mListener.onMessageChanged(child);
+                        }
+                    }
+
+                    @Override
+                    public void onChildRemoved(String key) {
+                        mListener.onMessageRemoved(key);
+                    }
+
+                    @Override
+                    public void onCancelled(Exception error) {
+                        mListener.onCancelled(error);
+                    }
+                });
+        mLiveBuckets.add(bucket);
+        mLiveSubscriptions.add(subscription);
+        //Yesterday's bucket doesn't get new messages any more.
+        if (mLiveSubscriptions.size() > MAX_LIVE_BUCKETS) {
+            mLiveSubscriptions.remove(0).remove();
+            mLiveBuckets.remove(0);
+        }
+    }
+
+    private void scheduleRollover() {
+        long now = mSource.getServerTimeMs();
+        mHandler.removeCallbacks(mRolloverRunnable);
+        mHandler.postDelayed(mRolloverRunnable, Room.nextBucketStartMs(now) - now + ROLLOVER_DELAY_MS);
+    }
+
+    /*The bucket messages sent now go to. Push keys are made from the server time, so go by it too.*/
+    private String currentBucket() {
+        return Room.bucketAt(mSource.getServerTimeMs());
+    }
+
+    public void stop() {
+        if (mFirstPageSubscription != null) {
+            mFirstPageSubscription.remove();
+            mFirstPageSubscription = null;
+        }
+        if (mCatchUpSubscription != null) {
+            mCatchUpSubscription.remove();
+            mCatchUpSubscription = null;
+        }
+        if (mReloadSubscription != null) {
+            mReloadSubscription.remove();
+            mReloadSubscription = null;
+        }
+        for (MessageSource.Subscription subscription : mMessageReloadSubscriptions) {
+            subscription.remove();
+        }
+        mMessageReloadSubscriptions.clear();
+        if (mChangesSubscription != null) {
+            mChangesSubscription.remove();
+            mChangesSubscription = null;
+        }
+        for (MessageSource.Subscription subscription : mLiveSubscriptions) {
+            subscription.remove();
+        }
+        mLiveBuckets.clear();
+        mLiveSubscriptions.clear();
+        mHandler.removeCallbacks(mRolloverRunnable);
+        mOldestKey = null;
+        mOldestKeyBucket = null;
+        mOldestBucket = null;
+        mSkipKey = null;
+        mLoadingOlder = false;
+        mFillRemaining = 0;
+        clearGap();
+        mGeneration++;
+        mOlderGeneration++;
+    }
+
+    /*Read the messages from fromKey to toKey, both inclusive, again and hand them over in one go.
+    They are read forward a page at a time, bucket by bucket, like when catching up.*/
+    public void reload(String fromKey, String toKey) {
+        if (mReloadSubscription != null) {
+            mReloadSubscription.remove();
+        }
+        reloadPage(Room.bucketOf(fromKey), fromKey, false, fromKey, toKey,
+                new ArrayList<MessageSource.Child>(), mGeneration);
+    }
+
+    /*Read a page of bucket from startKey, skipping startKey itself if it was in the previous page.*/
+    private void reloadPage(final String bucket, final String startKey, final boolean skipStart,
+                            final String fromKey, final String toKey, final List<MessageSource.Child> reloaded,
+                            final int generation) {
+        mReloadSubscription = mSource.getFirst(mRoom.bucketPath(bucket), startKey,
+                skipStart ? mPageSize + 1 : mPageSize, new MessageSource.PageCallback() {
+                    @Override
+                    public void onPage(List<MessageSource.Child> children) {
+                        if (generation != mGeneration) {
+                            return;
+                        }
+                        int count = 0;
+                        String newestKey = null;
+                        for (MessageSource.Child child : children) {
+                            if (skipStart && child.getKey().equals(startKey)) {
+                                continue;
+                            }
+                            count++;
+                            newestKey = child.getKey();
+                            if (newestKey.compareTo(toKey) <= 0 && isValid(child)) {
+                                reloaded.add(child);
+                            }
+                        }
+                        if (newestKey != null && newestKey.compareTo(toKey) >= 0) {
+                            finishReload(fromKey, toKey, reloaded);
+                        } else if (count == mPageSize) {
+                            reloadPage(bucket, newestKey, true, fromKey, toKey, reloaded, generation);
+                        } else if (bucket.equals(Room.bucketOf(toKey))) {
+                            finishReload(fromKey, toKey, reloaded);
+                        } else {
+                            reloadNextBucket(bucket, fromKey, toKey, reloaded, generation);
+                        }
+                    }
+
+                    @Override
+                    public void onCancelled(Exception error) {
+                        if (generation == mGeneration) {
+                            mReloadSubscription = null;
+                            mListener.onCancelled(error);
+                        }
+                    }
+                });
+    }
+
+    private void reloadNextBucket(final String bucket, final String fromKey, final String toKey,
+                                  final List<MessageSource.Child> reloaded, final int generation) {
+        mReloadSubscription = mSource.getFirst(mRoom.bucketsPath(), bucket, 2, new MessageSource.PageCallback() {
+            @Override
+            public void onPage(List<MessageSource.Child> children) {
+                if (generation != mGeneration) {
+                    return;
+                }
+                String next = null;
+                for (MessageSource.Child child : children) {
+                    if (next == null && child.getKey().compareTo(bucket) > 0) {
+                        next = child.getKey();
+                    }
+                }
+                if (next == null || next.compareTo(Room.bucketOf(toKey)) > 0) {
+                    finishReload(fromKey, toKey, reloaded);
+                } else {
+                    reloadPage(next, null, false, fromKey, toKey, reloaded, generation);
+                }
+            }
+
+            @Override
+            public void onCancelled(Exception error) {
+                if (generation == mGeneration) {
+                    mReloadSubscription = null;
+                    mListener.onCancelled(error);
+                }
+            }
+        });
+    }
+
+    private void finishReload(String fromKey, String toKey, List<MessageSource.Child> reloaded) {
+        mReloadSubscription = null;
+        mListener.onRangeReloaded(fromKey, toKey, reloaded);
+    }
+
+    /*Read these messages again, each on its own, e.g. the ones named by change markers. Unlike
+    reload(), this doesn't read the messages in between.*/
+    public void reloadMessages(List<String> keys) {
+        final int generation = mGeneration;
+        for (final String key : keys) {
+            final MessageSource.Subscription[] subscription = new MessageSource.Subscription[1];
+            subscription[0] = mSource.getFirst(mRoom.bucketPath(Room.bucketOf(key)), key, 1,
+                    new MessageSource.PageCallback() {
+                        @Override
+                        public void onPage(List<MessageSource.Child> children) {
+                            if (generation != mGeneration) {
+                                return;
+                            }
+                            mMessageReloadSubscriptions.remove(subscription[0]);
+                            //startAt() gives the next message if this one was deleted.
+                            List<MessageSource.Child> reloaded = new ArrayList<>(1);
+                            for (MessageSource.Child child : children) {
+                                if (child.getKey().equals(key)) {
+                                    reloaded.add(child);
+                                }
+                            }
+                            mListener.onRangeReloaded(key, key, reloaded);
+                        }
+
+                        @Override
+                        public void onCancelled(Exception error) {
+                            if (generation == mGeneration) {
+                                mMessageReloadSubscriptions.remove(subscription[0]);
+                                mListener.onCancelled(error);
+                            }
+                        }
+                    });
+            mMessageReloadSubscriptions.add(subscription[0]);
+        }
+    }
+
+    /*Read the change markers after afterChangeKey and hand over the keys of the messages they name.
+    Without afterChangeKey, only the key of the newest marker is read, to start from next time.*/
+    public void readChanges(String afterChangeKey) {
+        if (mChangesSubscription != null) {
+            mChangesSubscription.remove();
+        }
+        final int generation = mGeneration;
+        if (afterChangeKey == null) {
+            mChangesSubscription = mSource.getLast(mRoom.changesPath(), null, 1, new MessageSource.PageCallback() {
+                @Override
+                public void onPage(List<MessageSource.Child> children) {
+                    if (generation != mGeneration) {
+                        return;
+                    }
+                    mChangesSubscription = null;
+                    mListener.onChangesRead(Collections.<String>emptySet(),
+                            children.isEmpty() ? null : children.get(0).getKey());
+                }
+
+                @Override
+                public void onCancelled(Exception error) {
+                    if (generation == mGeneration) {
+                        mChangesSubscription = null;
+                        mListener.onCancelled(error);
+                    }
+                }
+            });
+            return;
+        }
+        readChangesPage(afterChangeKey, new LinkedHashSet<String>(), generation);
+    }
+
+    /*Markers are keyed by push key, so they are read forward in the order they were written.
+    startAt() is inclusive, so ask for one extra marker and skip the one already read.*/
+    private void readChangesPage(final String afterChangeKey, final Set<String> keys, final int generation) {
+        mChangesSubscription = mSource.getFirst(mRoom.changesPath(), afterChangeKey, mPageSize + 1,
+                new MessageSource.PageCallback() {
+                    @Override
+                    public void onPage(List<MessageSource.Child> children) {
+                        if (generation != mGeneration) {
+                            return;
+                        }
+                        int count = 0;
+                        String newestChangeKey = afterChangeKey;
+                        for (MessageSource.Child child : children) {
+                            if (child.getKey().equals(afterChangeKey)) {
+                                continue;
+                            }
+                            count++;
+                            newestChangeKey = child.getKey();
+                            Object value = child.getValue();
+                            Object key = value instanceof Map ? ((Map<?, ?>) value).get("key") : null;
+                            if (key instanceof String && Room.isPushKey((String) key)) {
+                                keys.add((String) key);
+                            }
+                        }
+                        if (count == mPageSize) {
+                            readChangesPage(newestChangeKey, keys, generation);
+                        } else {
+                            mChangesSubscription = null;
+                            mListener.onChangesRead(keys, newestChangeKey);
+                        }
+                    }
+
+                    @Override
+                    public void onCancelled(Exception error) {
+                        if (generation == mGeneration) {
+                            mChangesSubscription = null;
+                            mListener.onCancelled(error);
+                        }
+                    }
+                });
+    }
+
+    /*Jump to the message with this key, older than all the ones held: read the page of its bucket
+    ending at it, or starting after it if it was deleted and was the first of its day. Older pages
+    are then loaded from there, and the messages between it and the ones held before by loadGap().
+    A gap left by an earlier jump must have been dropped first, see getGapEndKey().*/
+    public void loadAround(final String key) {
+        if (!Room.isPushKey(key)) {
+            return;
+        }
+        clearGap();
+        mOlderGeneration++;
+        mLoadingOlder = true;
+        mFillRemaining = 0;
+        final int generation = mOlderGeneration;
+        final String bucket = Room.bucketOf(key);
+        final String gapToKey = mOldestKey;
+        mSource.getLast(mRoom.bucketPath(bucket), key, mPageSize, new MessageSource.PageCallback() {
+            @Override
+            public void onPage(List<MessageSource.Child> children) {
+                if (generation != mOlderGeneration) {
+                    return;
+                }
+                if (!children.isEmpty()) {
+                    onJumped(bucket, children, gapToKey);
+                    return;
+                }
+                mSource.getFirst(mRoom.bucketPath(bucket), key, mPageSize, new MessageSource.PageCallback() {
+                    @Override
+                    public void onPage(List<MessageSource.Child> children) {
+                        if (generation == mOlderGeneration) {
+                            onJumped(bucket, children, gapToKey);
+                        }
+                    }
+
+                    @Override
+                    public void onCancelled(Exception error) {
+                        if (generation == mOlderGeneration) {
+                            mLoadingOlder = false;
+                            mListener.onCancelled(error);
+                        }
+                    }
+                });
+            }
+
+            @Override
+            public void onCancelled(Exception error) {
+                if (generation == mOlderGeneration) {
+                    mLoadingOlder = false;
+                    mListener.onCancelled(error);
+                }
+            }
+        });
+    }
+
+    /*Hand over the page jumped to, and page on from it. What is between it and gapToKey is the gap.*/
+    private void onJumped(String bucket, List<MessageSource.Child> children, String gapToKey) {
+        mLoadingOlder = false;
+        List<MessageSource.Child> page = new ArrayList<>(children.size());
+        String newestKey = null;
+        for (MessageSource.Child child : children) {
+            if (gapToKey != null && child.getKey().compareTo(gapToKey) >= 0) {
+                //Reached the messages held already, there is no gap.
+                gapToKey = null;
+                break;
+            }
+            newestKey = child.getKey();
+            if (isValid(child)) {
+                page.add(child);
+            }
+        }
+        if (newestKey == null) {
+            return;
+        }
+        mOldestKey = children.get(0).getKey();
+        mOldestKeyBucket = bucket;
+        mOldestBucket = bucket;
+        mReachedStart = false;
+        if (gapToKey != null) {
+            mGapFromKey = newestKey;
+            mGapFromKeyBucket = bucket;
+            mGapBucket = bucket;
+            mGapToKey = gapToKey;
+        }
+        if (!page.isEmpty()) {
+            mListener.onOlderPageLoaded(page, null);
+        }
+    }
+
+    /*Key of the newest message before the gap left by loadAround(), or null if there is none.*/
+    public String getGapStartKey() {
+        return mGapToKey != null ? mGapFromKey : null;
+    }
+
+    /*Key of the oldest message after the gap left by loadAround(), or null if there is none.*/
+    public String getGapEndKey() {
+        return mGapToKey;
+    }
+
+    public boolean isInGap(String key) {
+        return mGapToKey != null && key.compareTo(mGapFromKey) > 0 && key.compareTo(mGapToKey) < 0;
+    }
+
+    /*Fetch the page right after the start of the gap left by loadAround(), e.g. when the user scrolls
+    towards it. startAt() is inclusive, so ask for one extra message and skip the one we already have.*/
+    public void loadGap() {
+        if (mGapToKey == null || mLoadingGap) {
+            return;
+        }
+        mLoadingGap = true;
+        loadGapPage(mOlderGeneration);
+    }
+
+    private void loadGapPage(final int generation) {
+        final String bucket = mGapBucket;
+        final String afterKey = bucket.equals(mGapFromKeyBucket) ? mGapFromKey : null;
+        mSource.getFirst(mRoom.bucketPath(bucket), afterKey, afterKey != null ? mPageSize + 1 : mPageSize,
+                new MessageSource.PageCallback() {
+                    @Override
+                    public void onPage(List<MessageSource.Child> children) {
+                        if (generation != mOlderGeneration) {
+                            return;
+                        }
+                        int count = 0;
+                        String newestKey = null;
+                        boolean closed = false;
+                        List<MessageSource.Child> page = new ArrayList<>(children.size());
+                        for (MessageSource.Child child : children) {
+                            if (child.getKey().equals(afterKey)) {
+                                continue;
+                            }
+                            if (child.getKey().compareTo(mGapToKey) >= 0) {
+                                closed = true;
+                                break;
+                            }
+                            count++;
+                            newestKey = child.getKey();
+                            if (isValid(child)) {
+                                page.add(child);
+                            }
+                        }
+                        if (newestKey != null) {
+                            mGapFromKey = newestKey;
+                            mGapFromKeyBucket = bucket;
+                        }
+                        if (!page.isEmpty()) {
+                            mListener.onOlderPageLoaded(page, null);
+                        }
+                        if (closed) {
+                            clearGap();
+                        } else if (count == mPageSize) {
+                            mLoadingGap = false;
+                        } else {
+                            //Nothing newer in this bucket.
+                            findNextGapBucket(bucket, generation);
+                        }
+                    }
+
+                    @Override
+                    public void onCancelled(Exception error) {
+                        if (generation == mOlderGeneration) {
+                            mLoadingGap = false;
+                            mListener.onCancelled(error);
+                        }
+                    }
+                });
+    }
+
+    /*Same as findNextBucket(), then read on from the bucket found.*/
+    private void findNextGapBucket(final String bucket, final int generation) {
+        mSource.getFirst(mRoom.bucketsPath(), bucket, 2, new MessageSource.PageCallback() {
+            @Override
+            public void onPage(List<MessageSource.Child> children) {
+                if (generation != mOlderGeneration) {
+                    return;
+                }
+                String next = null;
+                for (MessageSource.Child child : children) {
+                    if (next == null && child.getKey().compareTo(bucket) > 0) {
+                        next = child.getKey();
+                    }
+                }
+                if (next == null) {
+                    //The messages after the gap are gone too.
+                    clearGap();
+                } else {
+                    mGapBucket = next;
+                    loadGapPage(generation);
+                }
+            }
+
+            @Override
+            public void onCancelled(Exception error) {
+                if (generation == mOlderGeneration) {
+                    mLoadingGap = false;
+                    mListener.onCancelled(error);
+                }
+            }
+        });
+    }
+
+    private void clearGap() {
+        mGapFromKey = null;
+        mGapFromKeyBucket = null;
+        mGapBucket = null;
+        mGapToKey = null;
+        mLoadingGap = false;
+    }
+
+    /*Fetch the page right before the oldest message we hold. endAt() is inclusive, so ask for
+    one extra message and skip the one we already have. If the oldest message isn't in the bucket
+    being read, that bucket is read from its end.*/
+    public void loadOlder() {
+        if (mLoadingOlder || mReachedStart || mOldestBucket == null) {
+            return;
+        }
+        mLoadingOlder = true;
+        final int generation = mOlderGeneration;
+        final String bucket = mOldestBucket;
+        final String endKey = mOldestKey != null && bucket.equals(mOldestKeyBucket) ? mOldestKey : null;
+        mSource.getLast(mRoom.bucketPath(bucket), endKey, endKey != null ? mPageSize + 1 : mPageSize,
+                new MessageSource.PageCallback() {
+                    @Override
+                    public void onPage(List<MessageSource.Child> children) {
+                        if (generation != mOlderGeneration) {
+                            //stopped or trimmed while loading, the page no longer lines up.
+                            return;
+                        }
+                        int count = 0;
+                        String oldestKey = null;
+                        List<MessageSource.Child> page = new ArrayList<>(children.size());
+                        for (MessageSource.Child child : children) {
+                            if (!child.getKey().equals(endKey)) {
+                                if (oldestKey == null) {
+                                    oldestKey = child.getKey();
+                                }
+                                count++;
+                                if (isValid(child)) {
+                                    page.add(child);
+                                }
+                            }
+                        }
+                        if (oldestKey != null) {
+                            //Paged from even if it was skipped, so the next page starts before it.
+                            mOldestKey = oldestKey;
+                            mOldestKeyBucket = bucket;
+                        }
+                        if (!page.isEmpty()) {
+                            mListener.onOlderPageLoaded(page, endKey);
+                        }
+                        mFillRemaining -= count;
+                        if (count < mPageSize) {
+                            //Nothing older in this bucket.
+                            findPreviousBucket(bucket, generation);
+                        } else {
+                            mLoadingOlder = false;
+                            continueFill();
+                        }
+                    }
+
+                    @Override
+                    public void onCancelled(Exception error) {
+                        if (generation == mOlderGeneration) {
+                            mLoadingOlder = false;
+                            mListener.onCancelled(error);
+                        }
+                    }
+                });
+    }
+
+    /*Look up the newest non-empty bucket before this one in the bucket index. endAt() is inclusive,
+    so ask for two and take the one that is older.*/
+    private void findPreviousBucket(final String bucket, final int generation) {
+        mSource.getLast(mRoom.bucketsPath(), bucket, 2, new MessageSource.PageCallback() {
+            @Override
+            public void onPage(List<MessageSource.Child> children) {
+                if (generation != mOlderGeneration) {
+                    return;
+                }
+                String previous = null;
+                for (MessageSource.Child child : children) {
+                    if (child.getKey().compareTo(bucket) < 0) {
+                        previous = child.getKey();
+                    }
+                }
+                mLoadingOlder = false;
+                if (previous == null) {
+                    mReachedStart = true;
+                } else {
+                    mOldestBucket = previous;
+                    continueFill();
+                }
+            }
+
+            @Override
+            public void onCancelled(Exception error) {
+                if (generation == mOlderGeneration) {
+                    mLoadingOlder = false;
+                    mListener.onCancelled(error);
+                }
+            }
+        });
+    }
+
+    private void continueFill() {
+        if (mFillRemaining > 0) {
+            loadOlder();
+        }
+    }
+
+    private static boolean isValid(MessageSource.Child child) {
+        if (Room.isPushKey(child.getKey())) {
+            return true;
+        }
+        Log.w(TAG, "Skipping a message with a key that is not a push key: " + child.getKey());
+        return false;
+    }
+
+    /*The caller dropped its oldest messages to bound memory. The next loadOlder() refetches them. If
+    they were the ones loadAround() jumped to, the gap after them is gone with them.*/
+    public void onOldestDropped(String newOldestKey) {
+        if (mGapToKey != null && newOldestKey.compareTo(mGapFromKey) > 0) {
+            clearGap();
+        }
+        mLoadingGap = false;
+        mOldestKey = newOldestKey;
+        mOldestKeyBucket = Room.bucketOf(newOldestKey);
+        mOldestBucket = mOldestKeyBucket;
+        mLoadingOlder = false;
+        mReachedStart = false;
+        mFillRemaining = 0;
+        mOlderGeneration++;
+    }
+}
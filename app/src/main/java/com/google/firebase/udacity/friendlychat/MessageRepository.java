@@ -0,0 +1,734 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.google.firebase.database.FirebaseDatabase;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * Owns the subscription to the messages of a room and the messages received so far. There is
+ * one per room, so switching back to a room shows the buckets it already loaded.
+ * <p/>
+ * It outlives the activities. Observers are reference-counted: the subscription starts with the
+ * first observer and is kept for a grace period after the last one leaves, so a rotation or a quick
+ * app switch reuses the messages already in memory instead of subscribing and deserializing them
+ * again. After the grace period the repository is evicted, and the next getInstance() for the room
+ * makes a new one from the stored messages. All methods must be called on the main thread.
+ * <p/>
+ * The messages are kept in a {@link CompactMessageList}. When they take more than the memory cap,
+ * the oldest ones are evicted and fetched again by the pager if the user scrolls back to them.
+ * <p/>
+ * Messages sent from this device are shown as soon as they are queued, marked pending under the
+ * push key they were given. Their echo from the database replaces them in place, and they stay
+ * pending until the server acknowledges the write, or are marked failed if it didn't succeed.
+ * <p/>
+ * Every message received is also added to the room's {@link MessageSearchIndex}.
+ * <p/>
+ * Edits and deletions are only pushed for the live window. When the room starts, the newest stored
+ * messages are read again, and the older ones only if a change marker written since names them
+ * (see {@link Room}), so what changed while it was closed is caught up on without downloading the
+ * history again. Older pages are current when they are fetched, but later edits to them only show
+ * once they are fetched again or the room starts again.
+ */
+public class MessageRepository {
+
+    private static final String TAG = "MessageRepository";
+
+    public static final long DEFAULT_GRACE_PERIOD_MS = 30 * 1000;
+    public static final long DEFAULT_MAX_MEMORY_BYTES = 4 * 1024 * 1024;
+    //Stored pages read again when the room starts, the older ones are only checked against the change markers.
+    private static final int REVALIDATED_PAGES = 2;
+
+    public interface Observer {
+        //Called with the current messages when added, then after every change. The list must not be modified.
+        void onMessagesChanged(List<FriendlyMessage> messages);
+
+        //Called instead of onMessagesChanged() when the only change is that the messages with
+        //changedKeys were edited and the ones with removedKeys were deleted.
+        void onMessagesEdited(List<FriendlyMessage> messages, List<String> changedKeys, List<String> removedKeys);
+    }
+
+    private static final Map<String, MessageRepository> sInstances = new HashMap<>();
+
+    public static synchronized MessageRepository getInstance(Context context, String roomId) {
+        MessageRepository repository = sInstances.get(roomId);
+        if (repository == null) {
+            Context appContext = context.getApplicationContext();
+            repository = new MessageRepository(
+                    new FirebaseMessageSource(FirebaseDatabase.getInstance().getReference()),
+                    new Room(roomId),
+                    new MessageStore(new File(appContext.getFilesDir(), "messages-" + roomId + ".log"),
+                            MessageStore.DEFAULT_MAX_MESSAGES),
+                    new MessageSearchIndex(new File(appContext.getFilesDir(), "search-" + roomId + ".idx"),
+                            MessageSearchIndex.DEFAULT_MAX_MESSAGES),
+                    OutgoingMessageQueue.getInstance(appContext));
+            sInstances.put(roomId, repository);
+        }
+        return repository;
+    }
+
+    private final MessageSource mSource;
+    private final Room mRoom;
+    private final MessageStore mMessageStore;
+    private final MessageSearchIndex mSearchIndex;
+    private final MessageIngestBuffer mMessageIngestBuffer;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final List<Observer> mObservers = new ArrayList<>();
+    private final OutgoingMessageQueue mOutgoingMessageQueue;
+    private final OutgoingMessageQueue.Listener mOutgoingListener;
+
+    private MessagePager mMessagePager;
+    private long mGracePeriodMs = DEFAULT_GRACE_PERIOD_MS;
+    private long mMaxMemoryBytes = DEFAULT_MAX_MEMORY_BYTES;
+    private int mPageSize = MessagePager.DEFAULT_PAGE_SIZE;
+
+    //The messages received so far in key order, so oldest first. See MessageIndex.
+    private final CompactMessageList mMessages = new CompactMessageList();
+    //Read-only copy of mMessages handed to the observers.
+    private List<FriendlyMessage> mSnapshot = Collections.emptyList();
+    //Messages sent from this device that the server hasn't acknowledged yet, by key, with their status.
+    private final Map<String, FriendlyMessage> mUnacknowledged = new LinkedHashMap<>();
+    //The messages loaded from the store, in key order, until the pager has read them again from the database.
+    private List<FriendlyMessage> mStoredMessages;
+    //The stored messages from this key on are read again as a range, the older ones by change marker.
+    private String mRevalidateFromKey;
+    //Reads of stored messages still to come back: the range, the change markers and the messages they name.
+    private int mPendingRevalidations;
+    //The change marker the store was current with, and the newest one read since. The newest is
+    //recorded in the store once the messages it covers are revalidated.
+    private String mStoredChangeKey;
+    private String mNewestChangeKey;
+
+    private final Runnable mStopRunnable = new Runnable() {
+        @Override
+        public void run() {
+            evict();
+        }
+    };
+
+    MessageRepository(MessageSource source, Room room, MessageStore messageStore, MessageSearchIndex searchIndex,
+                      OutgoingMessageQueue outgoingMessageQueue) {
+        this(source, room, messageStore, searchIndex, outgoingMessageQueue, null);
+    }
+
+    /*deliveryExecutor runs the decoded messages into the list, or null to do it once per frame on the main thread.*/
+    MessageRepository(MessageSource source, Room room, MessageStore messageStore, MessageSearchIndex searchIndex,
+                      OutgoingMessageQueue outgoingMessageQueue, Executor deliveryExecutor) {
+        mSource = source;
+        mRoom = room;
+        mMessageStore = messageStore;
+        mSearchIndex = searchIndex;
+        // Snapshots are decoded on a worker thread and a burst of added messages is applied as one
+        // batch, so observers are notified at most once per frame
+        MessageIngestBuffer.Sink sink = new MessageIngestBuffer.Sink() {
+            @Override
+            public void onMessagesAdded(List<FriendlyMessage> messages) {
+                PerfStats perfStats = PerfStats.getInstance();
+                for (FriendlyMessage message : messages) {
+                    perfStats.onMessageEchoed(message.getKey());
+                    //The echo of our own message replaces the local copy but keeps its status.
+                    keepLocalStatus(message);
+                    MessageIndex.insert(mMessages, message);
+                }
+                mMessageStore.append(messages);
+                mSearchIndex.add(messages);
+                evictOverMemoryCap();
+                publish();
+            }
+
+            @Override
+            public void onMessagesUpdated(List<FriendlyMessage> changed, List<String> removedKeys) {
+                applyEdits(changed, removedKeys);
+            }
+
+            @Override
+            public void onOlderPageAdded(List<FriendlyMessage> messages) {
+                //Not evicted right away, it is what the user is scrolling to. Usually older than all
+                //the others, but when resuming from an earlier day it may overlap the stored ones.
+                if (mMessages.isEmpty() || messages.get(messages.size() - 1).getKey().compareTo(mMessages.keyAt(0)) < 0) {
+                    mMessages.addAll(0, messages);
+                } else {
+                    for (FriendlyMessage message : messages) {
+                        MessageIndex.insert(mMessages, message);
+                    }
+                }
+                mMessageStore.append(messages);
+                mSearchIndex.add(messages);
+                publish();
+            }
+
+            @Override
+            public void onRangeReloaded(String fromKey, String toKey, List<FriendlyMessage> messages) {
+                revalidateStored(fromKey, toKey, messages);
+            }
+        };
+        mMessageIngestBuffer = deliveryExecutor != null ? new MessageIngestBuffer(sink, deliveryExecutor)
+                : MessageIngestBuffer.onMainThread(sink, MessageIngestBuffer.FLUSH_EVERY_FRAME);
+
+        //The queue is shared by all rooms, each repository only shows its own messages.
+        mOutgoingMessageQueue = outgoingMessageQueue;
+        mOutgoingListener = new OutgoingMessageQueue.Listener() {
+            @Override
+            public void onMessageQueued(FriendlyMessage message) {
+                showLocal(Collections.singletonList(message), FriendlyMessage.STATUS_PENDING);
+            }
+
+            @Override
+            public void onMessagesSent(List<FriendlyMessage> messages) {
+                List<String> changedKeys = new ArrayList<>();
+                for (FriendlyMessage message : messages) {
+                    if (!isInRoom(message)) {
+                        continue;
+                    }
+                    mUnacknowledged.remove(message.getKey());
+                    int index = MessageIndex.indexOf(mMessages, message.getKey());
+                    if (index >= 0 && mMessages.statusAt(index) != FriendlyMessage.STATUS_SENT) {
+                        FriendlyMessage sent = mMessages.get(index);
+                        sent.setStatus(FriendlyMessage.STATUS_SENT);
+                        mMessages.set(index, sent);
+                        changedKeys.add(sent.getKey());
+                    }
+                }
+                if (!changedKeys.isEmpty()) {
+                    publishEdits(changedKeys, Collections.<String>emptyList());
+                }
+            }
+
+            @Override
+            public void onSendFailed(List<FriendlyMessage> messages) {
+                showLocal(messages, FriendlyMessage.STATUS_FAILED);
+            }
+
+            @Override
+            public void onMessagesRejected(List<FriendlyMessage> messages) {
+                //The server won't take them, take back the local copies.
+                List<String> removedKeys = new ArrayList<>();
+                for (FriendlyMessage message : messages) {
+                    if (!isInRoom(message) || mUnacknowledged.remove(message.getKey()) == null) {
+                        continue;
+                    }
+                    int index = MessageIndex.indexOf(mMessages, message.getKey());
+                    if (index >= 0) {
+                        mMessages.remove(index);
+                        removedKeys.add(message.getKey());
+                    }
+                }
+                if (!removedKeys.isEmpty()) {
+                    publishEdits(Collections.<String>emptyList(), removedKeys);
+                }
+            }
+        };
+        outgoingMessageQueue.addListener(mOutgoingListener);
+        for (FriendlyMessage message : outgoingMessageQueue.getPendingMessages()) {
+            if (isInRoom(message)) {
+                mUnacknowledged.put(message.getKey(), copyOf(message, FriendlyMessage.STATUS_PENDING));
+            }
+        }
+    }
+
+    public Room getRoom() {
+        return mRoom;
+    }
+
+    public void setGracePeriod(long gracePeriodMs) {
+        mGracePeriodMs = gracePeriodMs;
+    }
+
+    public void addObserver(Observer observer) {
+        if (mObservers.contains(observer)) {
+            return;
+        }
+        mObservers.add(observer);
+        mHandler.removeCallbacks(mStopRunnable);
+        start();
+        observer.onMessagesChanged(mSnapshot);
+    }
+
+    /*The subscription is kept for the grace period after the last observer is removed.*/
+    public void removeObserver(Observer observer) {
+        if (mObservers.remove(observer) && mObservers.isEmpty()) {
+            mHandler.postDelayed(mStopRunnable, mGracePeriodMs);
+        }
+    }
+
+    /*Upper bound for the heap taken by the loaded messages, see CompactMessageList.getEstimatedBytes().*/
+    public void setMaxMemoryBytes(long maxMemoryBytes) {
+        mMaxMemoryBytes = maxMemoryBytes;
+        if (evictOverMemoryCap()) {
+            publish();
+        }
+    }
+
+    /*Number of messages fetched per older page. Applies from the next page on.*/
+    public void setPageSize(int pageSize) {
+        mPageSize = pageSize;
+        if (mMessagePager != null) {
+            mMessagePager.setPageSize(pageSize);
+        }
+    }
+
+    public int getPageSize() {
+        return mPageSize;
+    }
+
+    public List<FriendlyMessage> getMessages() {
+        return mSnapshot;
+    }
+
+    /*Fetch the page before the oldest message, e.g. when the user scrolls near the top.*/
+    public void loadOlder() {
+        if (mMessagePager != null) {
+            mMessagePager.loadOlder();
+        }
+    }
+
+    /*Find the messages of this room matching every word of the query as a prefix, newest first.
+    The index also covers messages that are no longer loaded, see loadUntil().*/
+    public void search(String query, MessageSearchIndex.SearchCallback callback) {
+        mSearchIndex.search(query, MessageSearchIndex.DEFAULT_MAX_RESULTS, callback);
+    }
+
+    /*Make sure the message with this key is loaded, e.g. to show a search result. Returns true if
+    it already is, otherwise the page holding it is loaded and observers are notified as usual. The
+    messages between that page and the newer ones are only loaded by loadGap().*/
+    public boolean loadUntil(String key) {
+        if (mMessagePager == null) {
+            return false;
+        }
+        if (!mMessages.isEmpty() && mMessages.keyAt(0).compareTo(key) <= 0 && !mMessagePager.isInGap(key)) {
+            return true;
+        }
+        //One jump at a time: the page of the previous one is dropped, and its gap with it.
+        String gapEndKey = mMessagePager.getGapEndKey();
+        if (gapEndKey != null) {
+            int index = MessageIndex.indexOf(mMessages, gapEndKey);
+            dropOldest(index >= 0 ? index : -index - 1);
+        }
+        mMessagePager.loadAround(key);
+        return false;
+    }
+
+    /*Key of the newest message before the messages not loaded yet after a loadUntil(), or null if
+    there are none.*/
+    public String getGapStartKey() {
+        return mMessagePager != null ? mMessagePager.getGapStartKey() : null;
+    }
+
+    /*Fetch the next page after the result loadUntil() jumped to, e.g. when the user scrolls down from it.*/
+    public void loadGap() {
+        if (mMessagePager != null) {
+            mMessagePager.loadGap();
+        }
+    }
+
+    /*Remove the oldest messages, which the pager can fetch again if needed.*/
+    public void dropOldest(int count) {
+        if (mMessagePager == null || count <= 0 || count >= mMessages.size()) {
+            return;
+        }
+        mMessages.subList(0, count).clear();
+        publish();
+        mMessagePager.onOldestDropped(mMessages.keyAt(0));
+    }
+
+    /*Drop the oldest messages until the rest fit under the memory cap. Returns whether any were dropped.*/
+    private boolean evictOverMemoryCap() {
+        long bytes = mMessages.getEstimatedBytes();
+        int count = 0;
+        //Always keep the newest message, the pager resumes from it.
+        while (bytes > mMaxMemoryBytes && count < mMessages.size() - 1) {
+            bytes -= mMessages.estimatedBytesAt(count);
+            count++;
+        }
+        if (count == 0) {
+            return false;
+        }
+        mMessages.subList(0, count).clear();
+        if (mMessagePager != null) {
+            mMessagePager.onOldestDropped(mMessages.keyAt(0));
+        }
+        return true;
+    }
+
+    /*Stop right away and forget all messages, including the stored ones, e.g. when the user signs out.*/
+    public void clear() {
+        mHandler.removeCallbacks(mStopRunnable);
+        stop();
+        //The outgoing queue is cleared along with the repositories.
+        mUnacknowledged.clear();
+        mMessageStore.clear();
+        mSearchIndex.clear();
+    }
+
+    /*clear() every room, including the stored messages of rooms not opened since the process started.*/
+    public static synchronized void clearAll(Context context) {
+        for (MessageRepository repository : sInstances.values()) {
+            repository.clear();
+        }
+        //Those are deleted by their own store and search index. The others are deleted on the thread
+        //that writes them, after the writes still queued for them.
+        final File dir = context.getApplicationContext().getFilesDir();
+        final Set<String> openRoomIds = new HashSet<>(sInstances.keySet());
+        MessageStore.execute(new Runnable() {
+            @Override
+            public void run() {
+                deleteRoomFiles(dir, "messages-", ".log", openRoomIds);
+            }
+        });
+        MessageSearchIndex.execute(new Runnable() {
+            @Override
+            public void run() {
+                deleteRoomFiles(dir, "search-", ".idx", openRoomIds);
+            }
+        });
+    }
+
+    private static void deleteRoomFiles(File dir, String prefix, String suffix, Set<String> excludedRoomIds) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (isRoomFile(file.getName(), prefix, suffix, excludedRoomIds) && !file.delete()) {
+                Log.w(TAG, "Failed to delete " + file);
+            }
+        }
+    }
+
+    private static boolean isRoomFile(String name, String prefix, String suffix, Set<String> excludedRoomIds) {
+        return name.startsWith(prefix) && name.endsWith(suffix)
+                && !excludedRoomIds.contains(name.substring(prefix.length(), name.length() - suffix.length()));
+    }
+
+    private void start() {
+        //if pager is null, then only attach it
+        if (mMessagePager != null) {
+            return;
+        }
+        /*Instead of a ChildEventListener on the whole messages node, only the newest page is loaded
+        and older pages are fetched by push key as the user scrolls up.*/
+        final MessagePager pager = new MessagePager(mSource, mRoom, mPageSize,
+                new MessagePager.Listener() {
+                    //This method is called for every message of the newest page and for every new message afterwards.
+                    @Override
+                    public void onMessageAdded(MessageSource.Child child) {
+                        mMessageIngestBuffer.add(child);
+                    }
+
+                    //This method is called with the page right before the oldest message in the list.
+                    @Override
+                    public void onOlderPageLoaded(List<MessageSource.Child> page, String skipKey) {
+                        mMessageIngestBuffer.addOlderPage(page, skipKey);
+                    }
+
+                    @Override
+                    public void onMessageChanged(MessageSource.Child child) {
+                        mMessageIngestBuffer.change(child);
+                    }
+
+                    @Override
+                    public void onMessageRemoved(String key) {
+                        mMessageIngestBuffer.remove(key);
+                    }
+
+                    //This method is called with the stored range as it is in the database now.
+                    @Override
+                    public void onRangeReloaded(String fromKey, String toKey, List<MessageSource.Child> children) {
+                        mMessageIngestBuffer.reloadRange(fromKey, toKey, children);
+                    }
+
+                    //This method is called with the messages changed since the room was last started.
+                    @Override
+                    public void onChangesRead(Set<String> keys, String newestChangeKey) {
+                        revalidateChanged(keys, newestChangeKey);
+                    }
+
+                    //Typically this means that you don't have permission to read it.
+                    @Override
+                    public void onCancelled(Exception error) {
+                        Log.w(TAG, "Listening for messages cancelled", error);
+                    }
+                });
+        mMessagePager = pager;
+
+        //Show the stored messages right away and only listen for the ones after them.
+        mMessageStore.load(new MessageStore.LoadCallback() {
+            @Override
+            public void onLoaded(List<FriendlyMessage> messages, String changesKey) {
+                if (pager != mMessagePager) {
+                    //stopped while loading.
+                    return;
+                }
+                //Messages sent while loading may already be in the list.
+                for (FriendlyMessage message : messages) {
+                    keepLocalStatus(message);
+                    MessageIndex.insert(mMessages, message);
+                }
+                for (FriendlyMessage message : mUnacknowledged.values()) {
+                    if (MessageIndex.indexOf(mMessages, message.getKey()) < 0) {
+                        MessageIndex.insert(mMessages, message);
+                    }
+                }
+                //Usually indexed already, this restores the index if its file was lost.
+                mSearchIndex.add(messages);
+                if (!mMessages.isEmpty()) {
+                    evictOverMemoryCap();
+                    publish();
+                }
+                //Edits and deletions made while the room was closed never reach the live listeners.
+                //Only the newest pages are read again, the change markers tell which older ones to read.
+                mStoredMessages = messages;
+                mStoredChangeKey = changesKey;
+                mPendingRevalidations = 1;
+                if (messages.isEmpty()) {
+                    pager.start();
+                } else {
+                    String lastKey = messages.get(messages.size() - 1).getKey();
+                    pager.startAfter(lastKey, mMessages.keyAt(0));
+                    mRevalidateFromKey = messages.get(Math.max(0, messages.size() - REVALIDATED_PAGES * mPageSize)).getKey();
+                    mPendingRevalidations++;
+                    pager.reload(mRevalidateFromKey, lastKey);
+                }
+                //With no marker recorded yet, e.g. the room had none when it was stored, the markers
+                //written since the oldest stored message may still name stored messages.
+                pager.readChanges(changesKey != null || messages.isEmpty() ? changesKey : messages.get(0).getKey());
+            }
+        });
+    }
+
+    /*Unused for the grace period: stop and let go of this repository, so closed rooms don't pile up.
+    The stored messages stay for the next getInstance() of the room.*/
+    private void evict() {
+        stop();
+        mOutgoingMessageQueue.removeListener(mOutgoingListener);
+        synchronized (MessageRepository.class) {
+            if (sInstances.get(mRoom.getId()) == this) {
+                sInstances.remove(mRoom.getId());
+            }
+        }
+    }
+
+    private void stop() {
+        //If pager is not null then only detach it
+        if (mMessagePager != null) {
+            mMessagePager.stop();
+            mMessagePager = null;
+            mStoredMessages = null;
+            mRevalidateFromKey = null;
+            mPendingRevalidations = 0;
+            mStoredChangeKey = null;
+            mNewestChangeKey = null;
+            //Read again from its file if the user searches the room while it is closed.
+            mSearchIndex.release();
+            mMessageIngestBuffer.clear();
+            if (BuildConfig.DEBUG) {
+                Log.d(TAG, mMessageIngestBuffer.toString());
+                Log.d(TAG, mMessages.size() + " messages in " + mMessages.getEstimatedBytes() / 1024 + "KB");
+            }
+        }
+        if (!mMessages.isEmpty()) {
+            mMessages.clear();
+            publish();
+        }
+    }
+
+    /*Read again the older stored messages named by change markers. The newer ones are read again anyway.*/
+    private void revalidateChanged(Set<String> keys, String newestChangeKey) {
+        if (mStoredMessages == null) {
+            return;
+        }
+        mNewestChangeKey = newestChangeKey;
+        List<String> changedKeys = new ArrayList<>();
+        for (String key : keys) {
+            if ((mRevalidateFromKey == null || key.compareTo(mRevalidateFromKey) < 0)
+                    && MessageIndex.indexOf(mStoredMessages, key) >= 0) {
+                changedKeys.add(key);
+            }
+        }
+        mPendingRevalidations += changedKeys.size();
+        if (!changedKeys.isEmpty()) {
+            mMessagePager.reloadMessages(changedKeys);
+        }
+        onRevalidated();
+    }
+
+    private void onRevalidated() {
+        mPendingRevalidations--;
+        if (mPendingRevalidations == 0) {
+            //Recorded after the edits it covers, which the store writes first.
+            if (mNewestChangeKey != null && !mNewestChangeKey.equals(mStoredChangeKey)) {
+                mMessageStore.setChangesKey(mNewestChangeKey);
+            }
+            mStoredMessages = null;
+            mRevalidateFromKey = null;
+            mStoredChangeKey = null;
+            mNewestChangeKey = null;
+        }
+    }
+
+    /*Compare the stored messages from fromKey to toKey with the same range read again from the
+    database: apply what was edited or deleted since, and add what the store missed, e.g. when the
+    app was killed before it was written.*/
+    private void revalidateStored(String fromKey, String toKey, List<FriendlyMessage> reloaded) {
+        if (mStoredMessages == null) {
+            return;
+        }
+        int fromIndex = MessageIndex.indexOf(mStoredMessages, fromKey);
+        int toIndex = MessageIndex.indexOf(mStoredMessages, toKey);
+        List<FriendlyMessage> stored = mStoredMessages.subList(fromIndex >= 0 ? fromIndex : -fromIndex - 1,
+                toIndex >= 0 ? toIndex + 1 : -toIndex - 1);
+        Map<String, FriendlyMessage> reloadedByKey = new LinkedHashMap<>();
+        for (FriendlyMessage message : reloaded) {
+            reloadedByKey.put(message.getKey(), message);
+        }
+        List<FriendlyMessage> changed = new ArrayList<>();
+        List<String> removedKeys = new ArrayList<>();
+        for (FriendlyMessage message : stored) {
+            FriendlyMessage current = reloadedByKey.remove(message.getKey());
+            if (current == null) {
+                removedKeys.add(message.getKey());
+            } else if (!hasSameContents(message, current)) {
+                changed.add(current);
+            }
+        }
+        if (!reloadedByKey.isEmpty()) {
+            List<FriendlyMessage> missing = new ArrayList<>(reloadedByKey.values());
+            for (FriendlyMessage message : missing) {
+                keepLocalStatus(message);
+                MessageIndex.insert(mMessages, message);
+            }
+            mMessageStore.append(missing);
+            mSearchIndex.add(missing);
+            evictOverMemoryCap();
+            publish();
+        }
+        if (!changed.isEmpty() || !removedKeys.isEmpty()) {
+            applyEdits(changed, removedKeys);
+        }
+        onRevalidated();
+    }
+
+    private static boolean hasSameContents(FriendlyMessage a, FriendlyMessage b) {
+        return TextUtils.equals(a.getText(), b.getText())
+                && TextUtils.equals(a.getName(), b.getName())
+                && TextUtils.equals(a.getPhotoUrl(), b.getPhotoUrl())
+                && TextUtils.equals(a.getThumbnailUrl(), b.getThumbnailUrl());
+    }
+
+    /*Edits and deletions are looked up by key and applied in place, instead of reloading the list.*/
+    private void applyEdits(List<FriendlyMessage> changed, List<String> removedKeys) {
+        List<String> changedKeys = new ArrayList<>();
+        for (FriendlyMessage message : changed) {
+            int index = MessageIndex.indexOf(mMessages, message.getKey());
+            //A message outside the loaded range is fetched again with its page anyway.
+            if (index >= 0) {
+                keepLocalStatus(message);
+                mMessages.set(index, message);
+                changedKeys.add(message.getKey());
+            }
+        }
+        List<String> removed = new ArrayList<>();
+        for (String key : removedKeys) {
+            if (mUnacknowledged.containsKey(key)) {
+                //The database reverted our write after it failed, the message is still queued.
+                continue;
+            }
+            int index = MessageIndex.indexOf(mMessages, key);
+            if (index >= 0) {
+                mMessages.remove(index);
+                removed.add(key);
+            }
+        }
+        //The stored copies are updated even when the message is not loaded.
+        mMessageStore.append(changed);
+        mMessageStore.remove(removedKeys);
+        mSearchIndex.add(changed);
+        mSearchIndex.remove(removedKeys);
+        if (changedKeys.isEmpty() && removed.isEmpty()) {
+            return;
+        }
+        publishEdits(changedKeys, removed);
+    }
+
+    /*Show messages sent from this device with the given status until the server acknowledges them.*/
+    private void showLocal(List<FriendlyMessage> messages, int status) {
+        for (FriendlyMessage message : messages) {
+            if (!isInRoom(message)) {
+                continue;
+            }
+            FriendlyMessage local = copyOf(message, status);
+            mUnacknowledged.put(local.getKey(), local);
+            if (mMessagePager != null) {
+                MessageIndex.insert(mMessages, local);
+            }
+        }
+        if (mMessagePager != null) {
+            publish();
+        }
+    }
+
+    private boolean isInRoom(FriendlyMessage message) {
+        return mRoom.getId().equals(message.getRoomId());
+    }
+
+    private void keepLocalStatus(FriendlyMessage message) {
+        FriendlyMessage local = mUnacknowledged.get(message.getKey());
+        if (local != null) {
+            message.setStatus(local.getStatus());
+        }
+    }
+
+    //The queue keeps using its messages, so the list gets its own copy.
+    private static FriendlyMessage copyOf(FriendlyMessage message, int status) {
+        FriendlyMessage copy = new FriendlyMessage(message.getText(), message.getName(), message.getPhotoUrl());
+        copy.setKey(message.getKey());
+        copy.setThumbnailUrl(message.getThumbnailUrl());
+        copy.setRoomId(message.getRoomId());
+        copy.setStatus(status);
+        return copy;
+    }
+
+    private void publishEdits(List<String> changedKeys, List<String> removedKeys) {
+        mSnapshot = mMessages.snapshot();
+        for (Observer observer : new ArrayList<>(mObservers)) {
+            observer.onMessagesEdited(mSnapshot, changedKeys, removedKeys);
+        }
+    }
+
+    private void publish() {
+        mSnapshot = mMessages.snapshot();
+        //Observers may remove themselves while being notified.
+        for (Observer observer : new ArrayList<>(mObservers)) {
+            observer.onMessagesChanged(mSnapshot);
+        }
+    }
+}
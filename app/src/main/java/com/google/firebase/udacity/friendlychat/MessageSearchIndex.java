@@ -0,0 +1,450 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * On-device inverted index over the text and author of the messages of a room, for prefix search.
+ * <p/>
+ * Messages are tokenized into lowercase words, and every word maps to the sorted keys of the
+ * messages containing it. The words are kept in a TreeMap, so the words starting with a prefix are
+ * one contiguous range. A query matches the messages containing, for each of its words, a word
+ * starting with it. Results come newest first, with the message's key, so the page holding it can
+ * be loaded on demand, see {@link MessageRepository#loadUntil(String)}.
+ * <p/>
+ * The index is updated as messages are received, edited and deleted, and it keeps more messages
+ * than the {@link MessageStore}, so older conversations can be found after they were compacted
+ * out of it. It is saved to its own file a few seconds after the last change, and the stored messages
+ * are indexed again on load in case it was lost. release() frees it while the room is closed, and
+ * it is read again from its file when next used. All work happens on a single background thread,
+ * search results are delivered on the main thread.
+ */
+public class MessageSearchIndex {
+
+    private static final String TAG = "MessageSearchIndex";
+
+    public static final int DEFAULT_MAX_MESSAGES = 5000;
+    public static final int DEFAULT_MAX_RESULTS = 50;
+
+    //Enough of the text to recognize the message in the results.
+    private static final int SNIPPET_LENGTH = 100;
+    //Longer words are mostly links and hashes, nobody searches for those.
+    private static final int MAX_WORD_LENGTH = 32;
+    private static final long SAVE_DELAY_MS = 5000;
+    private static final int FILE_VERSION = 1;
+
+    public static class Result {
+        public final String key;
+        public final String name;
+        //The start of the text, or null for a photo.
+        public final String snippet;
+
+        Result(String key, String name, String snippet) {
+            this.key = key;
+            this.name = name;
+            this.snippet = snippet;
+        }
+    }
+
+    public interface SearchCallback {
+        //Called on the main thread with the matching messages, newest first.
+        void onResults(String query, List<Result> results);
+    }
+
+    private final File mFile;
+    private final int mMaxMessages;
+    //One thread for the indexes of all rooms, searches are rare and indexing is cheap.
+    private static final Executor sExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    //Where search results are delivered, the main thread in the app.
+    private final Executor mResultExecutor;
+
+    //Only touched on the executor thread. Message keys by word, and the indexed messages by key.
+    private final TreeMap<String, TreeSet<String>> mPostings = new TreeMap<>();
+    private final TreeMap<String, Document> mDocuments = new TreeMap<>();
+    private boolean mLoaded;
+    private boolean mSaveScheduled;
+
+    private final Runnable mSaveRunnable = new Runnable() {
+        @Override
+        public void run() {
+            sExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    //Saved already if released in the meantime.
+                    if (mSaveScheduled) {
+                        mSaveScheduled = false;
+                        save();
+                    }
+                }
+            });
+        }
+    };
+
+    public MessageSearchIndex(File file, int maxMessages) {
+        this(file, maxMessages, new Executor() {
+            private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+            @Override
+            public void execute(Runnable runnable) {
+                mHandler.post(runnable);
+            }
+        });
+    }
+
+    MessageSearchIndex(File file, int maxMessages, Executor resultExecutor) {
+        mFile = file;
+        mMaxMessages = maxMessages;
+        mResultExecutor = resultExecutor;
+    }
+
+    /*Index new or edited messages. Messages indexed already with the same content are skipped.*/
+    public void add(List<FriendlyMessage> messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
+        final List<Document> documents = new ArrayList<>(messages.size());
+        for (FriendlyMessage message : messages) {
+            documents.add(Document.of(message));
+        }
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                ensureLoaded();
+                boolean changed = false;
+                for (Document document : documents) {
+                    changed |= put(document);
+                }
+                //Forget the oldest messages first.
+                while (mDocuments.size() > mMaxMessages) {
+                    unindex(mDocuments.pollFirstEntry().getValue());
+                }
+                if (changed) {
+                    scheduleSave();
+                }
+            }
+        });
+    }
+
+    public void remove(List<String> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        final List<String> removedKeys = new ArrayList<>(keys);
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                ensureLoaded();
+                boolean changed = false;
+                for (String key : removedKeys) {
+                    Document document = mDocuments.remove(key);
+                    if (document != null) {
+                        unindex(document);
+                        changed = true;
+                    }
+                }
+                if (changed) {
+                    scheduleSave();
+                }
+            }
+        });
+    }
+
+    /*Find the messages matching every word of the query as a prefix, up to maxResults of them.*/
+    public void search(final String query, final int maxResults, final SearchCallback callback) {
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                ensureLoaded();
+                final List<Result> results = find(query, maxResults);
+                mResultExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onResults(query, results);
+                    }
+                });
+            }
+        });
+    }
+
+    /*Save pending changes and free the memory taken by the index, e.g. when the room is closed.
+    The next add, remove or search loads it again.*/
+    public void release() {
+        mMainHandler.removeCallbacks(mSaveRunnable);
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!mLoaded) {
+                    return;
+                }
+                if (mSaveScheduled) {
+                    mSaveScheduled = false;
+                    save();
+                }
+                mPostings.clear();
+                mDocuments.clear();
+                mLoaded = false;
+            }
+        });
+    }
+
+    /*Run a file task after what the indexes queued so far, e.g. to delete the indexes of closed rooms.*/
+    static void execute(Runnable task) {
+        sExecutor.execute(task);
+    }
+
+    /*Forget everything, e.g. when the user signs out.*/
+    public void clear() {
+        mMainHandler.removeCallbacks(mSaveRunnable);
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mPostings.clear();
+                mDocuments.clear();
+                mLoaded = true;
+                mSaveScheduled = false;
+                if (mFile.exists() && !mFile.delete()) {
+                    Log.w(TAG, "Failed to delete " + mFile);
+                }
+            }
+        });
+    }
+
+    private List<Result> find(String query, int maxResults) {
+        List<String> words = new ArrayList<>(tokenize(query));
+        if (words.isEmpty()) {
+            return Collections.emptyList();
+        }
+        //Start from the rarest prefix, so the intersection stays small.
+        List<TreeSet<String>> matches = new ArrayList<>(words.size());
+        for (String word : words) {
+            TreeSet<String> keys = new TreeSet<>();
+            for (TreeSet<String> postings : mPostings.subMap(word, word + Character.MAX_VALUE).values()) {
+                keys.addAll(postings);
+            }
+            if (keys.isEmpty()) {
+                return Collections.emptyList();
+            }
+            matches.add(keys);
+        }
+        Collections.sort(matches, new Comparator<TreeSet<String>>() {
+            @Override
+            public int compare(TreeSet<String> a, TreeSet<String> b) {
+                return a.size() < b.size() ? -1 : (a.size() == b.size() ? 0 : 1);
+            }
+        });
+
+        List<Result> results = new ArrayList<>();
+        Iterator<String> keys = matches.get(0).descendingIterator();
+        while (keys.hasNext() && results.size() < maxResults) {
+            String key = keys.next();
+            if (containsAll(matches, key)) {
+                Document document = mDocuments.get(key);
+                results.add(new Result(key, document.name, document.snippet));
+            }
+        }
+        return results;
+    }
+
+    private static boolean containsAll(List<TreeSet<String>> matches, String key) {
+        for (int i = 1; i < matches.size(); i++) {
+            if (!matches.get(i).contains(key)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*Returns whether the index changed.*/
+    private boolean put(Document document) {
+        Document previous = mDocuments.get(document.key);
+        if (previous != null) {
+            if (previous.sameContentAs(document)) {
+                return false;
+            }
+            unindex(previous);
+        }
+        mDocuments.put(document.key, document);
+        for (String word : document.words) {
+            TreeSet<String> keys = mPostings.get(word);
+            if (keys == null) {
+                keys = new TreeSet<>();
+                mPostings.put(word, keys);
+            }
+            keys.add(document.key);
+        }
+        return true;
+    }
+
+    //The document itself is removed from mDocuments by the caller.
+    private void unindex(Document document) {
+        for (String word : document.words) {
+            TreeSet<String> keys = mPostings.get(word);
+            if (keys != null && keys.remove(document.key) && keys.isEmpty()) {
+                mPostings.remove(word);
+            }
+        }
+    }
+
+    private void scheduleSave() {
+        if (!mSaveScheduled) {
+            mSaveScheduled = true;
+            mMainHandler.postDelayed(mSaveRunnable, SAVE_DELAY_MS);
+        }
+    }
+
+    /*Read the saved index the first time it is used. A missing or damaged file starts an empty index.*/
+    private void ensureLoaded() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != FILE_VERSION) {
+                throw new IOException("Unknown index version");
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String key = MessageStore.readString(in);
+                String name = MessageStore.readString(in);
+                String snippet = MessageStore.readString(in);
+                String[] words = new String[in.readInt()];
+                for (int j = 0; j < words.length; j++) {
+                    words[j] = MessageStore.readString(in);
+                }
+                put(new Document(key, name, snippet, words));
+            }
+        } catch (FileNotFoundException e) {
+            //Nothing indexed yet.
+        } catch (IOException e) {
+            //The repository indexes its stored messages again on load.
+            Log.w(TAG, "Failed to read the index, starting over", e);
+            mPostings.clear();
+            mDocuments.clear();
+        } finally {
+            MessageStore.closeQuietly(in);
+        }
+    }
+
+    /*Write the whole index to a new file, which replaces the old one in a single rename.*/
+    private void save() {
+        File tmpFile = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            out.writeInt(FILE_VERSION);
+            out.writeInt(mDocuments.size());
+            for (Document document : mDocuments.values()) {
+                MessageStore.writeString(out, document.key);
+                MessageStore.writeString(out, document.name);
+                MessageStore.writeString(out, document.snippet);
+                out.writeInt(document.words.length);
+                for (String word : document.words) {
+                    MessageStore.writeString(out, word);
+                }
+            }
+            out.close();
+            out = null;
+            if (!tmpFile.renameTo(mFile)) {
+                Log.w(TAG, "Failed to replace " + mFile);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to save the index", e);
+        } finally {
+            MessageStore.closeQuietly(out);
+        }
+    }
+
+    /*The distinct lowercase words of the text: runs of letters and digits.*/
+    static Collection<String> tokenize(String text) {
+        TreeSet<String> words = new TreeSet<>();
+        if (text == null) {
+            return words;
+        }
+        String lowerCase = text.toLowerCase(Locale.ROOT);
+        int start = -1;
+        for (int i = 0; i <= lowerCase.length(); i++) {
+            boolean inWord = i < lowerCase.length() && Character.isLetterOrDigit(lowerCase.charAt(i));
+            if (inWord && start < 0) {
+                start = i;
+            } else if (!inWord && start >= 0) {
+                if (i - start <= MAX_WORD_LENGTH) {
+                    words.add(lowerCase.substring(start, i));
+                }
+                start = -1;
+            }
+        }
+        return words;
+    }
+
+    private static class Document {
+        final String key;
+        final String name;
+        final String snippet;
+        //Sorted and distinct, from both the name and the text.
+        final String[] words;
+
+        Document(String key, String name, String snippet, String[] words) {
+            this.key = key;
+            this.name = name;
+            this.snippet = snippet;
+            this.words = words;
+        }
+
+        static Document of(FriendlyMessage message) {
+            TreeSet<String> words = new TreeSet<>(tokenize(message.getName()));
+            words.addAll(tokenize(message.getText()));
+            String text = message.getText();
+            String snippet = text != null && text.length() > SNIPPET_LENGTH ? text.substring(0, SNIPPET_LENGTH) : text;
+            return new Document(message.getKey(), message.getName(), snippet, words.toArray(new String[words.size()]));
+        }
+
+        boolean sameContentAs(Document other) {
+            return equal(name, other.name) && equal(snippet, other.snippet) && Arrays.equals(words, other.words);
+        }
+
+        private static boolean equal(String a, String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat;
+
+import java.util.List;
+
+/**
+ * The reads the message pager makes, by path and ordered by key.
+ * <p/>
+ * {@link FirebaseMessageSource} runs them against the realtime database. Tests use a fake with the
+ * same event shape: callbacks come on one thread, the main thread in the app, and a listener first
+ * gets every existing child in its range as added, then its changes. Values are only converted
+ * when getValue() is called, so that can happen off that thread.
+ */
+public interface MessageSource {
+
+    interface Child {
+        String getKey();
+
+        //What DataSnapshot.getValue() returns: maps, strings, numbers and booleans.
+        Object getValue();
+    }
+
+    interface PageCallback {
+        //The children of the page, in key order.
+        void onPage(List<Child> children);
+
+        void onCancelled(Exception error);
+    }
+
+    interface ChildListener {
+        void onChildAdded(Child child);
+
+        void onChildChanged(Child child);
+
+        void onChildRemoved(String key);
+
+        void onCancelled(Exception error);
+    }
+
+    interface Subscription {
+        //No more callbacks after this.
+        void remove();
+    }
+
+    /*Read once the first limit children at path, starting at startKey (inclusive) if not null.*/
+    Subscription getFirst(String path, String startKey, int limit, PageCallback callback);
+
+    /*Read once the last limit children at path, ending at endKey (inclusive) if not null.*/
+    Subscription getLast(String path, String endKey, int limit, PageCallback callback);
+
+    /*Listen to the children at path, starting at startKey (inclusive) if not null, until removed.*/
+    Subscription listen(String path, String startKey, ChildListener listener);
+
+    /*The current time on the server, estimated from the device clock. Push keys are made from it, so
+    it is what decides which day bucket new messages go to, even when the device clock is off.*/
+    long getServerTimeMs();
+}
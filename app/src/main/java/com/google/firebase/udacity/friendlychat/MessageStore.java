@@ -0,0 +1,368 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Append-only on-device copy of the messages, keyed by push key.
+ * <p/>
+ * Every message the app receives is appended to a log file, and so is every edit, as a newer copy
+ * of the message, and every deletion, as a record with only the key. On resume the log is read back, so
+ * the list can be shown right away and only messages after the last stored key have to be
+ * downloaded. Once the log holds more than twice the size cap, it is compacted down to the newest
+ * messages. The log also records the newest change marker the stored messages are current with (see
+ * {@link Room}). All file access happens on a single background thread, in the order it was requested.
+ */
+public class MessageStore {
+
+    private static final String TAG = "MessageStore";
+
+    public static final int DEFAULT_MAX_MESSAGES = 1000;
+
+    static final int RECORD_PUT = 1;
+    //Same as RECORD_PUT, followed by the thumbnail URL.
+    static final int RECORD_PUT_WITH_THUMBNAIL = 2;
+    //A deleted message, followed by its key only.
+    static final int RECORD_REMOVE = 3;
+    //Same as RECORD_PUT_WITH_THUMBNAIL, followed by the room ID.
+    static final int RECORD_PUT_IN_ROOM = 4;
+    //The key of the newest change marker read, followed by the key only.
+    static final int RECORD_CHANGES_READ = 5;
+    //Same as RECORD_PUT_IN_ROOM, for an edit of a message sent before. Only written by the outgoing queue.
+    static final int RECORD_EDIT_IN_ROOM = 6;
+
+    //Anything longer is a damaged record, not a message.
+    private static final int MAX_STRING_BYTES = 1024 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public interface LoadCallback {
+        //Called on the main thread with the stored messages in key order, and the key of the newest
+        //change marker they are current with, or null if none was recorded.
+        void onLoaded(List<FriendlyMessage> messages, String changesKey);
+    }
+
+    private final File mFile;
+    private final int mMaxMessages;
+    //Shared by the stores of all rooms. Tasks of one store still run in order, and closed rooms
+    //don't keep a thread.
+    private static final Executor sExecutor = Executors.newSingleThreadExecutor();
+    //Where load callbacks run, the main thread in the app.
+    private final Executor mCallbackExecutor;
+
+    //Number of records in the log, only touched on the executor thread.
+    private int mRecordCount;
+    //Set when the log ends in a damaged record. Appending after it would make the new records unreadable.
+    private boolean mDamaged;
+    //The last RECORD_CHANGES_READ, only touched on the executor thread.
+    private String mChangesKey;
+
+    public MessageStore(File file, int maxMessages) {
+        this(file, maxMessages, new Executor() {
+            private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+            @Override
+            public void execute(Runnable runnable) {
+                mMainHandler.post(runnable);
+            }
+        });
+    }
+
+    MessageStore(File file, int maxMessages, Executor callbackExecutor) {
+        mFile = file;
+        mMaxMessages = maxMessages;
+        mCallbackExecutor = callbackExecutor;
+    }
+
+    public void load(final LoadCallback callback) {
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<FriendlyMessage> messages = readNewest();
+                final String changesKey = mChangesKey;
+                if (mDamaged) {
+                    compact();
+                }
+                mCallbackExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onLoaded(messages, changesKey);
+                    }
+                });
+            }
+        });
+    }
+
+    public void append(List<FriendlyMessage> messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
+        //The caller keeps using its list, so write from a copy.
+        final List<FriendlyMessage> records = new ArrayList<>(messages);
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                DataOutputStream out = null;
+                try {
+                    out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mFile, true)));
+                    for (FriendlyMessage message : records) {
+                        writeRecord(out, message);
+                    }
+                    mRecordCount += records.size();
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to append messages", e);
+                } finally {
+                    closeQuietly(out);
+                }
+                if (mRecordCount > 2 * mMaxMessages) {
+                    compact();
+                }
+            }
+        });
+    }
+
+    /*Record that the messages with these keys were deleted, so they don't come back on the next load.*/
+    public void remove(List<String> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        final List<String> records = new ArrayList<>(keys);
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                DataOutputStream out = null;
+                try {
+                    out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mFile, true)));
+                    for (String key : records) {
+                        out.writeByte(RECORD_REMOVE);
+                        writeString(out, key);
+                    }
+                    mRecordCount += records.size();
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to append removals", e);
+                } finally {
+                    closeQuietly(out);
+                }
+                if (mRecordCount > 2 * mMaxMessages) {
+                    compact();
+                }
+            }
+        });
+    }
+
+    /*Record that the stored messages are current with the change markers up to this key.*/
+    public void setChangesKey(final String changesKey) {
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                DataOutputStream out = null;
+                try {
+                    out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mFile, true)));
+                    out.writeByte(RECORD_CHANGES_READ);
+                    writeString(out, changesKey);
+                    mChangesKey = changesKey;
+                    mRecordCount++;
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to append the changes key", e);
+                } finally {
+                    closeQuietly(out);
+                }
+            }
+        });
+    }
+
+    /*Run a file task after what the stores queued so far, e.g. to delete the logs of closed rooms
+    without racing a write still queued for them.*/
+    static void execute(Runnable task) {
+        sExecutor.execute(task);
+    }
+
+    /*Forget everything, e.g. when the user signs out.*/
+    public void clear() {
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mFile.exists() && !mFile.delete()) {
+                    Log.w(TAG, "Failed to delete " + mFile);
+                }
+                mRecordCount = 0;
+                mDamaged = false;
+                mChangesKey = null;
+            }
+        });
+    }
+
+    /*Rewrite the log with only the newest messages. The new log replaces the old one in a single rename.*/
+    private void compact() {
+        List<FriendlyMessage> messages = readNewest();
+        File tmpFile = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            for (FriendlyMessage message : messages) {
+                writeRecord(out, message);
+            }
+            if (mChangesKey != null) {
+                out.writeByte(RECORD_CHANGES_READ);
+                writeString(out, mChangesKey);
+            }
+            out.close();
+            out = null;
+            if (tmpFile.renameTo(mFile)) {
+                mRecordCount = messages.size() + (mChangesKey != null ? 1 : 0);
+                mDamaged = false;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to compact messages", e);
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    /*Read the whole log, later records win and removals are dropped, and keep the newest messages up to the size cap.
+    The last changes key read is left in mChangesKey.*/
+    private List<FriendlyMessage> readNewest() {
+        TreeMap<String, FriendlyMessage> messages = new TreeMap<>();
+        mChangesKey = null;
+        int recordCount = 0;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            int type;
+            while ((type = in.read()) != -1) {
+                if (type == RECORD_REMOVE) {
+                    messages.remove(readString(in));
+                } else if (type == RECORD_CHANGES_READ) {
+                    mChangesKey = readString(in);
+                } else {
+                    FriendlyMessage message = readPut(in, type);
+                    //Stored by a version that didn't skip them, a message without a bucket can't be paged from.
+                    if (Room.isPushKey(message.getKey())) {
+                        messages.put(message.getKey(), message);
+                    }
+                }
+                recordCount++;
+            }
+        } catch (FileNotFoundException e) {
+            //Nothing stored yet.
+        } catch (EOFException e) {
+            //The process died while appending, the last record is incomplete.
+            mDamaged = true;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read messages", e);
+            mDamaged = true;
+        } finally {
+            closeQuietly(in);
+        }
+        mRecordCount = recordCount;
+
+        while (messages.size() > mMaxMessages) {
+            messages.pollFirstEntry();
+        }
+        return new ArrayList<>(messages.values());
+    }
+
+    static void writeRecord(DataOutputStream out, FriendlyMessage message) throws IOException {
+        out.writeByte(message.isEdit() ? RECORD_EDIT_IN_ROOM : RECORD_PUT_IN_ROOM);
+        writeString(out, message.getKey());
+        writeString(out, message.getText());
+        writeString(out, message.getName());
+        writeString(out, message.getPhotoUrl());
+        writeString(out, message.getThumbnailUrl());
+        writeString(out, message.getRoomId());
+    }
+
+    /*Read the next record, or return null at the end of the stream.*/
+    static FriendlyMessage readRecord(DataInputStream in) throws IOException {
+        int type = in.read();
+        if (type == -1) {
+            return null;
+        }
+        return readPut(in, type);
+    }
+
+    private static FriendlyMessage readPut(DataInputStream in, int type) throws IOException {
+        if (type != RECORD_PUT && type != RECORD_PUT_WITH_THUMBNAIL && type != RECORD_PUT_IN_ROOM
+                && type != RECORD_EDIT_IN_ROOM) {
+            throw new IOException("Unknown record type " + type);
+        }
+        String key = readString(in);
+        FriendlyMessage message = new FriendlyMessage(readString(in), readString(in), readString(in));
+        message.setKey(key);
+        if (type != RECORD_PUT) {
+            message.setThumbnailUrl(readString(in));
+        }
+        if (type == RECORD_PUT_IN_ROOM || type == RECORD_EDIT_IN_ROOM) {
+            message.setRoomId(readString(in));
+        }
+        message.setEdit(type == RECORD_EDIT_IN_ROOM);
+        return message;
+    }
+
+    //Strings are written as a byte length (-1 for null) followed by UTF-8, so there is no 64KB limit like writeUTF.
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > MAX_STRING_BYTES) {
+            throw new IOException("String too long: " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,40 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat;
+
+import java.util.Map;
+
+/**
+ * The writes the outgoing queue makes, by path relative to the root.
+ * <p/>
+ * {@link FirebaseMessageWriter} makes them on the realtime database. Tests use a fake that behaves
+ * the same way: a write shows up to the listeners of the written paths right away, and is taken
+ * back if the server refuses it, before the callback is told.
+ */
+public interface MessageWriter {
+
+    interface CompletionCallback {
+        //Called on the main thread, with a null error once the server has the write. rejected tells a
+        //write the security rules refused, which fails the same way when retried, from a failure that may pass.
+        void onComplete(Exception error, boolean rejected);
+    }
+
+    /*A new push key, made from the server time. Nothing is written.*/
+    String newKey();
+
+    /*Write all the children in one atomic multi-path update. A null value deletes.*/
+    void updateChildren(Map<String, Object> children, CompletionCallback callback);
+}
@@ -0,0 +1,447 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.firebase.database.FirebaseDatabase;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Buffers outgoing messages and writes them to the database in batches.
+ * <p/>
+ * Every message gets its push key as soon as it is sent, and the messages pending at flush time
+ * are written together as a single multi-path updateChildren(), each to the day bucket of its room
+ * along with that bucket's index entry (see {@link Room}). Because the keys are fixed, writing
+ * a batch again is harmless. So the queue is persisted to disk until the server acknowledges the
+ * write, and failed writes are retried with exponential backoff. Pending messages survive process
+ * death and are sent the next time the queue is created.
+ * <p/>
+ * A write the security rules reject (PERMISSION_DENIED, which is also what a failed .validate
+ * rule reports) is not retried as is. A rejected batch is split and its messages are written one at
+ * a time, so only the offending message is dropped and the others still go out. update() writes a message again under the
+ * same key, e.g. to add the photo to a photo message, along with a change marker, so clients that
+ * were away read it again (see {@link Room}). A {@link Listener} is told when a message
+ * is queued, written or fails, so it can be shown before the server has it. Everything except file
+ * access runs on the main thread.
+ */
+public class OutgoingMessageQueue {
+
+    private static final String TAG = "OutgoingMessageQueue";
+
+    //How long to wait for more messages before writing, so a paste or a burst goes out as one write.
+    public static final long DEFAULT_FLUSH_DELAY_MS = 100;
+    public static final int DEFAULT_MAX_BATCH_SIZE = 100;
+
+    private static final long INITIAL_RETRY_DELAY_MS = 1000;
+    private static final long MAX_RETRY_DELAY_MS = 60 * 1000;
+
+    public interface Listener {
+        //A message was queued, either just now or restored from a previous process.
+        void onMessageQueued(FriendlyMessage message);
+
+        //The server acknowledged these messages.
+        void onMessagesSent(List<FriendlyMessage> messages);
+
+        //Writing these messages failed. They stay queued and are retried.
+        void onSendFailed(List<FriendlyMessage> messages);
+
+        //The server rejected these messages for good, they were dropped from the queue.
+        void onMessagesRejected(List<FriendlyMessage> messages);
+    }
+
+    /*Runs the queue's own tasks after a delay, on the main thread in the app. Tests run them when they choose.*/
+    interface Scheduler {
+        void schedule(Runnable task, long delayMs);
+
+        void cancel(Runnable task);
+    }
+
+    private static OutgoingMessageQueue sInstance;
+
+    public static synchronized OutgoingMessageQueue getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new OutgoingMessageQueue(new FirebaseMessageWriter(FirebaseDatabase.getInstance().getReference()),
+                    new File(context.getApplicationContext().getFilesDir(), "outgoing.queue"),
+                    Executors.newSingleThreadExecutor(), new Scheduler() {
+                        private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+                        @Override
+                        public void schedule(Runnable task, long delayMs) {
+                            mHandler.postDelayed(task, delayMs);
+                        }
+
+                        @Override
+                        public void cancel(Runnable task) {
+                            mHandler.removeCallbacks(task);
+                        }
+                    });
+        }
+        return sInstance;
+    }
+
+    private final MessageWriter mWriter;
+    private final File mFile;
+    private final Executor mFileExecutor;
+    private final Scheduler mScheduler;
+
+    //Waiting to be written, oldest first.
+    private final List<FriendlyMessage> mPending = new ArrayList<>();
+    //Written but not acknowledged yet.
+    private List<FriendlyMessage> mInFlight;
+
+    private final List<Listener> mListeners = new ArrayList<>();
+    private long mFlushDelayMs = DEFAULT_FLUSH_DELAY_MS;
+    private int mMaxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+    private boolean mFlushScheduled;
+    private int mFailedAttempts;
+    //Messages left to write one at a time after a batch was rejected.
+    private int mIsolateRemaining;
+    //Bumped by clear(), so writes started before it are ignored when they complete.
+    private int mGeneration;
+
+    //Metrics
+    private long mFlushCount;
+    private long mFlushedMessageCount;
+    private long mLastFlushLatencyMs;
+    private long mTotalFlushLatencyMs;
+    private long mFailedFlushCount;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mFlushScheduled = false;
+            flush();
+        }
+    };
+
+    OutgoingMessageQueue(MessageWriter writer, File file, Executor fileExecutor, Scheduler scheduler) {
+        mWriter = writer;
+        mFile = file;
+        mFileExecutor = fileExecutor;
+        mScheduler = scheduler;
+        restore();
+    }
+
+    public void setFlushDelay(long flushDelayMs) {
+        mFlushDelayMs = flushDelayMs;
+    }
+
+    public void setMaxBatchSize(int maxBatchSize) {
+        mMaxBatchSize = maxBatchSize;
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /*The messages not acknowledged yet, oldest first.*/
+    public List<FriendlyMessage> getPendingMessages() {
+        List<FriendlyMessage> messages = new ArrayList<>();
+        if (mInFlight != null) {
+            messages.addAll(mInFlight);
+        }
+        messages.addAll(mPending);
+        return messages;
+    }
+
+    /*Queue a message for sending to its room. It gets its push key right away and is written on the next flush.*/
+    public void send(FriendlyMessage message) {
+        if (message.getRoomId() == null) {
+            throw new IllegalArgumentException("No room set");
+        }
+        /*A push ID contains 120 bits of information.
+        The first 48 bits are a timestamp, which both reduces the chance of collision
+        and allows consecutively created push IDs to sort chronologically.
+        The timestamp is followed by 72 bits of randomness,
+        which ensures that even two people creating push IDs at the exact same millisecond
+        are extremely unlikely to generate identical IDs.*/
+        message.setKey(mWriter.newKey());
+        PerfStats.getInstance().onMessageSent(message.getKey());
+        mPending.add(message);
+        persist();
+        scheduleFlush(mFlushDelayMs);
+        for (Listener listener : new ArrayList<>(mListeners)) {
+            listener.onMessageQueued(message);
+        }
+    }
+
+    /*Queue a new version of a message sent before, e.g. once the photo of a photo message is uploaded.
+    It keeps its push key, so it replaces the message in the database. A version still waiting to
+    be written is replaced in the queue, and needs no change marker unless it was an edit too.*/
+    public void update(FriendlyMessage message) {
+        if (message.getKey() == null || message.getRoomId() == null) {
+            throw new IllegalArgumentException("Not sent before");
+        }
+        int index = indexOf(mPending, message.getKey());
+        message.setEdit(index < 0 || mPending.get(index).isEdit());
+        if (index >= 0) {
+            mPending.set(index, message);
+        } else {
+            mPending.add(message);
+        }
+        persist();
+        scheduleFlush(mFlushDelayMs);
+        for (Listener listener : new ArrayList<>(mListeners)) {
+            listener.onMessageQueued(message);
+        }
+    }
+
+    /*Drop every message not acknowledged yet, including the persisted copy, e.g. when the user signs out.
+    A write already in progress still completes, but the listeners are not told about it.*/
+    public void clear() {
+        mGeneration++;
+        mPending.clear();
+        mInFlight = null;
+        mScheduler.cancel(mFlushRunnable);
+        mFlushScheduled = false;
+        mFailedAttempts = 0;
+        mIsolateRemaining = 0;
+        persist();
+    }
+
+    private static int indexOf(List<FriendlyMessage> messages, String key) {
+        for (int i = 0; i < messages.size(); i++) {
+            if (key.equals(messages.get(i).getKey())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public int getQueueDepth() {
+        return mPending.size() + (mInFlight != null ? mInFlight.size() : 0);
+    }
+
+    public long getLastFlushLatencyMs() {
+        return mLastFlushLatencyMs;
+    }
+
+    public long getAverageFlushLatencyMs() {
+        long acknowledged = mFlushCount - mFailedFlushCount;
+        return acknowledged == 0 ? 0 : mTotalFlushLatencyMs / acknowledged;
+    }
+
+    private void scheduleFlush(long delayMs) {
+        if (!mFlushScheduled && mInFlight == null) {
+            mFlushScheduled = true;
+            mScheduler.schedule(mFlushRunnable, delayMs);
+        }
+    }
+
+    /*Write up to one batch of pending messages with a single updateChildren().*/
+    private void flush() {
+        if (mInFlight != null || mPending.isEmpty()) {
+            return;
+        }
+        int batchSize = mIsolateRemaining > 0 ? 1 : Math.min(mPending.size(), mMaxBatchSize);
+        final List<FriendlyMessage> batch = new ArrayList<>(mPending.subList(0, batchSize));
+        mPending.subList(0, batchSize).clear();
+        mInFlight = batch;
+
+        Map<String, Object> childUpdates = new HashMap<>();
+        for (FriendlyMessage message : batch) {
+            childUpdates.put(Room.messagePath(message.getRoomId(), message.getKey()), message.toMap());
+            childUpdates.put(Room.bucketIndexPath(message.getRoomId(), message.getKey()), true);
+            if (message.isEdit()) {
+                //In the same update, so no client sees the edit without its marker. The marker gets
+                //its key now rather than at update(), so it sorts after the ones read meanwhile.
+                Map<String, Object> marker = new HashMap<>();
+                marker.put("key", message.getKey());
+                childUpdates.put(Room.changePath(message.getRoomId(), mWriter.newKey()), marker);
+            }
+        }
+        final long startMs = SystemClock.elapsedRealtime();
+        final int generation = mGeneration;
+        mFlushCount++;
+        mWriter.updateChildren(childUpdates, new MessageWriter.CompletionCallback() {
+            @Override
+            public void onComplete(Exception error, boolean rejected) {
+                if (generation != mGeneration) {
+                    //Cleared while in flight.
+                    return;
+                }
+                mInFlight = null;
+                if (rejected) {
+                    onRejected(batch, error);
+                } else if (error == null) {
+                    mLastFlushLatencyMs = SystemClock.elapsedRealtime() - startMs;
+                    mTotalFlushLatencyMs += mLastFlushLatencyMs;
+                    mFlushedMessageCount += batch.size();
+                    mFailedAttempts = 0;
+                    if (mIsolateRemaining > 0) {
+                        mIsolateRemaining--;
+                    }
+                    persist();
+                    scheduleFlush(0);
+                    for (Listener listener : new ArrayList<>(mListeners)) {
+                        listener.onMessagesSent(batch);
+                    }
+                } else {
+                    //Put the batch back in front and retry later, backing off a bit more after each failure.
+                    Log.w(TAG, "Failed to send " + batch.size() + " messages", error);
+                    mFailedFlushCount++;
+                    mPending.addAll(0, batch);
+                    long delayMs = Math.min(MAX_RETRY_DELAY_MS, INITIAL_RETRY_DELAY_MS << Math.min(mFailedAttempts, 16));
+                    mFailedAttempts++;
+                    scheduleFlush(delayMs);
+                    for (Listener listener : new ArrayList<>(mListeners)) {
+                        listener.onSendFailed(batch);
+                    }
+                }
+            }
+        });
+    }
+
+    /*Retrying a rejected write as is fails the same way. A batch is split to find the messages at
+    fault, a single message is dropped.*/
+    private void onRejected(List<FriendlyMessage> batch, Exception error) {
+        mFailedFlushCount++;
+        if (batch.size() > 1) {
+            Log.w(TAG, "Batch of " + batch.size() + " messages rejected, sending them one at a time",
+                    error);
+            mPending.addAll(0, batch);
+            mIsolateRemaining = batch.size();
+            scheduleFlush(0);
+            return;
+        }
+        Log.w(TAG, "Message " + batch.get(0).getKey() + " rejected, dropping it", error);
+        if (mIsolateRemaining > 0) {
+            mIsolateRemaining--;
+        }
+        persist();
+        scheduleFlush(0);
+        for (Listener listener : new ArrayList<>(mListeners)) {
+            listener.onMessagesRejected(batch);
+        }
+    }
+
+    /*Write the unacknowledged messages to disk, replacing the previous copy.*/
+    private void persist() {
+        final List<FriendlyMessage> messages = getPendingMessages();
+        mFileExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (messages.isEmpty()) {
+                    if (mFile.exists() && !mFile.delete()) {
+                        Log.w(TAG, "Failed to delete " + mFile);
+                    }
+                    return;
+                }
+                File tmpFile = new File(mFile.getPath() + ".tmp");
+                DataOutputStream out = null;
+                try {
+                    out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+                    for (FriendlyMessage message : messages) {
+                        MessageStore.writeRecord(out, message);
+                    }
+                    out.close();
+                    out = null;
+                    if (!tmpFile.renameTo(mFile)) {
+                        Log.w(TAG, "Failed to replace " + mFile);
+                    }
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to persist the queue", e);
+                } finally {
+                    MessageStore.closeQuietly(out);
+                }
+            }
+        });
+    }
+
+    /*Read back the messages that were not acknowledged before the process died, and send them.*/
+    private void restore() {
+        final int generation = mGeneration;
+        mFileExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<FriendlyMessage> messages = new ArrayList<>();
+                DataInputStream in = null;
+                try {
+                    in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+                    FriendlyMessage message;
+                    while ((message = MessageStore.readRecord(in)) != null) {
+                        //Queued before rooms existed.
+                        if (message.getRoomId() == null) {
+                            message.setRoomId(Room.DEFAULT_ROOM_ID);
+                        }
+                        messages.add(message);
+                    }
+                } catch (FileNotFoundException e) {
+                    //Nothing pending.
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to restore the queue", e);
+                } finally {
+                    MessageStore.closeQuietly(in);
+                }
+                if (messages.isEmpty()) {
+                    return;
+                }
+                mScheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != mGeneration) {
+                            //Cleared before they were read.
+                            return;
+                        }
+                        mPending.addAll(0, messages);
+                        //Messages sent in the meantime replaced the file, write them all again.
+                        persist();
+                        scheduleFlush(0);
+                        for (Listener listener : new ArrayList<>(mListeners)) {
+                            for (FriendlyMessage message : messages) {
+                                listener.onMessageQueued(message);
+                            }
+                        }
+                    }
+                }, 0);
+            }
+        });
+    }
+
+    @Override
+    public String toString() {
+        return "OutgoingMessageQueue{depth=" + getQueueDepth()
+                + ", flushes=" + mFlushCount
+                + ", failedFlushes=" + mFailedFlushCount
+                + ", messages=" + mFlushedMessageCount
+                + ", lastFlushMs=" + mLastFlushLatencyMs
+                + ", averageFlushMs=" + getAverageFlushLatencyMs() + "}";
+    }
+}
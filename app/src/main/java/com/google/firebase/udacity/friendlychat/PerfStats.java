@@ -0,0 +1,204 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Process-wide performance histograms, all in microseconds:
+ * <ul>
+ * <li>send to echo: from queueing a message to its onChildAdded() coming back</li>
+ * <li>ingest batch: applying a batch of messages on the main thread</li>
+ * <li>decode: decoding one message on the ingest worker</li>
+ * <li>bind: binding one row of the message list</li>
+ * <li>image load: from requesting a photo that wasn't in the memory cache to having it decoded,
+ * including the disk or network read</li>
+ * <li>frame: time between frames while the list is shown, see {@link FrameMonitor}</li>
+ * </ul>
+ * The dump also includes the stages of the cold start, see {@link StartupTrace}.
+ * Timings are sampled: startTimer() decides with a cheap random number whether this one is
+ * measured, and returns 0 if not, so unsampled calls don't even read the clock. With a low sampling
+ * rate it can stay on in release builds.
+ */
+public class PerfStats {
+
+    private static final String TAG = "PerfStats";
+
+    //Everything in debug builds, a sample in release builds.
+    public static final float DEFAULT_SAMPLING_RATE = BuildConfig.DEBUG ? 1f : 0.05f;
+
+    //Sends waiting for their echo. A sampled send whose echo never comes is dropped after this many.
+    private static final int MAX_PENDING_ECHOES = 256;
+
+    private static final PerfStats sInstance = new PerfStats();
+
+    //Dumps get a thread of their own, so a dump doesn't queue behind the message store writes, nor
+    //delay the writes whose timings it reports.
+    private static final Executor sDumpExecutor = Executors.newSingleThreadExecutor();
+
+    public static PerfStats getInstance() {
+        return sInstance;
+    }
+
+    public final Histogram sendToEcho = new Histogram("sendToEcho");
+    public final Histogram ingestBatch = new Histogram("ingestBatch");
+    public final Histogram decode = new Histogram("decode");
+    public final Histogram bind = new Histogram("bind");
+    public final Histogram imageLoad = new Histogram("imageLoad");
+    public final Histogram frame = new Histogram("frame");
+
+    private final List<Histogram> mHistograms = Arrays.asList(sendToEcho, ingestBatch, decode, bind, imageLoad, frame);
+
+    //Frames that should have been drawn but weren't, counted by FrameMonitor.
+    private volatile long mDroppedFrames;
+
+    //Compared against the random number in startTimer(), so a rate of 1 samples everything.
+    private volatile int mSamplingThreshold;
+    //xorshift state. Races between threads only make it less random, which doesn't matter here.
+    private int mRandom = 0x2545F491;
+
+    private final Map<String, Long> mSendTimes = new LinkedHashMap<String, Long>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAX_PENDING_ECHOES;
+        }
+    };
+
+    private PerfStats() {
+        setSamplingRate(DEFAULT_SAMPLING_RATE);
+    }
+
+    /*Share of timings to measure, between 0 and 1.*/
+    public void setSamplingRate(float samplingRate) {
+        float rate = Math.max(0f, Math.min(1f, samplingRate));
+        mSamplingThreshold = rate >= 1f ? Integer.MAX_VALUE : (int) (rate * Integer.MAX_VALUE);
+    }
+
+    /*The current time if this timing is sampled, otherwise 0.*/
+    public long startTimer() {
+        return isSampled() ? System.nanoTime() : 0;
+    }
+
+    /*Record the time since startTimer() returned startNanos, if it was sampled.*/
+    public void recordSince(Histogram histogram, long startNanos) {
+        if (startNanos != 0) {
+            histogram.record((System.nanoTime() - startNanos) / 1000);
+        }
+    }
+
+    public boolean isSampled() {
+        int threshold = mSamplingThreshold;
+        if (threshold == Integer.MAX_VALUE) {
+            return true;
+        }
+        int x = mRandom;
+        x ^= x << 13;
+        x ^= x >>> 17;
+        x ^= x << 5;
+        mRandom = x;
+        return (x & Integer.MAX_VALUE) < threshold;
+    }
+
+    /*A message was queued for sending. Called on the main thread.*/
+    public void onMessageSent(String key) {
+        if (isSampled()) {
+            mSendTimes.put(key, System.nanoTime());
+        }
+    }
+
+    /*A message came back through the live listener. Called on the main thread.*/
+    public void onMessageEchoed(String key) {
+        if (mSendTimes.isEmpty()) {
+            return;
+        }
+        Long sendTime = mSendTimes.remove(key);
+        if (sendTime != null) {
+            sendToEcho.record((System.nanoTime() - sendTime) / 1000);
+        }
+    }
+
+    public void addDroppedFrames(long count) {
+        mDroppedFrames += count;
+    }
+
+    public long getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    public void reset() {
+        for (Histogram histogram : mHistograms) {
+            histogram.reset();
+        }
+        mDroppedFrames = 0;
+    }
+
+    public JSONObject toJson() {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("droppedFrames", mDroppedFrames);
+            json.put("startup", StartupTrace.toJson());
+            for (Histogram histogram : mHistograms) {
+                json.put(histogram.getName(), histogram.toJson());
+            }
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        }
+        return json;
+    }
+
+    /*Write toJson() to a file, off the calling thread. Dumps are written in the order they were made.*/
+    public void dump(final File file) {
+        final String json = toJson().toString();
+        sDumpExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                OutputStream out = null;
+                try {
+                    out = new FileOutputStream(file);
+                    out.write(json.getBytes(Charset.forName("UTF-8")));
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to write " + file, e);
+                } finally {
+                    MessageStore.closeQuietly(out);
+                }
+            }
+        });
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder summary = new StringBuilder("Times in microseconds, droppedFrames=").append(mDroppedFrames);
+        for (Histogram histogram : mHistograms) {
+            summary.append('\n').append(histogram);
+        }
+        return summary.toString();
+    }
+}
@@ -0,0 +1,75 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat;
+
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+
+/**
+ * Loads the photos of the rows just beyond the visible ones into Glide's memory cache, in the
+ * direction the list is scrolling, so they are ready when their rows are bound.
+ */
+public class PhotoPreloader extends RecyclerView.OnScrollListener {
+
+    public static final int DEFAULT_PRELOAD_COUNT = 6;
+
+    private final MessageAdapter mAdapter;
+    private final LinearLayoutManager mLayoutManager;
+    private final int mPreloadCount;
+
+    //Range of positions already preloaded, so scrolling doesn't request them again.
+    private int mPreloadedStart = -1;
+    private int mPreloadedEnd = -1;
+
+    public PhotoPreloader(MessageAdapter adapter, LinearLayoutManager layoutManager, int preloadCount) {
+        mAdapter = adapter;
+        mLayoutManager = layoutManager;
+        mPreloadCount = preloadCount;
+    }
+
+    @Override
+    public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+        if (dy == 0) {
+            return;
+        }
+        int first = mLayoutManager.findFirstVisibleItemPosition();
+        int last = mLayoutManager.findLastVisibleItemPosition();
+        if (first == RecyclerView.NO_POSITION) {
+            return;
+        }
+        //The newest messages are at the bottom, so scrolling up reads older ones.
+        if (dy < 0) {
+            preload(recyclerView, Math.max(0, first - mPreloadCount), first);
+        } else {
+            preload(recyclerView, last + 1, Math.min(mAdapter.getItemCount(), last + 1 + mPreloadCount));
+        }
+    }
+
+    private void preload(RecyclerView recyclerView, int start, int end) {
+        int photoSize = mAdapter.getPhotoSize();
+        for (int position = start; position < end; position++) {
+            if (position >= mPreloadedStart && position < mPreloadedEnd) {
+                continue;
+            }
+            FriendlyMessage message = mAdapter.getItem(position);
+            if (message.getPhotoUrl() != null || message.getThumbnailUrl() != null) {
+                MessageAdapter.photoRequest(recyclerView.getContext(), message, photoSize).preload(photoSize, photoSize);
+            }
+        }
+        mPreloadedStart = start;
+        mPreloadedEnd = end;
+    }
+}
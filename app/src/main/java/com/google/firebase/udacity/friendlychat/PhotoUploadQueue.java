@@ -0,0 +1,691 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import com.google.android.gms.tasks.OnFailureListener;
+import com.google.android.gms.tasks.OnSuccessListener;
+import com.google.firebase.storage.FirebaseStorage;
+import com.google.firebase.storage.OnProgressListener;
+import com.google.firebase.storage.StorageException;
+import com.google.firebase.storage.StorageMetadata;
+import com.google.firebase.storage.StorageReference;
+import com.google.firebase.storage.UploadTask;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Prepares picked photos, uploads them to Firebase Storage and sends a message for each one.
+ * <p/>
+ * Each photo is downscaled and recompressed on a background thread, and a small thumbnail is
+ * generated alongside it. Uploads then go through a queue that runs a bounded number of them at a
+ * time. The thumbnail is uploaded first and the message is sent with it right away, so it shows up
+ * after a few kilobytes instead of after the whole photo. Once the photo is uploaded, the message is
+ * sent again under the same key with its URL, which the other clients get as an edit.
+ * <p/>
+ * Jobs and their upload session URIs are kept in SharedPreferences, so an upload interrupted
+ * by process death resumes where it stopped the next time the queue is created. A failed upload is
+ * retried with exponential backoff, and a {@link Listener} is told about it, e.g. to let the user know.
+ * <p/>
+ * Photos are stored under a hash of the picked file's content and of the settings used to prepare it.
+ * Before uploading, the queue checks whether that object already exists. If it does, the existing
+ * download URL is reused, so a photo that is shared again is not uploaded again. There is one queue
+ * per process, so the uploads carry on when the activity goes away.
+ * Apart from the background preparation, everything runs on the main thread.
+ */
+public class PhotoUploadQueue {
+
+    private static final String TAG = "PhotoUploadQueue";
+
+    public static final int DEFAULT_MAX_DIMENSION = 1280;
+    public static final int DEFAULT_QUALITY = 80;
+    public static final int DEFAULT_THUMBNAIL_DIMENSION = 200;
+    public static final int DEFAULT_MAX_CONCURRENT_UPLOADS = 2;
+
+    private static final int THUMBNAIL_QUALITY = 70;
+    private static final long INITIAL_RETRY_DELAY_MS = 2000;
+    private static final long MAX_RETRY_DELAY_MS = 5 * 60 * 1000;
+    private static final String PREFS_NAME = "photo_uploads";
+    //Prepared photos and thumbnails in the cache directory.
+    private static final String FILE_PREFIX = "upload_";
+
+    public interface Listener {
+        //A photo failed to upload. If willRetry it is uploaded again later, otherwise it was dropped.
+        void onUploadFailed(boolean willRetry);
+    }
+
+    private static PhotoUploadQueue sInstance;
+
+    public static synchronized PhotoUploadQueue getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PhotoUploadQueue(context,
+                    FirebaseStorage.getInstance().getReference().child("chat_photos"),
+                    OutgoingMessageQueue.getInstance(context));
+        }
+        return sInstance;
+    }
+
+    private final Context mContext;
+    private final StorageReference mPhotosReference;
+    private final OutgoingMessageQueue mOutgoingMessageQueue;
+    private final SharedPreferences mPreferences;
+    //Decoding full size photos takes a lot of memory, so they are prepared one at a time.
+    //Files in the cache directory are deleted on it too, after the photos being prepared.
+    private static final Executor sPrepareExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private final ArrayDeque<Job> mPendingJobs = new ArrayDeque<>();
+    private final Set<Job> mActiveJobs = new HashSet<>();
+    //Failed jobs waiting for their retry delay, posted to the main handler.
+    private final List<Runnable> mRetries = new ArrayList<>();
+    private int mActiveUploads;
+    //Bumped by clear(), so photos prepared before it are dropped.
+    private int mGeneration;
+    private final List<Listener> mListeners = new ArrayList<>();
+
+    private int mMaxDimension = DEFAULT_MAX_DIMENSION;
+    private int mQuality = DEFAULT_QUALITY;
+    private int mThumbnailDimension = DEFAULT_THUMBNAIL_DIMENSION;
+    private int mMaxConcurrentUploads = DEFAULT_MAX_CONCURRENT_UPLOADS;
+
+    PhotoUploadQueue(Context context, StorageReference photosReference, OutgoingMessageQueue outgoingMessageQueue) {
+        mContext = context.getApplicationContext();
+        mPhotosReference = photosReference;
+        mOutgoingMessageQueue = outgoingMessageQueue;
+        mPreferences = mContext.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        restoreJobs();
+    }
+
+    public void setMaxDimension(int maxDimension) {
+        mMaxDimension = maxDimension;
+    }
+
+    public void setQuality(int quality) {
+        mQuality = quality;
+    }
+
+    public void setThumbnailDimension(int thumbnailDimension) {
+        mThumbnailDimension = thumbnailDimension;
+    }
+
+    public void setMaxConcurrentUploads(int maxConcurrentUploads) {
+        mMaxConcurrentUploads = maxConcurrentUploads;
+        startUploads();
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /*Drop every job, including the ones waiting to be retried and the files prepared for them, e.g.
+    when the user signs out. Uploads in progress are cancelled.*/
+    public void clear() {
+        mGeneration++;
+        for (Job job : mActiveJobs) {
+            job.cancelled = true;
+            if (job.uploadTask != null) {
+                job.uploadTask.cancel();
+            }
+        }
+        mActiveJobs.clear();
+        mPendingJobs.clear();
+        mActiveUploads = 0;
+        //Only the retries: photos being prepared delete their own files once they see the new
+        //generation, and failures are still reported.
+        for (Runnable retry : mRetries) {
+            mMainHandler.removeCallbacks(retry);
+        }
+        mRetries.clear();
+        deleteAll(mContext);
+    }
+
+    /*clear() the queue if it exists, without creating it and Firebase Storage with it otherwise.*/
+    public static synchronized void clearAll(Context context) {
+        if (sInstance != null) {
+            sInstance.clear();
+        } else {
+            deleteAll(context.getApplicationContext());
+        }
+    }
+
+    private static void deleteAll(Context context) {
+        context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit().clear().apply();
+        final File dir = context.getCacheDir();
+        sPrepareExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                File[] files = dir.listFiles();
+                if (files == null) {
+                    return;
+                }
+                for (File file : files) {
+                    if (file.getName().startsWith(FILE_PREFIX) && !file.delete()) {
+                        Log.w(TAG, "Failed to delete " + file);
+                    }
+                }
+            }
+        });
+    }
+
+    /*Upload a photo and send it to the room with the given ID once done.*/
+    public void enqueue(final Uri sourceUri, final String author, final String roomId) {
+        final int generation = mGeneration;
+        final int maxDimension = mMaxDimension;
+        final int quality = mQuality;
+        final int thumbnailDimension = mThumbnailDimension;
+        sPrepareExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Job job;
+                try {
+                    job = prepare(sourceUri, author, roomId, maxDimension, quality, thumbnailDimension);
+                } catch (IOException e) {
+                    onPrepareFailed(sourceUri, e);
+                    return;
+                } catch (RuntimeException e) {
+                    //E.g. a SecurityException from a provider that revoked the permission.
+                    onPrepareFailed(sourceUri, e);
+                    return;
+                } catch (OutOfMemoryError e) {
+                    //A photo too large even when subsampled. The bitmaps are garbage now, so the next
+                    //photo has the memory again.
+                    onPrepareFailed(sourceUri, e);
+                    return;
+                }
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != mGeneration) {
+                            //Prepared before clear(), which couldn't see these files yet.
+                            removeJob(job);
+                            return;
+                        }
+                        saveJob(job);
+                        mPendingJobs.add(job);
+                        startUploads();
+                    }
+                });
+            }
+        });
+    }
+
+    /*Runs on the prepare executor. The photo is dropped, like one the storage rules reject.*/
+    private void onPrepareFailed(Uri sourceUri, Throwable e) {
+        Log.w(TAG, "Failed to prepare " + sourceUri, e);
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                notifyFailed(false);
+            }
+        });
+    }
+
+    /*Runs on the prepare executor. Writes the downscaled photo and its thumbnail to the cache directory.*/
+    private Job prepare(Uri sourceUri, String author, String roomId, int maxDimension, int quality, int thumbnailDimension)
+            throws IOException {
+        ContentResolver resolver = mContext.getContentResolver();
+
+        //Read the size first, so the photo can be decoded at a fraction of its full resolution.
+        //The content hash is computed while streaming the file for this.
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        String contentHash = hashAndDecodeBounds(resolver, sourceUri, options, maxDimension, quality, thumbnailDimension);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            throw new IOException("Not an image");
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSizeFor(options.outWidth, options.outHeight, maxDimension);
+        Bitmap bitmap = decode(resolver, sourceUri, options);
+        if (bitmap == null) {
+            throw new IOException("Failed to decode");
+        }
+
+        //Recompressing drops the EXIF orientation, so rotate the pixels instead.
+        Bitmap photo = scaleAndRotate(bitmap, maxDimension, orientationOf(resolver, sourceUri));
+        if (photo != bitmap) {
+            bitmap.recycle();
+        }
+        Bitmap thumbnail = scaleAndRotate(photo, thumbnailDimension, 0);
+
+        Job job = new Job(UUID.randomUUID().toString(), author, roomId);
+        job.contentHash = contentHash;
+        job.photoFile = new File(mContext.getCacheDir(), FILE_PREFIX + job.id + ".jpg");
+        job.thumbnailFile = new File(mContext.getCacheDir(), FILE_PREFIX + job.id + "_thumb.jpg");
+        boolean compressed = false;
+        try {
+            compress(photo, quality, job.photoFile);
+            compress(thumbnail, THUMBNAIL_QUALITY, job.thumbnailFile);
+            compressed = true;
+        } finally {
+            if (!compressed) {
+                //Nothing refers to a partly written job, it would stay in the cache.
+                job.photoFile.delete();
+                job.thumbnailFile.delete();
+            }
+            if (thumbnail != photo) {
+                thumbnail.recycle();
+            }
+            photo.recycle();
+        }
+        return job;
+    }
+
+    private void startUploads() {
+        while (mActiveUploads < mMaxConcurrentUploads && !mPendingJobs.isEmpty()) {
+            mActiveUploads++;
+            Job job = mPendingJobs.poll();
+            mActiveJobs.add(job);
+            uploadNext(job);
+        }
+    }
+
+    /*The thumbnail goes first, it is small and the message is sent as soon as it is up.*/
+    private void uploadNext(final Job job) {
+        final boolean thumbnail = job.isThumbnailNext();
+        final StorageReference photoRef = mPhotosReference.child(
+                thumbnail ? job.contentHash + "_thumb.jpg" : job.contentHash + ".jpg");
+        if (job.sessionUri != null) {
+            //An upload was already started, resume it.
+            upload(job, thumbnail, photoRef);
+            return;
+        }
+
+        //Reuse the photo if someone already uploaded the same one.
+        photoRef.getMetadata().addOnSuccessListener(new OnSuccessListener<StorageMetadata>() {
+            @Override
+            public void onSuccess(StorageMetadata storageMetadata) {
+                if (job.cancelled) {
+                    return;
+                }
+                Uri downloadUrl = storageMetadata.getDownloadUrl();
+                if (downloadUrl != null) {
+                    onFileUploaded(job, thumbnail, downloadUrl.toString());
+                } else {
+                    upload(job, thumbnail, photoRef);
+                }
+            }
+        }).addOnFailureListener(new OnFailureListener() {
+            @Override
+            public void onFailure(Exception e) {
+                if (job.cancelled) {
+                    return;
+                }
+                if (e instanceof StorageException
+                        && ((StorageException) e).getErrorCode() == StorageException.ERROR_OBJECT_NOT_FOUND) {
+                    upload(job, thumbnail, photoRef);
+                } else {
+                    onUploadFailed(job, e);
+                }
+            }
+        });
+    }
+
+    private void upload(final Job job, final boolean thumbnail, StorageReference photoRef) {
+        File file = thumbnail ? job.thumbnailFile : job.photoFile;
+        StorageMetadata metadata = new StorageMetadata.Builder().setContentType("image/jpeg").build();
+
+        UploadTask uploadTask = photoRef.putFile(Uri.fromFile(file), metadata, job.sessionUri);
+        job.uploadTask = uploadTask;
+        uploadTask.addOnProgressListener(new OnProgressListener<UploadTask.TaskSnapshot>() {
+            @Override
+            public void onProgress(UploadTask.TaskSnapshot taskSnapshot) {
+                if (job.cancelled) {
+                    return;
+                }
+                //Remember the session, so the upload can resume after process death.
+                Uri sessionUri = taskSnapshot.getUploadSessionUri();
+                if (sessionUri != null && !sessionUri.equals(job.sessionUri)) {
+                    job.sessionUri = sessionUri;
+                    saveJob(job);
+                }
+            }
+        }).addOnSuccessListener(new OnSuccessListener<UploadTask.TaskSnapshot>() {
+            @Override
+            public void onSuccess(UploadTask.TaskSnapshot taskSnapshot) {
+                job.uploadTask = null;
+                if (job.cancelled) {
+                    return;
+                }
+                job.sessionUri = null;
+                onFileUploaded(job, thumbnail, taskSnapshot.getDownloadUrl().toString());
+            }
+        }).addOnFailureListener(new OnFailureListener() {
+            @Override
+            public void onFailure(Exception e) {
+                job.uploadTask = null;
+                if (job.cancelled) {
+                    return;
+                }
+                onUploadFailed(job, e);
+            }
+        });
+    }
+
+    private void onFileUploaded(Job job, boolean thumbnail, String url) {
+        if (thumbnail) {
+            FriendlyMessage friendlyMessage = job.onThumbnailUploaded(url);
+            mOutgoingMessageQueue.send(friendlyMessage);
+            //The key is kept with the job, so the photo goes to the same message after process death.
+            job.messageKey = friendlyMessage.getKey();
+            saveJob(job);
+            uploadNext(job);
+            return;
+        }
+        removeJob(job);
+        onUploadFinished(job);
+        FriendlyMessage friendlyMessage = job.onPhotoUploaded(url);
+        if (friendlyMessage.getKey() != null) {
+            mOutgoingMessageQueue.update(friendlyMessage);
+        } else {
+            //Thumbnail uploaded by a version that sent the message only once the photo was up.
+            mOutgoingMessageQueue.send(friendlyMessage);
+        }
+    }
+
+    private void onUploadFailed(final Job job, Exception e) {
+        Log.w(TAG, "Upload failed for " + job.contentHash, e);
+        job.sessionUri = null;
+        onUploadFinished(job);
+        if (e instanceof StorageException
+                && ((StorageException) e).getErrorCode() == StorageException.ERROR_NOT_AUTHORIZED) {
+            //The storage rules reject it, trying again won't help.
+            removeJob(job);
+            notifyFailed(false);
+            return;
+        }
+        //Keep the job, so it is retried after process death too. The session may have expired, so the
+        //retry starts a new one.
+        saveJob(job);
+        long delayMs = job.onUploadFailed();
+        Runnable retry = new Runnable() {
+            @Override
+            public void run() {
+                mRetries.remove(this);
+                mPendingJobs.add(job);
+                startUploads();
+            }
+        };
+        mRetries.add(retry);
+        mMainHandler.postDelayed(retry, delayMs);
+        notifyFailed(true);
+    }
+
+    private void notifyFailed(boolean willRetry) {
+        for (Listener listener : new ArrayList<>(mListeners)) {
+            listener.onUploadFailed(willRetry);
+        }
+    }
+
+    private void onUploadFinished(Job job) {
+        mActiveJobs.remove(job);
+        mActiveUploads--;
+        startUploads();
+    }
+
+    private void restoreJobs() {
+        for (Map.Entry<String, ?> entry : mPreferences.getAll().entrySet()) {
+            Job job = Job.fromJson(entry.getKey(), String.valueOf(entry.getValue()));
+            if (job != null && job.photoFile.exists() && job.thumbnailFile.exists()) {
+                mPendingJobs.add(job);
+            } else {
+                mPreferences.edit().remove(entry.getKey()).apply();
+            }
+        }
+        startUploads();
+    }
+
+    private void saveJob(Job job) {
+        mPreferences.edit().putString(job.id, job.toJson()).apply();
+    }
+
+    private void removeJob(Job job) {
+        mPreferences.edit().remove(job.id).apply();
+        if (!job.photoFile.delete() || !job.thumbnailFile.delete()) {
+            Log.w(TAG, "Failed to delete the files of " + job.id);
+        }
+    }
+
+    /*Decode the bounds of the picked file and hash all of its bytes along the way.*/
+    private static String hashAndDecodeBounds(ContentResolver resolver, Uri uri, BitmapFactory.Options options,
+                                              int maxDimension, int quality, int thumbnailDimension) throws IOException {
+        InputStream in = resolver.openInputStream(uri);
+        if (in == null) {
+            throw new IOException("Failed to open " + uri);
+        }
+        DigestInputStream digestIn = new DigestInputStream(in, newContentDigest());
+        try {
+            BitmapFactory.decodeStream(digestIn, null, options);
+            return contentHash(digestIn, maxDimension, quality, thumbnailDimension);
+        } finally {
+            digestIn.close();
+        }
+    }
+
+    static MessageDigest newContentDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /*Hash what is left of the stream, decoding the bounds stops early, then the settings, as the
+    same file prepared differently is a different object. Returns the hash in hex.*/
+    static String contentHash(DigestInputStream in, int maxDimension, int quality, int thumbnailDimension)
+            throws IOException {
+        byte[] buffer = new byte[8192];
+        while (in.read(buffer) != -1) {
+        }
+        MessageDigest digest = in.getMessageDigest();
+        digest.update((maxDimension + ":" + quality + ":" + thumbnailDimension + ":" + THUMBNAIL_QUALITY).getBytes());
+
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    private static Bitmap decode(ContentResolver resolver, Uri uri, BitmapFactory.Options options) throws IOException {
+        InputStream in = resolver.openInputStream(uri);
+        if (in == null) {
+            throw new IOException("Failed to open " + uri);
+        }
+        try {
+            return BitmapFactory.decodeStream(in, null, options);
+        } finally {
+            in.close();
+        }
+    }
+
+    //The largest power of two that keeps the decoded photo at least maxDimension on its long side.
+    static int sampleSizeFor(int width, int height, int maxDimension) {
+        int longSide = Math.max(width, height);
+        int sampleSize = 1;
+        while (longSide / (sampleSize * 2) >= maxDimension) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private static Bitmap scaleAndRotate(Bitmap bitmap, int maxDimension, int degrees) {
+        int longSide = Math.max(bitmap.getWidth(), bitmap.getHeight());
+        float scale = longSide > maxDimension ? (float) maxDimension / longSide : 1f;
+        if (scale == 1f && degrees == 0) {
+            return bitmap;
+        }
+        Matrix matrix = new Matrix();
+        matrix.postScale(scale, scale);
+        matrix.postRotate(degrees);
+        return Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+    }
+
+    private static int orientationOf(ContentResolver resolver, Uri uri) {
+        Cursor cursor = null;
+        try {
+            cursor = resolver.query(uri, new String[]{MediaStore.Images.ImageColumns.ORIENTATION}, null, null, null);
+            if (cursor != null && cursor.moveToFirst()) {
+                return cursor.getInt(0);
+            }
+        } catch (RuntimeException e) {
+            //Not a media store image, keep it as it is.
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return 0;
+    }
+
+    private static void compress(Bitmap bitmap, int quality, File file) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            if (!bitmap.compress(Bitmap.CompressFormat.JPEG, quality, out)) {
+                throw new IOException("Failed to compress " + file);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    static class Job {
+        final String id;
+        final String author;
+        final String roomId;
+        //Name of the photo in storage, derived from its content.
+        String contentHash;
+        File photoFile;
+        File thumbnailFile;
+        String thumbnailUrl;
+        //Key of the message sent once the thumbnail was up.
+        String messageKey;
+        Uri sessionUri;
+        //Failed uploads in a row, only kept in memory.
+        int failedAttempts;
+        //The upload in progress, if any, and whether clear() dropped the job while it ran.
+        UploadTask uploadTask;
+        boolean cancelled;
+
+        Job(String id, String author, String roomId) {
+            this.id = id;
+            this.author = author;
+            this.roomId = roomId;
+        }
+
+        //The thumbnail goes first.
+        boolean isThumbnailNext() {
+            return thumbnailUrl == null;
+        }
+
+        /*The thumbnail is up. Returns the message to send with it right away, its key becomes the messageKey.*/
+        FriendlyMessage onThumbnailUploaded(String url) {
+            failedAttempts = 0;
+            thumbnailUrl = url;
+            FriendlyMessage message = new FriendlyMessage(null, author, null);
+            message.setThumbnailUrl(url);
+            message.setRoomId(roomId);
+            return message;
+        }
+
+        /*The photo is up. Returns the message to update under the messageKey, or without a key to send
+        as a new one, for a job saved by a version that sent the message only once the photo was up.*/
+        FriendlyMessage onPhotoUploaded(String url) {
+            failedAttempts = 0;
+            FriendlyMessage message = new FriendlyMessage(null, author, url);
+            message.setThumbnailUrl(thumbnailUrl);
+            message.setRoomId(roomId);
+            message.setKey(messageKey);
+            return message;
+        }
+
+        /*An upload failed. Returns how long to wait before the retry, a bit longer after each failure in a row.*/
+        long onUploadFailed() {
+            long delayMs = Math.min(MAX_RETRY_DELAY_MS, INITIAL_RETRY_DELAY_MS << Math.min(failedAttempts, 16));
+            failedAttempts++;
+            return delayMs;
+        }
+
+        String toJson() {
+            try {
+                JSONObject json = new JSONObject();
+                json.put("author", author);
+                json.put("roomId", roomId);
+                json.put("contentHash", contentHash);
+                json.put("photoFile", photoFile.getPath());
+                json.put("thumbnailFile", thumbnailFile.getPath());
+                json.putOpt("thumbnailUrl", thumbnailUrl);
+                json.putOpt("messageKey", messageKey);
+                json.putOpt("sessionUri", sessionUri != null ? sessionUri.toString() : null);
+                return json.toString();
+            } catch (JSONException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        static Job fromJson(String id, String value) {
+            try {
+                JSONObject json = new JSONObject(value);
+                //Jobs from before rooms existed go to the default room.
+                Job job = new Job(id, json.optString("author", null), json.optString("roomId", Room.DEFAULT_ROOM_ID));
+                job.contentHash = json.getString("contentHash");
+                job.photoFile = new File(json.getString("photoFile"));
+                job.thumbnailFile = new File(json.getString("thumbnailFile"));
+                job.thumbnailUrl = json.optString("thumbnailUrl", null);
+                job.messageKey = json.optString("messageKey", null);
+                String sessionUri = json.optString("sessionUri", null);
+                job.sessionUri = sessionUri != null ? Uri.parse(sessionUri) : null;
+                return job;
+            } catch (JSONException e) {
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.regex.Pattern;
+
+/**
+ * A chat room and where its messages live in the database.
+ * <p/>
+ * Instead of one messages node that every client listens to, messages are sharded by room and by
+ * day: rooms/<roomId>/messages/<yyyyMMdd>/<pushKey>. The day is taken from the timestamp at the
+ * start of the push key, in UTC, so every client puts a message in the same bucket and the bucket of
+ * a key can be computed without reading it. rooms/<roomId>/buckets/<yyyyMMdd> is set to true
+ * with the first message of a day, so older buckets can be found without scanning empty days.
+ * <p/>
+ * Whoever edits or deletes a message also pushes a change marker, {"key": <pushKey of the message>},
+ * to rooms/<roomId>/changes in the same multi-path update. Markers are keyed by push key too, so a
+ * client that was away reads the ones written since it last looked instead of every message it stored.
+ */
+public class Room {
+
+    public static final String DEFAULT_ROOM_ID = "general";
+
+    private static final long DAY_MS = 24 * 60 * 60 * 1000;
+
+    //The characters of a push key, in the order of their value.
+    private static final String PUSH_CHARS = "-0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ_abcdefghijklmnopqrstuvwxyz";
+    //The first 8 characters encode the creation time in milliseconds, 6 bits each.
+    private static final int PUSH_TIMESTAMP_LENGTH = 8;
+
+    //Room IDs become database keys and file names.
+    private static final Pattern VALID_ID = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+
+    private static final SimpleDateFormat BUCKET_FORMAT = new SimpleDateFormat("yyyyMMdd", Locale.US);
+
+    static {
+        BUCKET_FORMAT.setTimeZone(TimeZone.getTimeZone("UTC"));
+    }
+
+    private final String mId;
+
+    public Room(String id) {
+        if (!isValidId(id)) {
+            throw new IllegalArgumentException("Invalid room ID: " + id);
+        }
+        mId = id;
+    }
+
+    public String getId() {
+        return mId;
+    }
+
+    /*Path of the messages of a day, relative to the root.*/
+    public String bucketPath(String bucket) {
+        return "rooms/" + mId + "/messages/" + bucket;
+    }
+
+    /*Path of the bucket index, relative to the root.*/
+    public String bucketsPath() {
+        return "rooms/" + mId + "/buckets";
+    }
+
+    /*Path of the change markers, relative to the root.*/
+    public String changesPath() {
+        return "rooms/" + mId + "/changes";
+    }
+
+    public static boolean isValidId(String id) {
+        return id != null && VALID_ID.matcher(id).matches();
+    }
+
+    /*Path of a message relative to the root, for multi-path updates.*/
+    public static String messagePath(String roomId, String key) {
+        return "rooms/" + roomId + "/messages/" + bucketOf(key) + "/" + key;
+    }
+
+    /*Path of a new change marker relative to the root, for multi-path updates.*/
+    public static String changePath(String roomId, String changeKey) {
+        return "rooms/" + roomId + "/changes/" + changeKey;
+    }
+
+    /*Path of the index entry of the bucket of a message, relative to the root.*/
+    public static String bucketIndexPath(String roomId, String key) {
+        return "rooms/" + roomId + "/buckets/" + bucketOf(key);
+    }
+
+    /*The bucket of the message with this push key.*/
+    public static String bucketOf(String key) {
+        return bucketAt(timestampOf(key));
+    }
+
+    /*When the bucket after the one of timeMs starts. Pass the server time to get the current bucket,
+    push keys are made from it too, see MessageSource.getServerTimeMs().*/
+    public static long nextBucketStartMs(long timeMs) {
+        return (timeMs / DAY_MS + 1) * DAY_MS;
+    }
+
+    /*The bucket before this one. Buckets are days, so this is the day before.*/
+    public static String previousBucket(String bucket) {
+        return bucketAt(bucketStartMs(bucket) - DAY_MS);
+    }
+
+    static synchronized long bucketStartMs(String bucket) {
+        try {
+            return BUCKET_FORMAT.parse(bucket).getTime();
+        } catch (ParseException e) {
+            throw new IllegalArgumentException("Not a bucket: " + bucket);
+        }
+    }
+
+    /*The bucket of a message created at timeMs.*/
+    public static synchronized String bucketAt(long timeMs) {
+        return BUCKET_FORMAT.format(new Date(timeMs));
+    }
+
+    /*Whether the key is a push key, so it has a bucket. Keys from the database are checked with this
+    before bucketOf(), a message written by hand or by another client may have any key.*/
+    public static boolean isPushKey(String key) {
+        if (key == null || key.length() < PUSH_TIMESTAMP_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < PUSH_TIMESTAMP_LENGTH; i++) {
+            if (PUSH_CHARS.indexOf(key.charAt(i)) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static long timestampOf(String key) {
+        if (key == null || key.length() < PUSH_TIMESTAMP_LENGTH) {
+            throw new IllegalArgumentException("Not a push key: " + key);
+        }
+        long timestamp = 0;
+        for (int i = 0; i < PUSH_TIMESTAMP_LENGTH; i++) {
+            int value = PUSH_CHARS.indexOf(key.charAt(i));
+            if (value < 0) {
+                throw new IllegalArgumentException("Not a push key: " + key);
+            }
+            timestamp = timestamp * 64 + value;
+        }
+        return timestamp;
+    }
+}
@@ -0,0 +1,91 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat;
+
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Records when each stage of a cold start is reached, in milliseconds since the process started.
+ * <p/>
+ * On Android 7.0 and later the process start time comes from the system, so the time spent
+ * forking the process and loading classes is included. Before that, the clock starts when this
+ * class is loaded, which is in Application.onCreate(). The trace is logged once the first messages
+ * are shown. Only the first time each stage is reached counts.
+ */
+public final class StartupTrace {
+
+    private static final String TAG = "StartupTrace";
+
+    public static final String APPLICATION_CREATED = "applicationCreated";
+    public static final String ACTIVITY_CREATED = "activityCreated";
+    //The main thread ran out of work after the first frame, deferred initialization starts here.
+    public static final String MAIN_THREAD_IDLE = "mainThreadIdle";
+    public static final String FIRST_MESSAGES = "firstMessages";
+    public static final String DEFERRED_INIT_DONE = "deferredInitDone";
+    public static final String BACKGROUND_INIT_DONE = "backgroundInitDone";
+
+    private static final long sStartMs = Build.VERSION.SDK_INT >= Build.VERSION_CODES.N
+            ? Process.getStartElapsedRealtime() : SystemClock.elapsedRealtime();
+
+    private static final Map<String, Long> sStages = new LinkedHashMap<>();
+    private static boolean sLogged;
+
+    private StartupTrace() {
+    }
+
+    public static synchronized void mark(String stage) {
+        if (!sStages.containsKey(stage)) {
+            sStages.put(stage, SystemClock.elapsedRealtime() - sStartMs);
+        }
+        if (FIRST_MESSAGES.equals(stage) && !sLogged) {
+            sLogged = true;
+            Log.i(TAG, report());
+        }
+    }
+
+    /*Each stage with the time since the process started and, in brackets, since the previous stage.*/
+    public static synchronized String report() {
+        StringBuilder report = new StringBuilder("Cold start:");
+        long previousMs = 0;
+        for (Map.Entry<String, Long> stage : sStages.entrySet()) {
+            report.append(' ').append(stage.getKey()).append('=').append(stage.getValue())
+                    .append("ms (+").append(stage.getValue() - previousMs).append(')');
+            previousMs = stage.getValue();
+        }
+        return report.toString();
+    }
+
+    public static synchronized JSONObject toJson() {
+        JSONObject json = new JSONObject();
+        try {
+            for (Map.Entry<String, Long> stage : sStages.entrySet()) {
+                json.put(stage.getKey(), stage.getValue());
+            }
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        }
+        return json;
+    }
+}
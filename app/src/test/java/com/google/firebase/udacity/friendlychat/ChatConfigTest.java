@@ -0,0 +1,70 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that values typed into the console are clamped to ranges the app can work with.
+ */
+public class ChatConfigTest {
+
+    @Test
+    public void keepsValuesInRange() {
+        assertEquals(10, ChatConfig.clamp(10, 10, 500));
+        assertEquals(50, ChatConfig.clamp(50, 10, 500));
+        assertEquals(500, ChatConfig.clamp(500, 10, 500));
+    }
+
+    @Test
+    public void clampsValuesOutOfRange() {
+        assertEquals(10, ChatConfig.clamp(0, 10, 500));
+        assertEquals(10, ChatConfig.clamp(-50, 10, 500));
+        assertEquals(500, ChatConfig.clamp(501, 10, 500));
+    }
+
+    @Test
+    public void clampsValuesOutsideAnInt() {
+        //Cast first, these would wrap around to the other end of the range.
+        assertEquals(500, ChatConfig.clamp(Integer.MAX_VALUE + 1L, 10, 500));
+        assertEquals(500, ChatConfig.clamp(Long.MAX_VALUE, 10, 500));
+        assertEquals(10, ChatConfig.clamp(Long.MIN_VALUE, 10, 500));
+    }
+
+    @Test
+    public void defaultsAreWithinTheirRanges() {
+        assertInRange(ChatConfig.DEFAULT_MSG_LENGTH_LIMIT,
+                ChatConfig.MIN_MSG_LENGTH_LIMIT, ChatConfig.MAX_MSG_LENGTH_LIMIT);
+        assertInRange(PhotoUploadQueue.DEFAULT_MAX_DIMENSION,
+                ChatConfig.MIN_PHOTO_DIMENSION, ChatConfig.MAX_PHOTO_DIMENSION);
+        assertInRange(PhotoUploadQueue.DEFAULT_QUALITY,
+                ChatConfig.MIN_PHOTO_QUALITY, ChatConfig.MAX_PHOTO_QUALITY);
+        assertInRange(MessagePager.DEFAULT_PAGE_SIZE,
+                ChatConfig.MIN_HISTORY_PAGE_SIZE, ChatConfig.MAX_HISTORY_PAGE_SIZE);
+        assertInRange(PhotoUploadQueue.DEFAULT_MAX_CONCURRENT_UPLOADS,
+                ChatConfig.MIN_CONCURRENT_UPLOADS, ChatConfig.MAX_CONCURRENT_UPLOADS);
+        //Photos are never made smaller than their thumbnails.
+        assertEquals(PhotoUploadQueue.DEFAULT_THUMBNAIL_DIMENSION, ChatConfig.MIN_PHOTO_DIMENSION);
+    }
+
+    private static void assertInRange(int value, int min, int max) {
+        assertTrue(value + " not in [" + min + ", " + max + "]", value >= min && value <= max);
+        assertEquals(value, ChatConfig.clamp(value, min, max));
+    }
+}
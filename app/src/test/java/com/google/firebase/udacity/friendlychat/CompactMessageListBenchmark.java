@@ -0,0 +1,78 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Measures the heap taken by the messages of a large room in a {@link CompactMessageList} against
+ * the ArrayList of FriendlyMessage objects it replaced. Runs only with -Pbenchmark, see build.gradle.
+ * <p/>
+ * Both lists are filled with the same 100k synthetic messages, decoded like the ingest worker
+ * does, and measured as the growth of the used heap after a full collection. The maps the messages
+ * are decoded from are dropped first, so only what the list keeps is counted. Strings are UTF-16 on
+ * Dalvik and on ART before Android 8, newer JDKs store Latin-1 strings in a byte per char unless
+ * run with -XX:-CompactStrings, which makes the ArrayList look smaller than on those devices.
+ */
+public class CompactMessageListBenchmark {
+
+    private static final int MESSAGE_COUNT = 100000;
+    private static final long SEED = 42;
+
+    @Test
+    public void heap() {
+        long baseline = usedHeap();
+        List<FriendlyMessage> arrayList = fill(new ArrayList<FriendlyMessage>());
+        long arrayListBytes = usedHeap() - baseline;
+        int arrayListSize = arrayList.size();
+        arrayList = null;
+
+        baseline = usedHeap();
+        CompactMessageList compact = fill(new CompactMessageList());
+        long compactBytes = usedHeap() - baseline;
+
+        System.out.println(String.format(Locale.US,
+                "%d messages: ArrayList %dKB (%d bytes each), compact %dKB (%d bytes each, estimated %d)",
+                arrayListSize, arrayListBytes / 1024, arrayListBytes / arrayListSize,
+                compactBytes / 1024, compactBytes / compact.size(), compact.getEstimatedBytes() / compact.size()));
+    }
+
+    /*Decode the synthetic messages into the list, without keeping the maps they came from.*/
+    private static <T extends List<FriendlyMessage>> T fill(T list) {
+        List<Map<String, Object>> values = MessageIngestBufferTest.randomValues(MESSAGE_COUNT, new Random(SEED));
+        FriendlyMessageCodec codec = new FriendlyMessageCodec();
+        for (int i = 0; i < values.size(); i++) {
+            list.add(codec.decode(MessageIngestBufferTest.keyOf(i), values.get(i)));
+            values.set(i, null);
+        }
+        return list;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        //A few rounds, one collection may leave objects that are only released by the next.
+        for (int i = 0; i < 3; i++) {
+            runtime.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,110 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that a {@link CompactMessageList} keeps every field and accounts for the bytes it holds.
+ * {@link CompactMessageListBenchmark} measures its heap against the ArrayList it replaced.
+ */
+public class CompactMessageListTest {
+
+    private static final long SEED = 42;
+    private static final String FOLDER = "https://firebasestorage.googleapis.com/v0/b/fake.appspot.com/o/";
+
+    /*The memory cap of the repository relies on the estimate: the entries plus their byte arrays.*/
+    @Test
+    public void estimatesTheEntriesAndTheirBytes() {
+        CompactMessageList compact = new CompactMessageList();
+        assertEquals(0, compact.getEstimatedBytes());
+
+        //Text is stored as UTF-8, two bytes for the accented letter.
+        compact.add(message("-K01", "h\u00e9llo", null, null));
+        long text = CompactMessageList.ENTRY_BYTES + CompactMessageList.ARRAY_BYTES + 6;
+        assertEquals(text, compact.getEstimatedBytes());
+
+        //Only the file names of the photo URLs, the folder is pooled.
+        compact.add(message("-K02", null, FOLDER + "photo.jpg", FOLDER + "photo_thumb.jpg"));
+        long photo = CompactMessageList.ENTRY_BYTES + CompactMessageList.ARRAY_BYTES + "photo.jpg".length()
+                + CompactMessageList.ARRAY_BYTES + "photo_thumb.jpg".length();
+        assertEquals(photo, compact.estimatedBytesAt(1));
+        assertEquals(text + photo, compact.getEstimatedBytes());
+
+        compact.set(0, message("-K01", "hi", null, null));
+        long edited = CompactMessageList.ENTRY_BYTES + CompactMessageList.ARRAY_BYTES + 2;
+        assertEquals(edited + photo, compact.getEstimatedBytes());
+        assertEquals(edited + photo, compact.snapshot().getEstimatedBytes());
+
+        compact.subList(0, 1).clear();
+        assertEquals(photo, compact.getEstimatedBytes());
+        compact.clear();
+        assertEquals(0, compact.getEstimatedBytes());
+    }
+
+    @Test
+    public void estimateFollowsAddsAndRemovals() {
+        List<Map<String, Object>> values = MessageIngestBufferTest.randomValues(1000, new Random(SEED));
+        FriendlyMessageCodec codec = new FriendlyMessageCodec();
+        CompactMessageList compact = new CompactMessageList();
+        for (int i = 0; i < values.size(); i++) {
+            compact.add(codec.decode(MessageIngestBufferTest.keyOf(i), values.get(i)));
+        }
+        compact.subList(0, 100).clear();
+        compact.remove(500);
+
+        long expected = 0;
+        for (int i = 0; i < compact.size(); i++) {
+            expected += compact.estimatedBytesAt(i);
+        }
+        assertEquals(expected, compact.getEstimatedBytes());
+    }
+
+    @Test
+    public void keepsEveryField() {
+        List<Map<String, Object>> values = MessageIngestBufferTest.randomValues(1000, new Random(SEED));
+        FriendlyMessageCodec codec = new FriendlyMessageCodec();
+        CompactMessageList compact = new CompactMessageList();
+        List<FriendlyMessage> expected = new ArrayList<>();
+        for (int i = 0; i < values.size(); i++) {
+            FriendlyMessage message = codec.decode(MessageIngestBufferTest.keyOf(i), values.get(i));
+            compact.add(message);
+            expected.add(message);
+        }
+        for (int i = 0; i < expected.size(); i++) {
+            FriendlyMessage message = compact.get(i);
+            assertEquals(expected.get(i).getKey(), message.getKey());
+            assertEquals(expected.get(i).getText(), message.getText());
+            assertEquals(expected.get(i).getName(), message.getName());
+            assertEquals(expected.get(i).getPhotoUrl(), message.getPhotoUrl());
+            assertEquals(expected.get(i).getThumbnailUrl(), message.getThumbnailUrl());
+        }
+    }
+
+    private static FriendlyMessage message(String key, String text, String photoUrl, String thumbnailUrl) {
+        FriendlyMessage message = new FriendlyMessage(text, "Author", photoUrl);
+        message.setKey(key);
+        message.setThumbnailUrl(thumbnailUrl);
+        return message;
+    }
+}
@@ -0,0 +1,455 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+
+/**
+ * In-process stand-in for the realtime database, for tests that need no backend.
+ * <p/>
+ * Reads go through the {@link MessageSource} interface the pager uses, with the same event shape as
+ * the real client: callbacks are delivered through the given executor, like the real client
+ * delivers them on the main thread, a listener first gets every existing child in its range as
+ * added, and nothing is delivered after a subscription is removed. Writes go through references
+ * that mirror the part of DatabaseReference the app uses: child(), push(), setValue(),
+ * updateChildren() and removeValue(). Values are what DataSnapshot.getValue() returns: maps,
+ * strings, numbers and booleans. The server clock can be set apart from the device clock. There
+ * is no persistence.
+ * <p/>
+ * The writes of the outgoing queue go through the {@link MessageWriter} interface. Like the real
+ * client, such a write shows up to the listeners right away, and is taken back before the callback
+ * when it fails or the {@link WriteRule} refuses it. Completions can be held, to look at the state
+ * while a write is in flight.
+ */
+public class FakeDatabase implements MessageSource, MessageWriter {
+
+    /*Stands in for the security rules, checked for every child of a MessageWriter write.*/
+    public interface WriteRule {
+        boolean allows(String path, Object value);
+    }
+
+    private final Executor mEventExecutor;
+    private final PushIdGenerator mPushIdGenerator = new PushIdGenerator();
+
+    //Guarded by this. The root node, nested maps keyed by child name.
+    private final TreeMap<String, Object> mRoot = new TreeMap<>();
+    private final Map<String, List<Registration>> mListeners = new HashMap<>();
+    private volatile long mServerTimeOffsetMs;
+
+    //Guarded by this.
+    private WriteRule mWriteRule;
+    private Exception mWriteError;
+    private boolean mHoldingWrites;
+    private final List<Runnable> mHeldWrites = new ArrayList<>();
+    private int mWriteCount;
+
+    public FakeDatabase(Executor eventExecutor) {
+        mEventExecutor = eventExecutor;
+    }
+
+    public Reference getReference() {
+        return new Reference("");
+    }
+
+    /*How far the server clock is ahead of the device clock, push() makes keys from the server time.*/
+    public void setServerTimeOffset(long serverTimeOffsetMs) {
+        mServerTimeOffsetMs = serverTimeOffsetMs;
+    }
+
+    @Override
+    public long getServerTimeMs() {
+        return System.currentTimeMillis() + mServerTimeOffsetMs;
+    }
+
+    /*Refuse the MessageWriter writes this rule doesn't allow, null to allow all.*/
+    public synchronized void setWriteRule(WriteRule writeRule) {
+        mWriteRule = writeRule;
+    }
+
+    /*Fail the MessageWriter writes the rule allows with this error until set back to null.*/
+    public synchronized void setWriteError(Exception writeError) {
+        mWriteError = writeError;
+    }
+
+    /*While holding, MessageWriter writes are applied locally but not completed until completeHeldWrites().*/
+    public synchronized void setHoldingWrites(boolean holdingWrites) {
+        mHoldingWrites = holdingWrites;
+    }
+
+    /*Complete the held writes, with the rule and error set now.*/
+    public void completeHeldWrites() {
+        List<Runnable> writes;
+        synchronized (this) {
+            writes = new ArrayList<>(mHeldWrites);
+            mHeldWrites.clear();
+        }
+        for (Runnable write : writes) {
+            write.run();
+        }
+    }
+
+    /*Number of MessageWriter writes so far.*/
+    public synchronized int getWriteCount() {
+        return mWriteCount;
+    }
+
+    @Override
+    public String newKey() {
+        return mPushIdGenerator.next(getServerTimeMs());
+    }
+
+    @Override
+    public void updateChildren(final Map<String, Object> children, final CompletionCallback callback) {
+        final Map<String, Object> previous = new HashMap<>();
+        synchronized (this) {
+            mWriteCount++;
+            for (String path : children.keySet()) {
+                previous.put(path, valueAt(path));
+            }
+        }
+        for (Map.Entry<String, Object> entry : children.entrySet()) {
+            write(entry.getKey(), entry.getValue());
+        }
+        Runnable completion = new Runnable() {
+            @Override
+            public void run() {
+                complete(children, previous, callback);
+            }
+        };
+        synchronized (this) {
+            if (mHoldingWrites) {
+                mHeldWrites.add(completion);
+                return;
+            }
+        }
+        completion.run();
+    }
+
+    private void complete(Map<String, Object> children, Map<String, Object> previous, final CompletionCallback callback) {
+        boolean allowed = true;
+        Exception writeError;
+        synchronized (this) {
+            if (mWriteRule != null) {
+                for (Map.Entry<String, Object> entry : children.entrySet()) {
+                    allowed &= mWriteRule.allows(entry.getKey(), entry.getValue());
+                }
+            }
+            writeError = mWriteError;
+        }
+        final boolean rejected = !allowed;
+        final Exception error = rejected ? new Exception("Permission denied") : writeError;
+        if (error != null) {
+            for (Map.Entry<String, Object> entry : previous.entrySet()) {
+                write(entry.getKey(), entry.getValue());
+            }
+        }
+        //After the events of the write being taken back, like the real client.
+        mEventExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                callback.onComplete(error, rejected);
+            }
+        });
+    }
+
+    /*The value at path, null if there is none. Must hold the lock.*/
+    private Object valueAt(String path) {
+        int slash = path.lastIndexOf('/');
+        TreeMap<String, Object> parent = node(slash < 0 ? "" : path.substring(0, slash), false);
+        return parent != null ? parent.get(path.substring(slash + 1)) : null;
+    }
+
+    public class Reference {
+        private final String mPath;
+
+        Reference(String path) {
+            mPath = path;
+        }
+
+        public String getKey() {
+            return mPath.isEmpty() ? null : mPath.substring(mPath.lastIndexOf('/') + 1);
+        }
+
+        public Reference child(String path) {
+            return new Reference(mPath.isEmpty() ? path : mPath + "/" + path);
+        }
+
+        /*A child with a new push key, like DatabaseReference.push(). Nothing is written yet.*/
+        public Reference push() {
+            return push(getServerTimeMs());
+        }
+
+        /*Same as push(), with a key made at timeMs instead of now, e.g. for a message of an earlier day.*/
+        public Reference push(long timeMs) {
+            return child(mPushIdGenerator.next(timeMs));
+        }
+
+        public void setValue(Object value) {
+            write(mPath, value);
+        }
+
+        public void removeValue() {
+            write(mPath, null);
+        }
+
+        /*Write several children at once, with paths relative to this reference.*/
+        public void updateChildren(Map<String, Object> children) {
+            for (Map.Entry<String, Object> entry : children.entrySet()) {
+                write(child(entry.getKey()).mPath, entry.getValue());
+            }
+        }
+    }
+
+    @Override
+    public Subscription getFirst(String path, String startKey, int limit, PageCallback callback) {
+        List<Child> children;
+        synchronized (this) {
+            children = children(path, startKey, null);
+        }
+        return deliverPage(children.subList(0, Math.min(limit, children.size())), callback);
+    }
+
+    @Override
+    public Subscription getLast(String path, String endKey, int limit, PageCallback callback) {
+        List<Child> children;
+        synchronized (this) {
+            children = children(path, null, endKey);
+        }
+        return deliverPage(children.subList(Math.max(0, children.size() - limit), children.size()), callback);
+    }
+
+    private Subscription deliverPage(final List<Child> page, final PageCallback callback) {
+        final Registration registration = new Registration(null, null);
+        mEventExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!registration.removed) {
+                    callback.onPage(Collections.unmodifiableList(page));
+                }
+            }
+        });
+        return registration;
+    }
+
+    @Override
+    public Subscription listen(final String path, String startKey, final ChildListener listener) {
+        final Registration registration = new Registration(startKey, listener);
+        final List<Child> existing;
+        synchronized (this) {
+            List<Registration> registrations = mListeners.get(path);
+            if (registrations == null) {
+                registrations = new ArrayList<>();
+                mListeners.put(path, registrations);
+            }
+            registrations.add(registration);
+            registration.path = path;
+            existing = children(path, startKey, null);
+        }
+        mEventExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (Child child : existing) {
+                    if (registration.removed) {
+                        return;
+                    }
+                    listener.onChildAdded(child);
+                }
+            }
+        });
+        return registration;
+    }
+
+    /*The children at path from startKey to endKey, both inclusive and null for no bound. Must hold the lock.*/
+    private List<Child> children(String path, String startKey, String endKey) {
+        List<Child> children = new ArrayList<>();
+        TreeMap<String, Object> node = node(path, false);
+        if (node == null) {
+            return children;
+        }
+        for (Map.Entry<String, Object> entry : node.entrySet()) {
+            if ((startKey == null || entry.getKey().compareTo(startKey) >= 0)
+                    && (endKey == null || entry.getKey().compareTo(endKey) <= 0)) {
+                children.add(new Entry(entry.getKey(), entry.getValue()));
+            }
+        }
+        return children;
+    }
+
+    /*Set or, with a null value, remove the value at path and notify the listeners of its parent.*/
+    private void write(String path, final Object value) {
+        int slash = path.lastIndexOf('/');
+        if (slash < 0) {
+            throw new IllegalArgumentException("Can't write the root");
+        }
+        final String parentPath = path.substring(0, slash);
+        final String key = path.substring(slash + 1);
+        final Object previous;
+        final List<Registration> registrations = new ArrayList<>();
+        synchronized (this) {
+            TreeMap<String, Object> parent = node(parentPath, value != null);
+            if (parent == null) {
+                return;
+            }
+            previous = value != null ? parent.put(key, value) : parent.remove(key);
+            List<Registration> registered = mListeners.get(parentPath);
+            if (registered != null) {
+                for (Registration registration : registered) {
+                    //Like a query with startAt(), a listener only sees the children in its range.
+                    if (registration.startKey == null || key.compareTo(registration.startKey) >= 0) {
+                        registrations.add(registration);
+                    }
+                }
+            }
+        }
+        //Writing the value a child already has raises no event.
+        if (registrations.isEmpty() || (value == null ? previous == null : value.equals(previous))) {
+            return;
+        }
+        mEventExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (Registration registration : registrations) {
+                    if (registration.removed) {
+                        continue;
+                    }
+                    if (value == null) {
+                        registration.listener.onChildRemoved(key);
+                    } else if (previous == null) {
+                        registration.listener.onChildAdded(new Entry(key, value));
+                    } else {
+                        registration.listener.onChildChanged(new Entry(key, value));
+                    }
+                }
+            }
+        });
+    }
+
+    //The node at path, optionally creating it and its parents. Must hold the lock.
+    @SuppressWarnings("unchecked")
+    private TreeMap<String, Object> node(String path, boolean create) {
+        TreeMap<String, Object> node = mRoot;
+        if (path.isEmpty()) {
+            return node;
+        }
+        for (String name : path.split("/")) {
+            Object child = node.get(name);
+            if (!(child instanceof TreeMap)) {
+                if (!create) {
+                    return null;
+                }
+                child = new TreeMap<String, Object>();
+                node.put(name, child);
+            }
+            node = (TreeMap<String, Object>) child;
+        }
+        return node;
+    }
+
+    private static class Entry implements Child {
+        private final String mKey;
+        private final Object mValue;
+
+        Entry(String key, Object value) {
+            mKey = key;
+            mValue = value;
+        }
+
+        @Override
+        public String getKey() {
+            return mKey;
+        }
+
+        @Override
+        public Object getValue() {
+            return mValue;
+        }
+    }
+
+    //A read or a listener. A one-time read has no listener.
+    private class Registration implements Subscription {
+        final String startKey;
+        final ChildListener listener;
+        String path;
+        //Written on the thread that removes it, read on the event thread.
+        volatile boolean removed;
+
+        Registration(String startKey, ChildListener listener) {
+            this.startKey = startKey;
+            this.listener = listener;
+        }
+
+        @Override
+        public void remove() {
+            removed = true;
+            if (path != null) {
+                synchronized (FakeDatabase.this) {
+                    List<Registration> registrations = mListeners.get(path);
+                    if (registrations != null) {
+                        registrations.remove(this);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Generates push keys the way the real client does: 8 characters of timestamp followed by 12
+     * random ones, incremented instead when two keys are made in the same millisecond, so keys
+     * sort chronologically and Room.bucketOf() works on them.
+     */
+    static class PushIdGenerator {
+        private static final String PUSH_CHARS = "-0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ_abcdefghijklmnopqrstuvwxyz";
+
+        private final Random mRandom = new Random();
+        private final int[] mLastRandomChars = new int[12];
+        private long mLastPushTime;
+
+        synchronized String next(long now) {
+            boolean duplicateTime = now == mLastPushTime;
+            mLastPushTime = now;
+
+            char[] timestampChars = new char[8];
+            for (int i = 7; i >= 0; i--) {
+                timestampChars[i] = PUSH_CHARS.charAt((int) (now % 64));
+                now /= 64;
+            }
+            StringBuilder id = new StringBuilder(20).append(timestampChars);
+
+            if (!duplicateTime) {
+                for (int i = 0; i < 12; i++) {
+                    mLastRandomChars[i] = mRandom.nextInt(64);
+                }
+            } else {
+                int i = 11;
+                for (; i >= 0 && mLastRandomChars[i] == 63; i--) {
+                    mLastRandomChars[i] = 0;
+                }
+                mLastRandomChars[i]++;
+            }
+            for (int i = 0; i < 12; i++) {
+                id.append(PUSH_CHARS.charAt(mLastRandomChars[i]));
+            }
+            return id.toString();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to decode one message with {@link FriendlyMessageCodec}, and with the
+ * {@link FriendlyMessageCodecTest.ReflectiveMapper} the tests compare it with. The mapper is a
+ * stand-in for the database client's class mapper, not the client itself, and this runs on the
+ * desktop JVM, not on a device. So the two numbers only compare the codec with that stand-in here.
+ * Run with ./gradlew jmh, see build.gradle.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FriendlyMessageCodecBenchmark {
+
+    private static final int MESSAGE_COUNT = 1000;
+
+    private List<Map<String, Object>> mValues;
+    private String[] mKeys;
+    private FriendlyMessageCodecTest.ReflectiveMapper mMapper;
+    //One for the whole run, like the codec of an ingest worker.
+    private FriendlyMessageCodec mCodec;
+    //The messages are decoded in turn, so no single one stays in the caches.
+    private int mNext;
+
+    @Setup
+    public void setUp() throws NoSuchMethodException {
+        mValues = MessageIngestBufferTest.randomValues(MESSAGE_COUNT, new Random(42));
+        mKeys = new String[MESSAGE_COUNT];
+        for (int i = 0; i < MESSAGE_COUNT; i++) {
+            mKeys[i] = MessageIngestBufferTest.keyOf(i);
+        }
+        mMapper = new FriendlyMessageCodecTest.ReflectiveMapper(FriendlyMessage.class);
+        mCodec = new FriendlyMessageCodec();
+    }
+
+    //Returned, so JMH consumes the message and the decoding can't be optimized away.
+    @Benchmark
+    public Object reflectiveMapper() throws Exception {
+        return mMapper.map(mValues.get(next()));
+    }
+
+    @Benchmark
+    public FriendlyMessage codec() {
+        int i = next();
+        return mCodec.decode(mKeys[i], mValues.get(i));
+    }
+
+    private int next() {
+        int i = mNext;
+        mNext = i + 1 == MESSAGE_COUNT ? 0 : i + 1;
+        return i;
+    }
+}
@@ -0,0 +1,113 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat;
+
+import org.junit.Test;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Type;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Compares {@link FriendlyMessageCodec} with the reflective mapping behind
+ * getValue(FriendlyMessage.class), over the maps DataSnapshot.getValue() returns for messages.
+ * <p/>
+ * The database client isn't available on the JVM, so {@link ReflectiveMapper} does what its class
+ * mapper does per message: the setters are looked up once per class, then every message is built
+ * with the default constructor and each child is set through Method.invoke() after checking the
+ * parameter type. {@link FriendlyMessageCodecBenchmark} times the two.
+ */
+public class FriendlyMessageCodecTest {
+
+    @Test
+    public void decodesLikeTheReflectivePath() throws Exception {
+        ReflectiveMapper mapper = new ReflectiveMapper(FriendlyMessage.class);
+        FriendlyMessageCodec codec = new FriendlyMessageCodec();
+        List<Map<String, Object>> values = MessageIngestBufferTest.randomValues(1000, new Random(7));
+        for (Map<String, Object> value : values) {
+            FriendlyMessage expected = (FriendlyMessage) mapper.map(value);
+            FriendlyMessage actual = codec.decode("key", value);
+            assertEquals("key", actual.getKey());
+            assertEquals(expected.getText(), actual.getText());
+            assertEquals(expected.getName(), actual.getName());
+            assertEquals(expected.getPhotoUrl(), actual.getPhotoUrl());
+            assertEquals(expected.getThumbnailUrl(), actual.getThumbnailUrl());
+        }
+    }
+
+    @Test
+    public void convertsScalarsAndSharesAuthorNames() {
+        FriendlyMessageCodec codec = new FriendlyMessageCodec();
+        Map<String, Object> value = new HashMap<>();
+        value.put("text", 42L);
+        value.put("name", new String("Author"));
+        value.put("photoUrl", new HashMap<String, Object>());
+        FriendlyMessage first = codec.decode("a", value);
+        value.put("name", new String("Author"));
+        FriendlyMessage second = codec.decode("b", value);
+
+        assertEquals("42", first.getText());
+        assertNull(first.getPhotoUrl());
+        assertSame(first.getName(), second.getName());
+    }
+
+    /*Maps a value to a bean through its public setters, the way getValue(Class) does.*/
+    static class ReflectiveMapper {
+        private final Constructor<?> mConstructor;
+        //Setters by lower-cased property name, the client matches children case-insensitively.
+        private final Map<String, Method> mSetters = new HashMap<>();
+
+        ReflectiveMapper(Class<?> type) throws NoSuchMethodException {
+            mConstructor = type.getDeclaredConstructor();
+            for (Method method : type.getMethods()) {
+                if (method.getName().startsWith("set") && method.getParameterTypes().length == 1
+                        && !Modifier.isStatic(method.getModifiers())) {
+                    mSetters.put(method.getName().substring(3).toLowerCase(Locale.US), method);
+                }
+            }
+        }
+
+        Object map(Map<String, Object> value) throws Exception {
+            Object bean = mConstructor.newInstance();
+            for (Map.Entry<String, Object> child : value.entrySet()) {
+                Method setter = mSetters.get(child.getKey().toLowerCase(Locale.US));
+                if (setter == null) {
+                    continue;
+                }
+                Type parameterType = setter.getGenericParameterTypes()[0];
+                setter.invoke(bean, convert(child.getValue(), parameterType));
+            }
+            return bean;
+        }
+
+        private static Object convert(Object value, Type type) {
+            if (type == String.class) {
+                return value == null || value instanceof String ? value : String.valueOf(value);
+            }
+            return value;
+        }
+    }
+}
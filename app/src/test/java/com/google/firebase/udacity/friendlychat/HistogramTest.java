@@ -0,0 +1,89 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the bucket boundaries of {@link Histogram}: one bucket per value up to 16, then 8 buckets
+ * per power of two, up to Long.MAX_VALUE.
+ */
+public class HistogramTest {
+
+    @Test
+    public void smallValuesGetABucketEach() {
+        for (int value = 0; value < 16; value++) {
+            assertEquals(value, Histogram.indexOf(value));
+            assertEquals(value, Histogram.lowerBoundOf(value));
+        }
+        //From 16 on, the buckets are 2 wide.
+        assertEquals(16, Histogram.indexOf(16));
+        assertEquals(16, Histogram.indexOf(17));
+        assertEquals(17, Histogram.indexOf(18));
+        assertEquals(18, Histogram.lowerBoundOf(17));
+    }
+
+    @Test
+    public void everyPowerOfTwoStartsABucket() {
+        for (int exponent = 3; exponent < 63; exponent++) {
+            long power = 1L << exponent;
+            int index = (exponent - 2) * 8;
+            assertEquals(index, Histogram.indexOf(power));
+            assertEquals(power, Histogram.lowerBoundOf(index));
+            //The value before is the last of the previous power of two.
+            assertEquals(index - 1, Histogram.indexOf(power - 1));
+            //Its 8 buckets are an eighth of it wide.
+            assertEquals(power + (power >> 3), Histogram.lowerBoundOf(index + 1));
+        }
+    }
+
+    @Test
+    public void largestValueIsInTheLastBucket() {
+        //The last of (64 - 3) * 8 buckets.
+        assertEquals(487, Histogram.indexOf(Long.MAX_VALUE));
+        assertEquals(15L << 59, Histogram.lowerBoundOf(487));
+        assertEquals(487, Histogram.indexOf(15L << 59));
+        assertEquals(486, Histogram.indexOf((15L << 59) - 1));
+
+        Histogram histogram = new Histogram("test");
+        histogram.record(Long.MAX_VALUE);
+        histogram.record(-5);
+        assertEquals(0, histogram.getPercentile(0.5));
+        assertEquals(15L << 59, histogram.getPercentile(1));
+        assertEquals(Long.MAX_VALUE, histogram.getMax());
+    }
+
+    @Test
+    public void bucketsHoldTheirValuesWithinAnEighth() {
+        Random random = new Random(1);
+        for (int i = 0; i < 100000; i++) {
+            //Positive, spread over every power of two.
+            long value = (random.nextLong() >>> 1) >>> random.nextInt(63);
+            int index = Histogram.indexOf(value);
+            long lowerBound = Histogram.lowerBoundOf(index);
+            assertTrue(lowerBound <= value);
+            if (index < 487) {
+                assertTrue(value < Histogram.lowerBoundOf(index + 1));
+            }
+            assertTrue(value - lowerBound <= lowerBound / 8);
+        }
+    }
+}
@@ -0,0 +1,287 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Replays a chat at a configurable rate against a {@link FakeDatabase} and measures the message
+ * pipeline the app uses: messages are written like OutgoingMessageQueue writes them, a
+ * {@link MessagePager} listens to the room, and its children go into a {@link MessageIngestBuffer},
+ * which decodes them on its worker and hands batches to the main thread, where they are inserted
+ * into a {@link CompactMessageList} like MessageRepository does.
+ * <p/>
+ * Message sizes, the share of photo messages and the number of authors are configurable, and the
+ * content is drawn from a seeded Random, so runs with the same settings are comparable. The report
+ * has the ingest throughput, the latency from write to main-thread apply as percentiles, the time
+ * spent decoding and applying, and the memory taken by the loaded messages. The main thread is
+ * whatever runs the tasks of the executor given to run(), the callback is called there too.
+ */
+public class LoadGenerator {
+
+    public static final int DEFAULT_MESSAGES_PER_SECOND = 200;
+    public static final int DEFAULT_MESSAGE_COUNT = 10000;
+    public static final int DEFAULT_MIN_TEXT_LENGTH = 10;
+    public static final int DEFAULT_MAX_TEXT_LENGTH = 200;
+    public static final float DEFAULT_PHOTO_FRACTION = 0.1f;
+    public static final int DEFAULT_AUTHOR_COUNT = 50;
+    public static final long DEFAULT_SEED = 42;
+
+    private static final String ROOM_ID = "loadtest";
+    private static final String PHOTO_URL_PREFIX = "https://firebasestorage.googleapis.com/v0/b/fake.appspot.com/o/chat_photos%2F";
+
+    public interface Callback {
+        //messages are the received messages, in key order.
+        void onFinished(Report report, CompactMessageList messages);
+    }
+
+    private int mMessagesPerSecond = DEFAULT_MESSAGES_PER_SECOND;
+    private int mMessageCount = DEFAULT_MESSAGE_COUNT;
+    private int mMinTextLength = DEFAULT_MIN_TEXT_LENGTH;
+    private int mMaxTextLength = DEFAULT_MAX_TEXT_LENGTH;
+    private float mPhotoFraction = DEFAULT_PHOTO_FRACTION;
+    private int mAuthorCount = DEFAULT_AUTHOR_COUNT;
+    private long mSeed = DEFAULT_SEED;
+
+    public void setMessagesPerSecond(int messagesPerSecond) {
+        mMessagesPerSecond = messagesPerSecond;
+    }
+
+    public void setMessageCount(int messageCount) {
+        mMessageCount = messageCount;
+    }
+
+    public void setTextLength(int minTextLength, int maxTextLength) {
+        mMinTextLength = minTextLength;
+        mMaxTextLength = maxTextLength;
+    }
+
+    public void setPhotoFraction(float photoFraction) {
+        mPhotoFraction = photoFraction;
+    }
+
+    public void setAuthorCount(int authorCount) {
+        mAuthorCount = authorCount;
+    }
+
+    public void setSeed(long seed) {
+        mSeed = seed;
+    }
+
+    public void run(Executor mainExecutor, final Callback callback) {
+        final FakeDatabase database = new FakeDatabase(mainExecutor);
+        Room room = new Room(ROOM_ID);
+
+        final int messageCount = mMessageCount;
+        final Map<String, Long> writeTimes = new ConcurrentHashMap<>();
+        final long[] latencies = new long[messageCount];
+        final CompactMessageList messages = new CompactMessageList();
+        final long heapBefore = usedHeap();
+        final long startNanos = System.nanoTime();
+
+        final MessageIngestBuffer[] buffer = new MessageIngestBuffer[1];
+        buffer[0] = new MessageIngestBuffer(new MessageIngestBuffer.Sink() {
+            private int mReceived;
+
+            @Override
+            public void onMessagesAdded(List<FriendlyMessage> added) {
+                long now = System.nanoTime();
+                for (FriendlyMessage message : added) {
+                    MessageIndex.insert(messages, message);
+                    Long writeTime = writeTimes.remove(message.getKey());
+                    if (writeTime != null && mReceived < messageCount) {
+                        latencies[mReceived++] = now - writeTime;
+                    }
+                }
+                if (mReceived == messageCount) {
+                    mReceived++;
+                    long elapsedNanos = System.nanoTime() - startNanos;
+                    callback.onFinished(new Report(latencies, elapsedNanos, buffer[0].toString(),
+                            messages.getEstimatedBytes(), usedHeap() - heapBefore), messages);
+                }
+            }
+
+            @Override
+            public void onOlderPageAdded(List<FriendlyMessage> page) {
+            }
+
+            @Override
+            public void onMessagesUpdated(List<FriendlyMessage> changed, List<String> removedKeys) {
+            }
+
+            @Override
+            public void onRangeReloaded(String fromKey, String toKey, List<FriendlyMessage> reloaded) {
+            }
+        }, mainExecutor);
+
+        final MessagePager pager = new MessagePager(database, room, MessagePager.DEFAULT_PAGE_SIZE,
+                new MessagePager.Listener() {
+                    @Override
+                    public void onMessageAdded(MessageSource.Child child) {
+                        buffer[0].add(child);
+                    }
+
+                    @Override
+                    public void onOlderPageLoaded(List<MessageSource.Child> page, String skipKey) {
+                    }
+
+                    @Override
+                    public void onMessageChanged(MessageSource.Child child) {
+                        buffer[0].change(child);
+                    }
+
+                    @Override
+                    public void onMessageRemoved(String key) {
+                        buffer[0].remove(key);
+                    }
+
+                    @Override
+                    public void onRangeReloaded(String fromKey, String toKey, List<MessageSource.Child> children) {
+                    }
+
+                    @Override
+                    public void onChangesRead(Set<String> keys, String newestChangeKey) {
+                    }
+
+                    @Override
+                    public void onCancelled(Exception error) {
+                    }
+                });
+        mainExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                pager.start();
+            }
+        });
+
+        final Random random = new Random(mSeed);
+        final int messagesPerSecond = mMessagesPerSecond;
+        final int minTextLength = mMinTextLength;
+        final int maxTextLength = mMaxTextLength;
+        final float photoFraction = mPhotoFraction;
+        final int authorCount = mAuthorCount;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long intervalNanos = 1000000000L / messagesPerSecond;
+                for (int i = 0; i < messageCount; i++) {
+                    //Keep to the schedule rather than sleeping a fixed time, so slow writes don't lower the rate.
+                    long delayNanos = startNanos + i * intervalNanos - System.nanoTime();
+                    if (delayNanos > 0) {
+                        try {
+                            Thread.sleep(delayNanos / 1000000, (int) (delayNanos % 1000000));
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    String key = database.getReference().push().getKey();
+                    Map<String, Object> value = randomMessage(random, minTextLength, maxTextLength, photoFraction, authorCount);
+                    Map<String, Object> childUpdates = new HashMap<>();
+                    childUpdates.put(Room.messagePath(ROOM_ID, key), value);
+                    childUpdates.put(Room.bucketIndexPath(ROOM_ID, key), true);
+                    writeTimes.put(key, System.nanoTime());
+                    database.getReference().updateChildren(childUpdates);
+                }
+            }
+        }, "LoadGenerator").start();
+    }
+
+    private static Map<String, Object> randomMessage(Random random, int minTextLength, int maxTextLength,
+                                                     float photoFraction, int authorCount) {
+        Map<String, Object> value = new HashMap<>();
+        value.put("name", "Author " + random.nextInt(authorCount));
+        if (random.nextFloat() < photoFraction) {
+            String name = Long.toHexString(random.nextLong());
+            value.put("photoUrl", PHOTO_URL_PREFIX + name + "?alt=media&token=" + Long.toHexString(random.nextLong()));
+            value.put("thumbnailUrl", PHOTO_URL_PREFIX + name + "_thumb?alt=media&token=" + Long.toHexString(random.nextLong()));
+        } else {
+            int length = minTextLength + random.nextInt(Math.max(1, maxTextLength - minTextLength + 1));
+            StringBuilder text = new StringBuilder(length);
+            while (text.length() < length) {
+                if (text.length() > 0) {
+                    text.append(' ');
+                }
+                int wordLength = 1 + random.nextInt(8);
+                for (int i = 0; i < wordLength; i++) {
+                    text.append((char) ('a' + random.nextInt(26)));
+                }
+            }
+            text.setLength(length);
+            value.put("text", text.toString());
+        }
+        return value;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        runtime.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    public static class Report {
+        public final int messageCount;
+        public final long elapsedMs;
+        public final double messagesPerSecond;
+        public final double p50LatencyMs;
+        public final double p90LatencyMs;
+        public final double p99LatencyMs;
+        public final double maxLatencyMs;
+        //Batches, main-thread apply time and worker decode time of the ingest buffer.
+        public final String ingestStats;
+        public final long listBytes;
+        public final long heapDeltaBytes;
+
+        Report(long[] latencies, long elapsedNanos, String ingestStats, long listBytes, long heapDeltaBytes) {
+            long[] sorted = latencies.clone();
+            Arrays.sort(sorted);
+            messageCount = sorted.length;
+            elapsedMs = elapsedNanos / 1000000;
+            messagesPerSecond = elapsedNanos == 0 ? 0 : messageCount * 1e9 / elapsedNanos;
+            p50LatencyMs = percentileMs(sorted, 0.5);
+            p90LatencyMs = percentileMs(sorted, 0.9);
+            p99LatencyMs = percentileMs(sorted, 0.99);
+            maxLatencyMs = sorted.length == 0 ? 0 : sorted[sorted.length - 1] / 1e6;
+            this.ingestStats = ingestStats;
+            this.listBytes = listBytes;
+            this.heapDeltaBytes = heapDeltaBytes;
+        }
+
+        private static double percentileMs(long[] sorted, double percentile) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(percentile * sorted.length) - 1;
+            return sorted[Math.max(0, index)] / 1e6;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "messages=%d elapsedMs=%d throughput=%.1f/s latencyMs p50=%.2f p90=%.2f p99=%.2f max=%.2f"
+                            + "\n%s\nlistKB=%d heapDeltaKB=%d",
+                    messageCount, elapsedMs, messagesPerSecond, p50LatencyMs, p90LatencyMs, p99LatencyMs,
+                    maxLatencyMs, ingestStats, listBytes / 1024, heapDeltaBytes / 1024);
+        }
+    }
+}
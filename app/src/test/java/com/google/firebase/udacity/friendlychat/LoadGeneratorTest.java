@@ -0,0 +1,75 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat;
+
+import org.junit.Test;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the {@link LoadGenerator} with the test thread as the main thread, and prints its report.
+ * Change the settings here to load test other rates, sizes or mixes of messages.
+ */
+public class LoadGeneratorTest {
+
+    private static final long TIMEOUT_MS = 60 * 1000;
+
+    @Test
+    public void everyMessageArrivesInKeyOrder() throws InterruptedException {
+        LoadGenerator generator = new LoadGenerator();
+        generator.setMessagesPerSecond(2000);
+        generator.setMessageCount(5000);
+
+        final LinkedBlockingQueue<Runnable> mainQueue = new LinkedBlockingQueue<>();
+        final LoadGenerator.Report[] report = new LoadGenerator.Report[1];
+        final CompactMessageList[] received = new CompactMessageList[1];
+        generator.run(new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                mainQueue.add(runnable);
+            }
+        }, new LoadGenerator.Callback() {
+            @Override
+            public void onFinished(LoadGenerator.Report finished, CompactMessageList messages) {
+                report[0] = finished;
+                received[0] = messages;
+            }
+        });
+
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (report[0] == null && System.currentTimeMillis() < deadline) {
+            Runnable task = mainQueue.poll(100, TimeUnit.MILLISECONDS);
+            if (task != null) {
+                task.run();
+            }
+        }
+
+        assertNotNull("timed out", report[0]);
+        System.out.println(report[0]);
+        assertEquals(5000, report[0].messageCount);
+        CompactMessageList messages = received[0];
+        assertEquals(5000, messages.size());
+        for (int i = 1; i < messages.size(); i++) {
+            assertTrue(messages.keyAt(i - 1).compareTo(messages.keyAt(i)) < 0);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Reports the main-thread time of the bursts in {@link MessageIngestBufferTest}, with and without the
+ * buffer. Runs only with -Pbenchmark, see build.gradle.
+ */
+public class MessageIngestBufferBenchmark {
+
+    @Test
+    public void burst() throws InterruptedException {
+        List<Map<String, Object>> values = MessageIngestBufferTest.randomValues(
+                MessageIngestBufferTest.BURST_SIZE, new Random(42));
+
+        //Before: one decode, insert and snapshot (the relayout) per message, all on the main thread.
+        FriendlyMessageCodec codec = new FriendlyMessageCodec();
+        CompactMessageList unbuffered = new CompactMessageList();
+        long beforeStart = System.nanoTime();
+        for (int i = 0; i < values.size(); i++) {
+            MessageIndex.insert(unbuffered, codec.decode(MessageIngestBufferTest.keyOf(i), values.get(i)));
+            unbuffered.snapshot();
+        }
+        long beforeNanos = System.nanoTime() - beforeStart;
+
+        //After: the same burst through the buffer, delivered once per frame.
+        MessageIngestBufferTest.Replay replay = new MessageIngestBufferTest.Replay();
+        long addStart = System.nanoTime();
+        for (int i = 0; i < values.size(); i++) {
+            replay.buffer.add(MessageIngestBufferTest.keyOf(i), values.get(i));
+        }
+        replay.mainThreadNanos += System.nanoTime() - addStart;
+        replay.runFramesUntil(values.size());
+
+        System.out.println(String.format(Locale.US,
+                "%d message burst: before %d relayouts, %.1fms main thread; after %d relayouts, %.1fms main thread",
+                values.size(), values.size(), beforeNanos / 1e6, replay.batches.size(), replay.mainThreadNanos / 1e6));
+    }
+
+    @Test
+    public void replay() throws InterruptedException {
+        List<Map<String, Object>> values = MessageIngestBufferTest.randomValues(
+                MessageIngestBufferTest.REPLAY_SIZE, new Random(7));
+
+        MessageIngestBufferTest.Replay replay = new MessageIngestBufferTest.Replay();
+        for (int i = 0; i < values.size(); i++) {
+            replay.buffer.add(MessageIngestBufferTest.keyOf(i), values.get(i));
+        }
+        replay.runFramesUntil(values.size());
+
+        long maxFrameNanos = 0;
+        long maxFrameCpuNanos = 0;
+        for (int i = 0; i < replay.frameNanos.size(); i++) {
+            maxFrameNanos = Math.max(maxFrameNanos, replay.frameNanos.get(i));
+            maxFrameCpuNanos = Math.max(maxFrameCpuNanos, replay.frameCpuNanos.get(i));
+        }
+        System.out.println(String.format(Locale.US,
+                "%d message replay: %d deliveries, longest frame %.2fms (%.2fms of CPU time), %.1fms main thread",
+                values.size(), replay.batches.size(), maxFrameNanos / 1e6, maxFrameCpuNanos / 1e6,
+                replay.mainThreadNanos / 1e6));
+    }
+}
@@ -0,0 +1,223 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays bursts of added messages through a {@link MessageIngestBuffer} on a simulated main thread.
+ * <p/>
+ * The test thread plays the main thread: it calls add() for every message back to back, like the
+ * database client does when a listener is attached, then runs the delivered batches once per
+ * simulated frame. Every batch reaching the sink stands for one relayout of the list. The tests only
+ * check what is delivered and when, {@link MessageIngestBufferBenchmark} reports the main-thread time.
+ */
+public class MessageIngestBufferTest {
+
+    static final long FRAME_MS = 16;
+    static final int BURST_SIZE = 10000;
+    static final int REPLAY_SIZE = 50000;
+
+    /*Before the buffer, every onChildAdded() decoded its message, added it to the list and relaid it out.*/
+    @Test
+    public void burstIsAppliedInFarFewerRelayoutsThanOnePerMessage() throws InterruptedException {
+        List<Map<String, Object>> values = randomValues(BURST_SIZE, new Random(42));
+
+        Replay replay = new Replay();
+        for (int i = 0; i < values.size(); i++) {
+            replay.buffer.add(keyOf(i), values.get(i));
+        }
+        replay.runFramesUntil(values.size());
+
+        assertEquals(values.size(), replay.messages.size());
+        for (int i = 0; i < values.size(); i++) {
+            assertEquals(keyOf(i), replay.messages.keyAt(i));
+        }
+        assertTrue("relayouts: " + replay.batches.size(), replay.batches.size() * 100 <= values.size());
+    }
+
+    /*A room opened from scratch delivers every message at once, in batches small enough for a frame.*/
+    @Test
+    public void largeReplayIsSpreadOverFramesInBoundedBatches() throws InterruptedException {
+        List<Map<String, Object>> values = randomValues(REPLAY_SIZE, new Random(7));
+        Map<String, Object> edited = new HashMap<>(values.get(REPLAY_SIZE - 1));
+        edited.put("text", "edited");
+
+        Replay replay = new Replay();
+        for (int i = 0; i < values.size(); i++) {
+            replay.buffer.add(keyOf(i), values.get(i));
+        }
+        //Edits wait for the adds before them, even when those take many frames.
+        replay.buffer.change(keyOf(REPLAY_SIZE - 1), edited);
+        replay.runFramesUntil(values.size());
+        //In case the edit missed the delivery of the last add.
+        Thread.sleep(FRAME_MS);
+        replay.runFrame();
+
+        assertEquals(values.size(), replay.messages.size());
+        for (int i = 0; i < values.size(); i++) {
+            assertEquals(keyOf(i), replay.messages.keyAt(i));
+        }
+        assertEquals("edited", replay.messages.get(REPLAY_SIZE - 1).getText());
+        assertTrue("deliveries: " + replay.batches.size(), replay.batches.size() > 1);
+        for (int size : replay.batches) {
+            assertTrue("batch of " + size, size <= MessageIngestBuffer.DEFAULT_MAX_BATCH_SIZE);
+        }
+    }
+
+    /**
+     * The repository side of the pipeline: batches are inserted into a compact list and published
+     * as a snapshot, on the thread that runs the frames.
+     */
+    static class Replay implements MessageIngestBuffer.Sink {
+        final LinkedBlockingQueue<Runnable> frameQueue = new LinkedBlockingQueue<>();
+        final MessageIngestBuffer buffer = new MessageIngestBuffer(this, new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                frameQueue.add(runnable);
+            }
+        });
+        final CompactMessageList messages = new CompactMessageList();
+        //Size of every batch of added messages, in delivery order.
+        final List<Integer> batches = new ArrayList<>();
+        //Time spent in each frame that delivered something, in nanoseconds, for the benchmark.
+        final List<Long> frameNanos = new ArrayList<>();
+        //The same in CPU time of the frame thread. Unlike the wall time it leaves out the collector
+        //pauses of the desktop JVM, which the concurrent collector of Android doesn't have.
+        final List<Long> frameCpuNanos = new ArrayList<>();
+        //What the last onRangeReloaded() was given.
+        List<FriendlyMessage> reloaded;
+        long mainThreadNanos;
+
+        @Override
+        public void onMessagesAdded(List<FriendlyMessage> added) {
+            for (FriendlyMessage message : added) {
+                MessageIndex.insert(messages, message);
+            }
+            messages.snapshot();
+            batches.add(added.size());
+        }
+
+        @Override
+        public void onOlderPageAdded(List<FriendlyMessage> page) {
+            //Like the repository: usually older than all the others, but a page filling the gap
+            //after a search result goes in between.
+            if (messages.isEmpty() || page.get(page.size() - 1).getKey().compareTo(messages.keyAt(0)) < 0) {
+                messages.addAll(0, page);
+            } else {
+                for (FriendlyMessage message : page) {
+                    MessageIndex.insert(messages, message);
+                }
+            }
+            messages.snapshot();
+        }
+
+        @Override
+        public void onMessagesUpdated(List<FriendlyMessage> changed, List<String> removedKeys) {
+            for (FriendlyMessage message : changed) {
+                int index = MessageIndex.indexOf(messages, message.getKey());
+                if (index >= 0) {
+                    messages.set(index, message);
+                }
+            }
+            for (String key : removedKeys) {
+                int index = MessageIndex.indexOf(messages, key);
+                if (index >= 0) {
+                    messages.remove(index);
+                }
+            }
+            messages.snapshot();
+        }
+
+        @Override
+        public void onRangeReloaded(String fromKey, String toKey, List<FriendlyMessage> messages) {
+            reloaded = messages;
+        }
+
+        /*Run what was delivered once per frame until the list has this many messages.*/
+        void runFramesUntil(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 60 * 1000;
+            while (messages.size() < count) {
+                assertTrue("timed out at " + messages.size() + " messages", System.currentTimeMillis() < deadline);
+                Thread.sleep(FRAME_MS);
+                runFrame();
+            }
+        }
+
+        void runFrame() {
+            List<Runnable> frame = new ArrayList<>();
+            frameQueue.drainTo(frame);
+            if (frame.isEmpty()) {
+                return;
+            }
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            long cpuStart = threads.getCurrentThreadCpuTime();
+            long start = System.nanoTime();
+            for (Runnable runnable : frame) {
+                runnable.run();
+            }
+            long nanos = System.nanoTime() - start;
+            frameCpuNanos.add(threads.getCurrentThreadCpuTime() - cpuStart);
+            frameNanos.add(nanos);
+            mainThreadNanos += nanos;
+        }
+    }
+
+    //Push keys sort chronologically, zero-padded numbers do too.
+    static String keyOf(int i) {
+        return String.format(Locale.US, "-K%018d", i);
+    }
+
+    /*What DataSnapshot.getValue() returns for a mix of text and photo messages from a few dozen authors.*/
+    static List<Map<String, Object>> randomValues(int count, Random random) {
+        List<Map<String, Object>> values = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Map<String, Object> value = new HashMap<>();
+            value.put("name", "Author " + random.nextInt(50));
+            if (random.nextInt(10) == 0) {
+                String name = Long.toHexString(random.nextLong());
+                value.put("photoUrl", "https://firebasestorage.googleapis.com/v0/b/fake.appspot.com/o/chat_photos%2F" + name);
+                value.put("thumbnailUrl", "https://firebasestorage.googleapis.com/v0/b/fake.appspot.com/o/chat_photos%2F" + name + "_thumb");
+            } else {
+                StringBuilder text = new StringBuilder();
+                int length = 10 + random.nextInt(190);
+                while (text.length() < length) {
+                    text.append((char) ('a' + random.nextInt(26)));
+                    if (random.nextInt(6) == 0) {
+                        text.append(' ');
+                    }
+                }
+                value.put("text", text.toString());
+            }
+            values.add(value);
+        }
+        return values;
+    }
+}
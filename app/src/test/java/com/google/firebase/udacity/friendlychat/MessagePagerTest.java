@@ -0,0 +1,394 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives a {@link MessagePager} and a {@link MessageIngestBuffer} against a {@link FakeDatabase},
+ * with the test thread as the main thread: database callbacks and deliveries both go through the
+ * frame queue of {@link MessageIngestBufferTest.Replay}.
+ */
+public class MessagePagerTest {
+
+    private static final String ROOM_ID = "pagertest";
+    private static final long DAY_MS = 24 * 60 * 60 * 1000;
+    private static final int PAGE_SIZE = 50;
+
+    private MessageIngestBufferTest.Replay mReplay;
+    private FakeDatabase mDatabase;
+    private MessagePager mPager;
+    //What the last onChangesRead() was given.
+    private Set<String> mChangedKeys;
+    private String mNewestChangeKey;
+
+    @Before
+    public void setUp() {
+        mReplay = new MessageIngestBufferTest.Replay();
+        mDatabase = new FakeDatabase(new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                mReplay.frameQueue.add(runnable);
+            }
+        });
+        mPager = new MessagePager(mDatabase, new Room(ROOM_ID), PAGE_SIZE, new MessagePager.Listener() {
+            @Override
+            public void onMessageAdded(MessageSource.Child child) {
+                mReplay.buffer.add(child);
+            }
+
+            @Override
+            public void onOlderPageLoaded(List<MessageSource.Child> page, String skipKey) {
+                mReplay.buffer.addOlderPage(page, skipKey);
+            }
+
+            @Override
+            public void onMessageChanged(MessageSource.Child child) {
+                mReplay.buffer.change(child);
+            }
+
+            @Override
+            public void onMessageRemoved(String key) {
+                mReplay.buffer.remove(key);
+            }
+
+            @Override
+            public void onRangeReloaded(String fromKey, String toKey, List<MessageSource.Child> children) {
+                mReplay.buffer.reloadRange(fromKey, toKey, children);
+            }
+
+            @Override
+            public void onChangesRead(Set<String> keys, String newestChangeKey) {
+                mChangedKeys = keys;
+                mNewestChangeKey = newestChangeKey;
+            }
+
+            @Override
+            public void onCancelled(Exception error) {
+                throw new AssertionError(error);
+            }
+        });
+    }
+
+    @Test
+    public void pagesBackThroughEarlierBuckets() throws InterruptedException {
+        long now = System.currentTimeMillis();
+        write(30, now - 2 * DAY_MS);
+        write(120, now);
+
+        mPager.start();
+        mReplay.runFramesUntil(PAGE_SIZE);
+        mPager.loadOlder();
+        mReplay.runFramesUntil(2 * PAGE_SIZE);
+        //The rest of today, then the 30 of two days ago, found through the bucket index.
+        mPager.loadOlder();
+        mReplay.runFramesUntil(120);
+        runFrames(5);
+        mPager.loadOlder();
+        mReplay.runFramesUntil(150);
+        runFrames(5);
+        assertTrue(mPager.hasReachedStart());
+        assertSorted();
+    }
+
+    @Test
+    public void quietDayIsFilledFromEarlierBuckets() throws InterruptedException {
+        long now = System.currentTimeMillis();
+        write(80, now - 3 * DAY_MS);
+        write(10, now);
+
+        mPager.start();
+        //One page from the earlier day fills the first screen, without the user scrolling.
+        mReplay.runFramesUntil(10 + PAGE_SIZE);
+        runFrames(5);
+        assertEquals(10 + PAGE_SIZE, mReplay.messages.size());
+        assertFalse(mPager.hasReachedStart());
+        assertSorted();
+    }
+
+    @Test
+    public void trimmingWhileTheFirstPageLoadsKeepsTheLiveWindow() throws InterruptedException {
+        long now = System.currentTimeMillis();
+        List<String> keys = write(80, now - DAY_MS);
+        write(10, now);
+
+        mPager.start();
+        //The caller trims its list, e.g. over the memory cap, before the first page arrives.
+        mPager.onOldestDropped(keys.get(40));
+        mReplay.runFramesUntil(10);
+        assertTrue(mPager.isStarted());
+        write(2, now);
+        mReplay.runFramesUntil(12);
+        //The first page is still filled from yesterday once the trim is over.
+        mPager.loadOlder();
+        mReplay.runFramesUntil(12 + PAGE_SIZE);
+        runFrames(5);
+        assertSorted();
+    }
+
+    @Test
+    public void childrenWithoutAPushKeyAreSkipped() throws InterruptedException {
+        long now = System.currentTimeMillis();
+        write(60, now - DAY_MS);
+        List<String> keys = write(3, now);
+        //Written by hand, not by a client.
+        String today = Room.bucketAt(now);
+        mDatabase.getReference().child(new Room(ROOM_ID).bucketPath(today) + "/!welcome").setValue(message("hi"));
+
+        mPager.start();
+        mReplay.runFramesUntil(3 + PAGE_SIZE - 4);
+        runFrames(5);
+        mDatabase.getReference().child(new Room(ROOM_ID).bucketPath(today) + "/!welcome").setValue(message("edited"));
+        mPager.onOldestDropped(keys.get(0));
+        mPager.loadOlder();
+        runFrames(5);
+        for (int i = 0; i < mReplay.messages.size(); i++) {
+            assertTrue(Room.isPushKey(mReplay.messages.keyAt(i)));
+        }
+        assertSorted();
+    }
+
+    @Test
+    public void liveEditsAndRemovalsReachTheList() throws InterruptedException {
+        List<String> keys = write(3, System.currentTimeMillis());
+        mPager.start();
+        mReplay.runFramesUntil(3);
+
+        String added = write(1, System.currentTimeMillis()).get(0);
+        mReplay.runFramesUntil(4);
+        Map<String, Object> edited = message("edited");
+        mDatabase.getReference().child(Room.messagePath(ROOM_ID, keys.get(1))).setValue(edited);
+        mDatabase.getReference().child(Room.messagePath(ROOM_ID, keys.get(0))).removeValue();
+        runFrames(5);
+
+        assertEquals(3, mReplay.messages.size());
+        assertEquals(keys.get(1), mReplay.messages.keyAt(0));
+        assertEquals("edited", mReplay.messages.get(0).getText());
+        assertEquals(added, mReplay.messages.keyAt(2));
+    }
+
+    @Test
+    public void resumingAfterAnEarlierDayReadsForwardToTheLiveWindow() throws InterruptedException {
+        long now = System.currentTimeMillis();
+        List<String> stored = write(20, now - 6 * DAY_MS);
+        write(70, now - 4 * DAY_MS);
+        write(15, now - DAY_MS);
+        write(5, now);
+
+        //More than a page on the day after the stored messages, then yesterday and today from the listeners.
+        mPager.startAfter(stored.get(stored.size() - 1), stored.get(0));
+        mReplay.runFramesUntil(70 + 15 + 5);
+        write(2, now);
+        mReplay.runFramesUntil(70 + 15 + 5 + 2);
+        runFrames(5);
+        assertEquals(70 + 15 + 5 + 2, mReplay.messages.size());
+        assertTrue(mReplay.messages.keyAt(0).compareTo(stored.get(stored.size() - 1)) > 0);
+        assertSorted();
+    }
+
+    @Test
+    public void serverTimeDecidesTheCurrentBucket() throws InterruptedException {
+        //The device clock is two days behind, new messages go to the server's day all the same.
+        mDatabase.setServerTimeOffset(2 * DAY_MS);
+        mPager.start();
+        runFrames(5);
+        write(4, mDatabase.getServerTimeMs());
+        mReplay.runFramesUntil(4);
+        assertSorted();
+    }
+
+    @Test
+    public void reloadSeesWhatChangedInAStoredRange() throws InterruptedException {
+        long now = System.currentTimeMillis();
+        List<String> keys = write(70, now - 3 * DAY_MS);
+        keys.addAll(write(40, now - 2 * DAY_MS));
+        write(5, now);
+        //Edited and deleted while nobody was listening.
+        mDatabase.getReference().child(Room.messagePath(ROOM_ID, keys.get(80))).setValue(message("edited"));
+        mDatabase.getReference().child(Room.messagePath(ROOM_ID, keys.get(10))).removeValue();
+
+        //Spans more than a page and two buckets, and stops at the last key asked for.
+        mPager.reload(keys.get(0), keys.get(keys.size() - 2));
+        long deadline = System.currentTimeMillis() + 10 * 1000;
+        while (mReplay.reloaded == null) {
+            assertTrue("timed out", System.currentTimeMillis() < deadline);
+            runFrames(1);
+        }
+        List<FriendlyMessage> reloaded = mReplay.reloaded;
+        assertEquals(keys.size() - 2, reloaded.size());
+        assertEquals(keys.get(0), reloaded.get(0).getKey());
+        assertEquals(keys.get(keys.size() - 2), reloaded.get(reloaded.size() - 1).getKey());
+        for (int i = 0; i < reloaded.size(); i++) {
+            assertFalse(keys.get(10).equals(reloaded.get(i).getKey()));
+            if (reloaded.get(i).getKey().equals(keys.get(80))) {
+                assertEquals("edited", reloaded.get(i).getText());
+            }
+        }
+    }
+
+    @Test
+    public void changeMarkersNameTheMessagesToReadAgain() throws InterruptedException {
+        long now = System.currentTimeMillis();
+        List<String> keys = write(70, now - 5 * DAY_MS);
+        write(5, now);
+        markChanged(keys.get(3));
+        mPager.readChanges(null);
+        runFramesUntilChangesRead();
+        String since = mNewestChangeKey;
+        assertTrue(mChangedKeys.isEmpty());
+
+        //Edited and deleted after the last look, more markers than fit a page.
+        mDatabase.getReference().child(Room.messagePath(ROOM_ID, keys.get(20))).setValue(message("edited"));
+        markChanged(keys.get(20));
+        for (int i = 0; i < PAGE_SIZE; i++) {
+            markChanged(keys.get(30));
+        }
+        mDatabase.getReference().child(Room.messagePath(ROOM_ID, keys.get(40))).removeValue();
+        markChanged(keys.get(40));
+        mPager.readChanges(since);
+        runFramesUntilChangesRead();
+        assertEquals(3, mChangedKeys.size());
+        assertTrue(mChangedKeys.contains(keys.get(40)));
+
+        mPager.reloadMessages(Collections.singletonList(keys.get(20)));
+        runFramesUntilReloaded();
+        assertEquals(1, mReplay.reloaded.size());
+        assertEquals("edited", mReplay.reloaded.get(0).getText());
+        mPager.reloadMessages(Collections.singletonList(keys.get(40)));
+        runFramesUntilReloaded();
+        assertTrue(mReplay.reloaded.isEmpty());
+    }
+
+    @Test
+    public void jumpsToAnOldMessageAndFillsTheGapAfterIt() throws InterruptedException {
+        long now = System.currentTimeMillis();
+        List<String> keys = write(120, now - 8 * DAY_MS);
+        keys.addAll(write(90, now - 5 * DAY_MS));
+        keys.addAll(write(60, now));
+        mPager.start();
+        mReplay.runFramesUntil(PAGE_SIZE);
+        runFrames(5);
+
+        //The page ending at the result comes straight from its bucket, without the pages in between.
+        String result = keys.get(100);
+        mPager.loadAround(result);
+        mReplay.runFramesUntil(2 * PAGE_SIZE);
+        runFrames(5);
+        assertEquals(2 * PAGE_SIZE, mReplay.messages.size());
+        assertEquals(keys.get(100 - PAGE_SIZE + 1), mReplay.messages.keyAt(0));
+        assertEquals(result, mReplay.messages.keyAt(PAGE_SIZE - 1));
+        assertEquals(result, mPager.getGapStartKey());
+        assertTrue(mPager.isInGap(keys.get(101)));
+        assertFalse(mPager.isInGap(result));
+
+        //Scrolling up goes on from the result, scrolling down fills the gap a page at a time.
+        mPager.loadOlder();
+        mReplay.runFramesUntil(3 * PAGE_SIZE);
+        long deadline = System.currentTimeMillis() + 10 * 1000;
+        while (mPager.getGapStartKey() != null) {
+            assertTrue("timed out", System.currentTimeMillis() < deadline);
+            mPager.loadGap();
+            runFrames(2);
+        }
+        runFrames(5);
+        assertEquals(keys.size() - 100 + PAGE_SIZE * 2 - 1, mReplay.messages.size());
+        assertSorted();
+    }
+
+    @Test
+    public void nothingArrivesAfterStop() throws InterruptedException {
+        write(3, System.currentTimeMillis());
+        mPager.start();
+        mReplay.runFramesUntil(3);
+        mPager.stop();
+        write(2, System.currentTimeMillis());
+        runFrames(5);
+        assertEquals(3, mReplay.messages.size());
+    }
+
+    /*Write count messages with keys made at timeMs, like OutgoingMessageQueue does. Returns their keys.*/
+    private List<String> write(int count, long timeMs) {
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String key = mDatabase.getReference().push(timeMs).getKey();
+            Map<String, Object> childUpdates = new HashMap<>();
+            childUpdates.put(Room.messagePath(ROOM_ID, key), message("message " + i));
+            childUpdates.put(Room.bucketIndexPath(ROOM_ID, key), true);
+            mDatabase.getReference().updateChildren(childUpdates);
+            keys.add(key);
+        }
+        return keys;
+    }
+
+    /*Push a change marker for the message with this key, like whoever edits it does.*/
+    private void markChanged(String key) {
+        Map<String, Object> marker = new HashMap<>();
+        marker.put("key", key);
+        mDatabase.getReference().child(Room.changePath(ROOM_ID, mDatabase.getReference().push().getKey())).setValue(marker);
+    }
+
+    private void runFramesUntilChangesRead() throws InterruptedException {
+        mChangedKeys = null;
+        long deadline = System.currentTimeMillis() + 10 * 1000;
+        while (mChangedKeys == null) {
+            assertTrue("timed out", System.currentTimeMillis() < deadline);
+            runFrames(1);
+        }
+    }
+
+    private void runFramesUntilReloaded() throws InterruptedException {
+        mReplay.reloaded = null;
+        long deadline = System.currentTimeMillis() + 10 * 1000;
+        while (mReplay.reloaded == null) {
+            assertTrue("timed out", System.currentTimeMillis() < deadline);
+            runFrames(1);
+        }
+    }
+
+    private static Map<String, Object> message(String text) {
+        Map<String, Object> value = new HashMap<>();
+        value.put("name", "Author");
+        value.put("text", text);
+        return value;
+    }
+
+    //Give the worker and the follow-up reads time to come through.
+    private void runFrames(int count) throws InterruptedException {
+        for (int i = 0; i < count; i++) {
+            Thread.sleep(16);
+            mReplay.runFrame();
+        }
+    }
+
+    private void assertSorted() {
+        for (int i = 1; i < mReplay.messages.size(); i++) {
+            assertTrue(mReplay.messages.keyAt(i - 1).compareTo(mReplay.messages.keyAt(i)) < 0);
+        }
+    }
+}
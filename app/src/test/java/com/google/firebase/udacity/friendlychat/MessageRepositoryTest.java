@@ -0,0 +1,404 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives a {@link MessageRepository} with a store, a search index and an {@link OutgoingMessageQueue}
+ * on temporary files against a {@link FakeDatabase}, with the test thread as the main thread:
+ * database callbacks, deliveries, load callbacks and queue flushes all go through one frame queue.
+ */
+public class MessageRepositoryTest {
+
+    private static final String ROOM_ID = "repositorytest";
+    private static final int PAGE_SIZE = 10;
+
+    private interface Condition {
+        boolean holds();
+    }
+
+    private final LinkedBlockingQueue<Runnable> mFrameQueue = new LinkedBlockingQueue<>();
+    private final Executor mMainThread = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            mFrameQueue.add(runnable);
+        }
+    };
+    private final List<File> mFiles = new ArrayList<>();
+    private FakeDatabase mDatabase;
+    private OutgoingMessageQueue mQueue;
+    private MessageRepository mRepository;
+    //What the observer was last given.
+    private List<FriendlyMessage> mMessages = Collections.emptyList();
+    private int mPublishCount;
+    //A message taken back for good, no list may show it again.
+    private String mGoneKey;
+
+    private final MessageRepository.Observer mObserver = new MessageRepository.Observer() {
+        @Override
+        public void onMessagesChanged(List<FriendlyMessage> messages) {
+            onPublished(messages);
+        }
+
+        @Override
+        public void onMessagesEdited(List<FriendlyMessage> messages, List<String> changedKeys, List<String> removedKeys) {
+            onPublished(messages);
+        }
+    };
+
+    @Before
+    public void setUp() {
+        mDatabase = new FakeDatabase(mMainThread);
+        //Flushes and retries run on the next frame, whatever their delay.
+        mQueue = new OutgoingMessageQueue(mDatabase, newFile("outgoing.queue"), new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                runnable.run();
+            }
+        }, new OutgoingMessageQueue.Scheduler() {
+            @Override
+            public void schedule(Runnable task, long delayMs) {
+                mFrameQueue.add(task);
+            }
+
+            @Override
+            public void cancel(Runnable task) {
+                mFrameQueue.remove(task);
+            }
+        });
+    }
+
+    //Every list the observer is given is in key order without duplicates, not just the last one.
+    private void onPublished(List<FriendlyMessage> messages) {
+        for (int i = 1; i < messages.size(); i++) {
+            assertTrue(messages.get(i - 1).getKey().compareTo(messages.get(i).getKey()) < 0);
+        }
+        if (mGoneKey != null) {
+            assertNull(find(messages, mGoneKey));
+        }
+        mMessages = messages;
+        mPublishCount++;
+    }
+
+    @After
+    public void tearDown() {
+        if (mRepository != null) {
+            mRepository.removeObserver(mObserver);
+        }
+        for (File file : mFiles) {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void photoAddedToAnOldStoredMessageReachesTheList() throws InterruptedException {
+        MessageStore store = newStore();
+        List<String> keys = storeRoom(store, 3 * PAGE_SIZE);
+        //The store is current with an edit made before it was written.
+        store.setChangesKey(markChanged(keys.get(1)));
+
+        addPhotoTo(keys.get(0));
+        startRepository(store);
+
+        //Older than the pages read again on start, so only its change marker brings the photo.
+        runFramesUntilPhotoOf(keys.get(0));
+        assertEquals(keys, keysOf(mMessages));
+    }
+
+    @Test
+    public void storeWithoutAChangesKeyReadsTheMarkersSinceItsMessages() throws InterruptedException {
+        MessageStore store = newStore();
+        List<String> keys = storeRoom(store, 3 * PAGE_SIZE);
+
+        addPhotoTo(keys.get(0));
+        startRepository(store);
+
+        runFramesUntilPhotoOf(keys.get(0));
+        assertEquals(keys, keysOf(mMessages));
+    }
+
+    @Test
+    public void updateOfAMessageNotWrittenYetNeedsNoMarker() throws InterruptedException {
+        FriendlyMessage message = new FriendlyMessage(null, "Author", null);
+        message.setThumbnailUrl("https://example.com/thumb.jpg");
+        message.setRoomId(ROOM_ID);
+        mQueue.send(message);
+        FriendlyMessage photo = photoMessage(message.getKey());
+        mQueue.update(photo);
+        runFramesUntilSent();
+
+        assertEquals(1, mDatabase.getWriteCount());
+        assertNull(lastChangeKey());
+    }
+
+    @Test
+    public void localEchoIsReplacedByTheServerAddThenTakenBackWhenRejected() throws InterruptedException {
+        final String welcomeKey = storeRoom(newStore(), 1).get(0);
+        startRepository(newStore());
+        runFramesUntil(new Condition() {
+            @Override
+            public boolean holds() {
+                return find(mMessages, welcomeKey) != null;
+            }
+        });
+
+        //Shown right away, before anything is written.
+        mDatabase.setHoldingWrites(true);
+        FriendlyMessage message = new FriendlyMessage("hello", "Author", null);
+        message.setRoomId(ROOM_ID);
+        mQueue.send(message);
+        final String key = message.getKey();
+        assertShownOnce(key, FriendlyMessage.STATUS_PENDING);
+
+        //The write shows up as added before the server acknowledges it, and replaces the local copy.
+        final int publishCount = mPublishCount;
+        runFramesUntil(new Condition() {
+            @Override
+            public boolean holds() {
+                return mDatabase.getWriteCount() == 1 && mPublishCount > publishCount;
+            }
+        });
+        runFramesUntilQuiet();
+        assertShownOnce(key, FriendlyMessage.STATUS_PENDING);
+
+        //It fails: the database takes the write back, but the message is still queued.
+        mDatabase.setWriteError(new Exception("Disconnected"));
+        mDatabase.completeHeldWrites();
+        mDatabase.setWriteError(null);
+        runFramesUntil(new Condition() {
+            @Override
+            public boolean holds() {
+                FriendlyMessage shown = find(mMessages, key);
+                return shown != null && shown.getStatus() == FriendlyMessage.STATUS_FAILED;
+            }
+        });
+        //The retry is written, and shows up as added again.
+        runFramesUntil(new Condition() {
+            @Override
+            public boolean holds() {
+                return mDatabase.getWriteCount() == 2;
+            }
+        });
+        runFramesUntilQuiet();
+        assertShownOnce(key, FriendlyMessage.STATUS_FAILED);
+
+        //The rules refuse it: the write is taken back and so is the local copy.
+        mDatabase.setWriteRule(new FakeDatabase.WriteRule() {
+            @Override
+            public boolean allows(String path, Object value) {
+                return !(value instanceof Map && "hello".equals(((Map<?, ?>) value).get("text")));
+            }
+        });
+        mDatabase.completeHeldWrites();
+        runFramesUntil(new Condition() {
+            @Override
+            public boolean holds() {
+                return find(mMessages, key) == null;
+            }
+        });
+        //The echo of the refused write may still be on its way, it must not bring the message back.
+        mGoneKey = key;
+        runFramesUntilQuiet();
+        assertEquals(Collections.singletonList(welcomeKey), keysOf(mMessages));
+        assertEquals(0, mQueue.getQueueDepth());
+    }
+
+    /*Write count messages to the database and to the store, like a session that loaded them. The
+    oldest is a photo message sent with its thumbnail only. Returns their keys.*/
+    private List<String> storeRoom(MessageStore store, int count) {
+        List<String> keys = new ArrayList<>();
+        List<FriendlyMessage> messages = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String key = mDatabase.getReference().push().getKey();
+            FriendlyMessage message = new FriendlyMessage(i == 0 ? null : "message " + i, "Author", null);
+            if (i == 0) {
+                message.setThumbnailUrl("https://example.com/thumb.jpg");
+            }
+            message.setKey(key);
+            message.setRoomId(ROOM_ID);
+            Map<String, Object> childUpdates = new HashMap<>();
+            childUpdates.put(Room.messagePath(ROOM_ID, key), message.toMap());
+            childUpdates.put(Room.bucketIndexPath(ROOM_ID, key), true);
+            mDatabase.getReference().updateChildren(childUpdates);
+            keys.add(key);
+            messages.add(message);
+        }
+        store.append(messages);
+        return keys;
+    }
+
+    /*The second half of a photo message, like PhotoUploadQueue sends once the photo is up.*/
+    private void addPhotoTo(String key) throws InterruptedException {
+        mQueue.update(photoMessage(key));
+        runFramesUntilSent();
+    }
+
+    private static FriendlyMessage photoMessage(String key) {
+        FriendlyMessage message = new FriendlyMessage(null, "Author", "https://example.com/photo.jpg");
+        message.setThumbnailUrl("https://example.com/thumb.jpg");
+        message.setKey(key);
+        message.setRoomId(ROOM_ID);
+        return message;
+    }
+
+    /*Push a change marker for the message with this key, like whoever edits it does. Returns the marker key.*/
+    private String markChanged(String key) {
+        Map<String, Object> marker = new HashMap<>();
+        marker.put("key", key);
+        String changeKey = mDatabase.getReference().push().getKey();
+        mDatabase.getReference().child(Room.changePath(ROOM_ID, changeKey)).setValue(marker);
+        return changeKey;
+    }
+
+    private String lastChangeKey() throws InterruptedException {
+        final List<String> changeKeys = new ArrayList<>();
+        mDatabase.getLast(new Room(ROOM_ID).changesPath(), null, 1, new MessageSource.PageCallback() {
+            @Override
+            public void onPage(List<MessageSource.Child> children) {
+                changeKeys.add(children.isEmpty() ? null : children.get(0).getKey());
+            }
+
+            @Override
+            public void onCancelled(Exception error) {
+                throw new AssertionError(error);
+            }
+        });
+        runFramesUntil(new Condition() {
+            @Override
+            public boolean holds() {
+                return !changeKeys.isEmpty();
+            }
+        });
+        return changeKeys.get(0);
+    }
+
+    private void startRepository(MessageStore store) {
+        mRepository = new MessageRepository(mDatabase, new Room(ROOM_ID), store,
+                new MessageSearchIndex(newFile("search.idx"), MessageSearchIndex.DEFAULT_MAX_MESSAGES, mMainThread),
+                mQueue, mMainThread);
+        mRepository.setPageSize(PAGE_SIZE);
+        mRepository.addObserver(mObserver);
+    }
+
+    private MessageStore newStore() {
+        return new MessageStore(newFile("messages.log"), MessageStore.DEFAULT_MAX_MESSAGES, mMainThread);
+    }
+
+    private File newFile(String name) {
+        File file = new File(System.getProperty("java.io.tmpdir"), "repository-test-" + System.nanoTime() + "-" + name);
+        mFiles.add(file);
+        return file;
+    }
+
+    private void runFramesUntilSent() throws InterruptedException {
+        runFramesUntil(new Condition() {
+            @Override
+            public boolean holds() {
+                return mQueue.getQueueDepth() == 0;
+            }
+        });
+    }
+
+    private void runFramesUntilPhotoOf(final String key) throws InterruptedException {
+        runFramesUntil(new Condition() {
+            @Override
+            public boolean holds() {
+                FriendlyMessage message = find(mMessages, key);
+                return message != null && message.getPhotoUrl() != null;
+            }
+        });
+    }
+
+    private void assertShownOnce(String key, int status) {
+        int count = 0;
+        for (FriendlyMessage message : mMessages) {
+            if (key.equals(message.getKey())) {
+                assertEquals(status, message.getStatus());
+                count++;
+            }
+        }
+        assertEquals(1, count);
+    }
+
+    /*Run frames until nothing came in for a while, so deliveries still on the worker are through too.*/
+    private void runFramesUntilQuiet() throws InterruptedException {
+        long quietSinceMs = System.currentTimeMillis();
+        while (System.currentTimeMillis() - quietSinceMs < 200) {
+            if (!mFrameQueue.isEmpty()) {
+                runFrame();
+                quietSinceMs = System.currentTimeMillis();
+            } else {
+                Thread.sleep(5);
+            }
+        }
+    }
+
+    private void runFramesUntil(Condition condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10 * 1000;
+        while (!condition.holds()) {
+            assertTrue("timed out", System.currentTimeMillis() < deadline);
+            runFrame();
+        }
+    }
+
+    //Everything queued by the time the frame starts. What it queues runs on the next one.
+    private void runFrame() throws InterruptedException {
+        Runnable first = mFrameQueue.poll(16, TimeUnit.MILLISECONDS);
+        if (first == null) {
+            return;
+        }
+        List<Runnable> tasks = new ArrayList<>();
+        mFrameQueue.drainTo(tasks);
+        first.run();
+        for (Runnable task : tasks) {
+            task.run();
+        }
+    }
+
+    private static FriendlyMessage find(List<FriendlyMessage> messages, String key) {
+        for (FriendlyMessage message : messages) {
+            if (key.equals(message.getKey())) {
+                return message;
+            }
+        }
+        return null;
+    }
+
+    private static List<String> keysOf(List<FriendlyMessage> messages) {
+        List<String> keys = new ArrayList<>();
+        for (FriendlyMessage message : messages) {
+            keys.add(message.getKey());
+        }
+        return keys;
+    }
+}
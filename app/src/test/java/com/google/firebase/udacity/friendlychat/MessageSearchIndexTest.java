@@ -0,0 +1,152 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Indexes messages in a {@link MessageSearchIndex} backed by a temporary file and searches them,
+ * with the results delivered on the index thread instead of the main thread.
+ */
+public class MessageSearchIndexTest {
+
+    private File mFile;
+    private final LinkedBlockingQueue<List<MessageSearchIndex.Result>> mResults = new LinkedBlockingQueue<>();
+
+    @Before
+    public void setUp() {
+        mFile = new File(System.getProperty("java.io.tmpdir"), "search-test-" + System.nanoTime() + ".idx");
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void tokenizesIntoDistinctLowercaseWords() {
+        assertEquals(Arrays.asList("2016", "hello", "it", "s", "world"),
+                new ArrayList<>(MessageSearchIndex.tokenize("Hello, World! It's 2016, hello")));
+        assertTrue(MessageSearchIndex.tokenize(null).isEmpty());
+        //Links and hashes are not worth indexing.
+        assertEquals(Collections.singletonList("see"),
+                new ArrayList<>(MessageSearchIndex.tokenize("see 0123456789abcdef0123456789abcdef0")));
+    }
+
+    @Test
+    public void matchesEveryWordAsAPrefixNewestFirst() throws InterruptedException {
+        MessageSearchIndex index = newIndex(100);
+        index.add(Arrays.asList(
+                message("-K01", "Alice", "Lunch at noon?"),
+                message("-K02", "Bob", "lunchtime works"),
+                message("-K03", "Alice", "Dinner then"),
+                message("-K04", "Carol", null)));
+
+        assertEquals(Arrays.asList("-K02", "-K01"), keysOf(search(index, "LUNCH")));
+        assertEquals(Collections.singletonList("-K01"), keysOf(search(index, "al lun")));
+        //The author is indexed too, a photo has no snippet.
+        List<MessageSearchIndex.Result> photo = search(index, "carol");
+        assertEquals(1, photo.size());
+        assertNull(photo.get(0).snippet);
+        assertTrue(search(index, "breakfast").isEmpty());
+        assertTrue(search(index, " ,. ").isEmpty());
+    }
+
+    @Test
+    public void editsAndRemovalsUpdateTheIndex() throws InterruptedException {
+        MessageSearchIndex index = newIndex(100);
+        index.add(Arrays.asList(message("-K01", "Alice", "typo here"), message("-K02", "Bob", "typo too")));
+        index.add(Collections.singletonList(message("-K01", "Alice", "fixed here")));
+        index.remove(Collections.singletonList("-K02"));
+
+        assertTrue(search(index, "typo").isEmpty());
+        assertEquals(Collections.singletonList("-K01"), keysOf(search(index, "fixed")));
+    }
+
+    @Test
+    public void forgetsTheOldestMessagesOverTheCap() throws InterruptedException {
+        MessageSearchIndex index = newIndex(3);
+        List<FriendlyMessage> messages = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            messages.add(message("-K0" + i, "Alice", "hello " + i));
+        }
+        index.add(messages);
+
+        assertEquals(Arrays.asList("-K04", "-K03", "-K02"), keysOf(search(index, "hello")));
+        assertTrue(search(index, "1").isEmpty());
+    }
+
+    @Test
+    public void releasedIndexIsReadBackFromItsFile() throws InterruptedException {
+        MessageSearchIndex index = newIndex(100);
+        index.add(Collections.singletonList(message("-K01", "Alice", "remember me")));
+        index.release();
+
+        assertEquals(Collections.singletonList("-K01"), keysOf(search(index, "remember")));
+        assertEquals(Collections.singletonList("-K01"), keysOf(search(newIndex(100), "remember")));
+    }
+
+    private MessageSearchIndex newIndex(int maxMessages) {
+        return new MessageSearchIndex(mFile, maxMessages, new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                runnable.run();
+            }
+        });
+    }
+
+    private List<MessageSearchIndex.Result> search(MessageSearchIndex index, String query) throws InterruptedException {
+        index.search(query, MessageSearchIndex.DEFAULT_MAX_RESULTS, new MessageSearchIndex.SearchCallback() {
+            @Override
+            public void onResults(String query, List<MessageSearchIndex.Result> results) {
+                mResults.add(results);
+            }
+        });
+        List<MessageSearchIndex.Result> results = mResults.poll(10, TimeUnit.SECONDS);
+        assertNotNull("timed out", results);
+        return results;
+    }
+
+    private static List<String> keysOf(List<MessageSearchIndex.Result> results) {
+        List<String> keys = new ArrayList<>();
+        for (MessageSearchIndex.Result result : results) {
+            keys.add(result.key);
+        }
+        return keys;
+    }
+
+    private static FriendlyMessage message(String key, String name, String text) {
+        FriendlyMessage message = new FriendlyMessage(text, name, text == null ? "https://example.com/photo.jpg" : null);
+        message.setKey(key);
+        return message;
+    }
+}
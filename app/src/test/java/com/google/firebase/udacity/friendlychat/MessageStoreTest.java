@@ -0,0 +1,231 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.firebase.udacity.friendlychat.MessageIngestBufferTest.keyOf;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Loads {@link MessageStore} logs written record by record to a temporary file, including damaged
+ * ones and ones from older versions, with the load callback run on the store thread.
+ */
+public class MessageStoreTest {
+
+    private File mFile;
+    private final LinkedBlockingQueue<Loaded> mLoaded = new LinkedBlockingQueue<>();
+
+    private static class Loaded {
+        final List<FriendlyMessage> messages;
+        final String changesKey;
+
+        Loaded(List<FriendlyMessage> messages, String changesKey) {
+            this.messages = messages;
+            this.changesKey = changesKey;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mFile = new File(System.getProperty("java.io.tmpdir"), "store-test-" + System.nanoTime() + ".log");
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+        new File(mFile.getPath() + ".tmp").delete();
+    }
+
+    @Test
+    public void truncatedTailIsDroppedAndCompactedAway() throws Exception {
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(mFile));
+        MessageStore.writeRecord(out, message(1, "one"));
+        MessageStore.writeRecord(out, message(2, "two"));
+        out.writeByte(MessageStore.RECORD_CHANGES_READ);
+        MessageStore.writeString(out, keyOf(100));
+        //The process died halfway through the next record.
+        out.writeByte(MessageStore.RECORD_PUT_IN_ROOM);
+        MessageStore.writeString(out, keyOf(3));
+        out.writeInt(10);
+        out.write(new byte[]{'t', 'h'});
+        out.close();
+
+        MessageStore store = newStore(100);
+        Loaded loaded = load(store);
+        assertEquals(Arrays.asList("one", "two"), textsOf(loaded.messages));
+        assertEquals(keyOf(100), loaded.changesKey);
+        //Rewritten without the damaged record, so what is appended next can be read back.
+        assertEquals(bytesOf(Arrays.asList(message(1, "one"), message(2, "two")), keyOf(100)).length, mFile.length());
+
+        store.append(Collections.singletonList(message(3, "three")));
+        loaded = load(newStore(100));
+        assertEquals(Arrays.asList("one", "two", "three"), textsOf(loaded.messages));
+        assertEquals(keyOf(100), loaded.changesKey);
+    }
+
+    @Test
+    public void removalHidesEarlierPuts() throws Exception {
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(mFile));
+        MessageStore.writeRecord(out, message(1, "one"));
+        MessageStore.writeRecord(out, message(2, "two"));
+        MessageStore.writeRecord(out, message(1, "one edited"));
+        out.writeByte(MessageStore.RECORD_REMOVE);
+        MessageStore.writeString(out, keyOf(1));
+        out.writeByte(MessageStore.RECORD_REMOVE);
+        MessageStore.writeString(out, keyOf(3));
+        out.close();
+
+        MessageStore store = newStore(100);
+        assertEquals(Collections.singletonList("two"), textsOf(load(store).messages));
+
+        //Until it is put again, later records win.
+        store.append(Collections.singletonList(message(1, "one again")));
+        store.remove(Collections.singletonList(keyOf(2)));
+        assertEquals(Collections.singletonList("one again"), textsOf(load(store).messages));
+    }
+
+    @Test
+    public void changesKeySurvivesCompaction() throws Exception {
+        MessageStore store = newStore(2);
+        store.setChangesKey(keyOf(100));
+        List<FriendlyMessage> messages = new ArrayList<>();
+        for (int i = 1; i <= 4; i++) {
+            messages.add(message(i, "message " + i));
+        }
+        //Six records, more than twice the cap: compacted down to the newest two.
+        store.append(messages);
+        store.append(Collections.singletonList(message(5, "message 5")));
+
+        Loaded loaded = load(newStore(2));
+        assertEquals(Arrays.asList("message 4", "message 5"), textsOf(loaded.messages));
+        assertEquals(keyOf(100), loaded.changesKey);
+        assertEquals(bytesOf(messages.subList(2, 4), keyOf(100)).length
+                + bytesOf(Collections.singletonList(message(5, "message 5")), null).length, mFile.length());
+    }
+
+    @Test
+    public void readsRecordsOfOlderVersions() throws Exception {
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(mFile));
+        //Before thumbnails.
+        out.writeByte(MessageStore.RECORD_PUT);
+        MessageStore.writeString(out, keyOf(1));
+        MessageStore.writeString(out, "one");
+        MessageStore.writeString(out, "Author");
+        MessageStore.writeString(out, null);
+        //Before rooms.
+        out.writeByte(MessageStore.RECORD_PUT_WITH_THUMBNAIL);
+        MessageStore.writeString(out, keyOf(2));
+        MessageStore.writeString(out, null);
+        MessageStore.writeString(out, "Author");
+        MessageStore.writeString(out, "https://example.com/photo.jpg");
+        MessageStore.writeString(out, "https://example.com/thumb.jpg");
+        //Before messages were kept to push keys, a message written by hand.
+        out.writeByte(MessageStore.RECORD_PUT);
+        MessageStore.writeString(out, "welcome");
+        MessageStore.writeString(out, "Hello");
+        MessageStore.writeString(out, "Admin");
+        MessageStore.writeString(out, null);
+        MessageStore.writeRecord(out, message(3, "three"));
+        out.close();
+
+        List<FriendlyMessage> messages = load(newStore(100)).messages;
+        assertEquals(3, messages.size());
+        FriendlyMessage one = messages.get(0);
+        assertEquals(keyOf(1), one.getKey());
+        assertEquals("one", one.getText());
+        assertEquals("Author", one.getName());
+        assertNull(one.getPhotoUrl());
+        assertNull(one.getThumbnailUrl());
+        assertNull(one.getRoomId());
+        FriendlyMessage two = messages.get(1);
+        assertEquals(keyOf(2), two.getKey());
+        assertNull(two.getText());
+        assertEquals("https://example.com/photo.jpg", two.getPhotoUrl());
+        assertEquals("https://example.com/thumb.jpg", two.getThumbnailUrl());
+        assertNull(two.getRoomId());
+        assertEquals("three", messages.get(2).getText());
+        assertEquals("storetest", messages.get(2).getRoomId());
+    }
+
+    private MessageStore newStore(int maxMessages) {
+        return new MessageStore(mFile, maxMessages, new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                runnable.run();
+            }
+        });
+    }
+
+    private Loaded load(MessageStore store) throws InterruptedException {
+        store.load(new MessageStore.LoadCallback() {
+            @Override
+            public void onLoaded(List<FriendlyMessage> messages, String changesKey) {
+                mLoaded.add(new Loaded(messages, changesKey));
+            }
+        });
+        Loaded loaded = mLoaded.poll(10, TimeUnit.SECONDS);
+        assertNotNull("timed out", loaded);
+        return loaded;
+    }
+
+    private static FriendlyMessage message(int i, String text) {
+        FriendlyMessage message = new FriendlyMessage(text, "Author", null);
+        message.setKey(keyOf(i));
+        message.setRoomId("storetest");
+        return message;
+    }
+
+    /*The log holding exactly these messages and changes key.*/
+    private static byte[] bytesOf(List<FriendlyMessage> messages, String changesKey) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (FriendlyMessage message : messages) {
+            MessageStore.writeRecord(out, message);
+        }
+        if (changesKey != null) {
+            out.writeByte(MessageStore.RECORD_CHANGES_READ);
+            MessageStore.writeString(out, changesKey);
+        }
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static List<String> textsOf(List<FriendlyMessage> messages) {
+        List<String> texts = new ArrayList<>();
+        for (FriendlyMessage message : messages) {
+            texts.add(message.getText());
+        }
+        return texts;
+    }
+}
@@ -0,0 +1,343 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs an {@link OutgoingMessageQueue} against a {@link FakeDatabase} with its rules and write
+ * failures, on the test thread: file access happens right away and the scheduled flushes run when
+ * the test says, so the delays they were scheduled with can be checked.
+ */
+public class OutgoingMessageQueueTest {
+
+    private static final String ROOM_ID = "queuetest";
+
+    private final Executor mDirectExecutor = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+    //Scheduled tasks and their delays, in the order they were scheduled.
+    private final List<Runnable> mScheduled = new ArrayList<>();
+    private final List<Long> mDelays = new ArrayList<>();
+    private final OutgoingMessageQueue.Scheduler mScheduler = new OutgoingMessageQueue.Scheduler() {
+        @Override
+        public void schedule(Runnable task, long delayMs) {
+            mScheduled.add(task);
+            mDelays.add(delayMs);
+        }
+
+        @Override
+        public void cancel(Runnable task) {
+            int index = mScheduled.indexOf(task);
+            if (index >= 0) {
+                mScheduled.remove(index);
+                mDelays.remove(index);
+            }
+        }
+    };
+
+    private File mFile;
+    private FakeDatabase mDatabase;
+    private OutgoingMessageQueue mQueue;
+    //What the listener was told, by message text.
+    private final List<String> mSent = new ArrayList<>();
+    private final List<String> mFailed = new ArrayList<>();
+    private final List<String> mRejected = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        mFile = new File(System.getProperty("java.io.tmpdir"), "queue-test-" + System.nanoTime() + ".queue");
+        mDatabase = new FakeDatabase(mDirectExecutor);
+        mQueue = newQueue();
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void pendingMessagesGoOutAsOneBatch() {
+        send("one");
+        send("two");
+        send("three");
+        assertEquals(OutgoingMessageQueue.DEFAULT_FLUSH_DELAY_MS, runNext());
+
+        assertEquals(1, mDatabase.getWriteCount());
+        assertEquals(Arrays.asList("one", "two", "three"), mSent);
+        assertEquals(Arrays.asList("one", "two", "three"), textsInDatabase());
+        assertEquals(0, mQueue.getQueueDepth());
+    }
+
+    @Test
+    public void rejectedBatchIsSplitIntoSingleMessages() {
+        rejectText("bad");
+        send("one");
+        send("bad");
+        send("two");
+        runAll();
+
+        //The batch, then each of its messages on its own.
+        assertEquals(4, mDatabase.getWriteCount());
+        assertEquals(Arrays.asList("one", "two"), mSent);
+        assertEquals(Collections.singletonList("bad"), mRejected);
+        assertEquals(Arrays.asList("one", "two"), textsInDatabase());
+        assertEquals(0, mQueue.getQueueDepth());
+        //A rejection is not a failure to retry.
+        assertTrue(mFailed.isEmpty());
+    }
+
+    @Test
+    public void rejectedMessageIsDroppedAndBatchingResumes() {
+        rejectText("bad");
+        send("bad");
+        runAll();
+        //A message on its own is dropped right away.
+        assertEquals(1, mDatabase.getWriteCount());
+        assertEquals(Collections.singletonList("bad"), mRejected);
+        assertFalse(mFile.exists());
+
+        send("bad");
+        send("one");
+        runAll();
+        assertEquals(Arrays.asList("bad", "bad"), mRejected);
+        assertEquals(1 + 3, mDatabase.getWriteCount());
+
+        //Once the isolated messages are through, a batch is a single write again.
+        send("two");
+        send("three");
+        runAll();
+        assertEquals(1 + 3 + 1, mDatabase.getWriteCount());
+        assertEquals(Arrays.asList("one", "two", "three"), textsInDatabase());
+    }
+
+    @Test
+    public void failedWritesAreRetriedWithBackoff() {
+        mDatabase.setWriteError(new Exception("Disconnected"));
+        send("one");
+        runNext();
+        List<Long> delays = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            delays.add(runNext());
+        }
+        assertEquals(Arrays.asList(1000L, 2000L, 4000L, 8000L, 16000L, 32000L, 60000L, 60000L), delays);
+        assertEquals(9, mFailed.size());
+        assertEquals(1, mQueue.getQueueDepth());
+        //The write was taken back.
+        assertTrue(textsInDatabase().isEmpty());
+
+        mDatabase.setWriteError(null);
+        assertEquals(60000L, runNext());
+        assertEquals(Collections.singletonList("one"), mSent);
+        assertEquals(0, mQueue.getQueueDepth());
+
+        //A success starts the backoff over.
+        mDatabase.setWriteError(new Exception("Disconnected"));
+        send("two");
+        runNext();
+        assertEquals(1000L, runNext());
+    }
+
+    @Test
+    public void unacknowledgedMessagesAreRestoredFromTheFile() {
+        mDatabase.setWriteError(new Exception("Disconnected"));
+        FriendlyMessage one = send("one");
+        FriendlyMessage edit = new FriendlyMessage("edited", "Author", null);
+        edit.setKey(mDatabase.newKey());
+        edit.setRoomId(ROOM_ID);
+        mQueue.update(edit);
+        runNext();
+        assertTrue(mFile.exists());
+
+        //The process dies and the queue is created again, with the database reachable this time.
+        mScheduled.clear();
+        mDelays.clear();
+        mDatabase.setWriteError(null);
+        final List<FriendlyMessage> restored = new ArrayList<>();
+        OutgoingMessageQueue queue = newQueue();
+        queue.addListener(new Listener() {
+            @Override
+            public void onMessageQueued(FriendlyMessage message) {
+                restored.add(message);
+            }
+        });
+        assertEquals(0, runNext());
+
+        assertEquals(2, restored.size());
+        assertEquals(one.getKey(), restored.get(0).getKey());
+        assertEquals(ROOM_ID, restored.get(0).getRoomId());
+        assertFalse(restored.get(0).isEdit());
+        assertEquals(edit.getKey(), restored.get(1).getKey());
+        assertTrue(restored.get(1).isEdit());
+
+        runAll();
+        assertEquals(0, queue.getQueueDepth());
+        assertEquals(Arrays.asList("one", "edited"), mSent);
+        assertEquals(Arrays.asList("one", "edited"), textsInDatabase());
+        //Still an edit after the restore, so it went out with its marker.
+        assertEquals(edit.getKey(), lastMarkedKey());
+        assertFalse(mFile.exists());
+    }
+
+    @Test
+    public void clearDropsThePendingMessagesAndTheFile() {
+        mDatabase.setWriteError(new Exception("Disconnected"));
+        send("one");
+        runNext();
+        assertTrue(mFile.exists());
+
+        mQueue.clear();
+        assertEquals(0, mQueue.getQueueDepth());
+        assertTrue(mScheduled.isEmpty());
+        assertFalse(mFile.exists());
+        newQueue();
+        assertTrue(mScheduled.isEmpty());
+        assertNull(lastMarkedKey());
+    }
+
+    private OutgoingMessageQueue newQueue() {
+        OutgoingMessageQueue queue = new OutgoingMessageQueue(mDatabase, mFile, mDirectExecutor, mScheduler);
+        queue.addListener(new Listener() {
+            @Override
+            public void onMessagesSent(List<FriendlyMessage> messages) {
+                mSent.addAll(textsOf(messages));
+            }
+
+            @Override
+            public void onSendFailed(List<FriendlyMessage> messages) {
+                mFailed.addAll(textsOf(messages));
+            }
+
+            @Override
+            public void onMessagesRejected(List<FriendlyMessage> messages) {
+                mRejected.addAll(textsOf(messages));
+            }
+        });
+        return queue;
+    }
+
+    private FriendlyMessage send(String text) {
+        FriendlyMessage message = new FriendlyMessage(text, "Author", null);
+        message.setRoomId(ROOM_ID);
+        mQueue.send(message);
+        return message;
+    }
+
+    /*Make the rules refuse the messages with this text.*/
+    private void rejectText(final String text) {
+        mDatabase.setWriteRule(new FakeDatabase.WriteRule() {
+            @Override
+            public boolean allows(String path, Object value) {
+                return !(value instanceof Map && text.equals(((Map<?, ?>) value).get("text")));
+            }
+        });
+    }
+
+    /*Run the first scheduled task, returns the delay it was scheduled with.*/
+    private long runNext() {
+        assertFalse("nothing scheduled", mScheduled.isEmpty());
+        long delayMs = mDelays.remove(0);
+        mScheduled.remove(0).run();
+        return delayMs;
+    }
+
+    private void runAll() {
+        while (!mScheduled.isEmpty()) {
+            runNext();
+        }
+    }
+
+    private List<String> textsInDatabase() {
+        final List<String> texts = new ArrayList<>();
+        mDatabase.getLast(new Room(ROOM_ID).bucketPath(Room.bucketAt(mDatabase.getServerTimeMs())), null,
+                Integer.MAX_VALUE, new MessageSource.PageCallback() {
+                    @Override
+                    public void onPage(List<MessageSource.Child> children) {
+                        for (MessageSource.Child child : children) {
+                            texts.add((String) ((Map<?, ?>) child.getValue()).get("text"));
+                        }
+                    }
+
+                    @Override
+                    public void onCancelled(Exception error) {
+                        throw new AssertionError(error);
+                    }
+                });
+        return texts;
+    }
+
+    /*The message key of the newest change marker, null if there is none.*/
+    private String lastMarkedKey() {
+        final List<Object> keys = new ArrayList<>();
+        mDatabase.getLast(new Room(ROOM_ID).changesPath(), null, 1, new MessageSource.PageCallback() {
+            @Override
+            public void onPage(List<MessageSource.Child> children) {
+                keys.add(children.isEmpty() ? null : ((Map<?, ?>) children.get(0).getValue()).get("key"));
+            }
+
+            @Override
+            public void onCancelled(Exception error) {
+                throw new AssertionError(error);
+            }
+        });
+        return (String) keys.get(0);
+    }
+
+    private static List<String> textsOf(List<FriendlyMessage> messages) {
+        List<String> texts = new ArrayList<>();
+        for (FriendlyMessage message : messages) {
+            texts.add(message.getText());
+        }
+        return texts;
+    }
+
+    //Only the callbacks a test cares about.
+    private static class Listener implements OutgoingMessageQueue.Listener {
+        @Override
+        public void onMessageQueued(FriendlyMessage message) {
+        }
+
+        @Override
+        public void onMessagesSent(List<FriendlyMessage> messages) {
+        }
+
+        @Override
+        public void onSendFailed(List<FriendlyMessage> messages) {
+        }
+
+        @Override
+        public void onMessagesRejected(List<FriendlyMessage> messages) {
+        }
+    }
+}
@@ -0,0 +1,280 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.security.DigestInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The parts of {@link PhotoUploadQueue} that need neither bitmaps nor Firebase Storage: the sample
+ * size, the content hash and how a job hands its messages to an {@link OutgoingMessageQueue}, here
+ * on a {@link FakeDatabase} with everything run on the test thread.
+ */
+public class PhotoUploadQueueTest {
+
+    private static final String ROOM_ID = "photostest";
+    private static final int MAX_DIMENSION = PhotoUploadQueue.DEFAULT_MAX_DIMENSION;
+    private static final int QUALITY = PhotoUploadQueue.DEFAULT_QUALITY;
+    private static final int THUMBNAIL_DIMENSION = PhotoUploadQueue.DEFAULT_THUMBNAIL_DIMENSION;
+
+    private final Executor mDirectExecutor = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+    private final List<Runnable> mScheduled = new ArrayList<>();
+    private File mFile;
+    private FakeDatabase mDatabase;
+    private OutgoingMessageQueue mQueue;
+
+    @Before
+    public void setUp() {
+        mDatabase = new FakeDatabase(mDirectExecutor);
+        mFile = new File(System.getProperty("java.io.tmpdir"), "photos-test-" + System.nanoTime() + ".queue");
+        mQueue = new OutgoingMessageQueue(mDatabase, mFile, mDirectExecutor, new OutgoingMessageQueue.Scheduler() {
+            @Override
+            public void schedule(Runnable task, long delayMs) {
+                mScheduled.add(task);
+            }
+
+            @Override
+            public void cancel(Runnable task) {
+                mScheduled.remove(task);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void samplesDownToTheLargestPowerOfTwoAboveTheMaxDimension() {
+        assertEquals(1, PhotoUploadQueue.sampleSizeFor(800, 600, 1280));
+        assertEquals(1, PhotoUploadQueue.sampleSizeFor(2559, 1000, 1280));
+        assertEquals(2, PhotoUploadQueue.sampleSizeFor(2560, 1000, 1280));
+        //4000 / 4 would be under 1280.
+        assertEquals(2, PhotoUploadQueue.sampleSizeFor(4000, 3000, 1280));
+        //The long side counts, whichever it is.
+        assertEquals(4, PhotoUploadQueue.sampleSizeFor(3000, 6000, 1280));
+        assertEquals(1, PhotoUploadQueue.sampleSizeFor(1, 1, 1280));
+    }
+
+    @Test
+    public void hashCoversTheBytesAndTheSettings() throws IOException {
+        byte[] photo = bytes(20000, 1);
+        String hash = hash(photo, 0, MAX_DIMENSION, QUALITY, THUMBNAIL_DIMENSION);
+        assertEquals(64, hash.length());
+        assertTrue(hash.matches("[0-9a-f]+"));
+        assertEquals(hash, hash(photo, 0, MAX_DIMENSION, QUALITY, THUMBNAIL_DIMENSION));
+
+        assertNotEquals(hash, hash(bytes(20000, 2), 0, MAX_DIMENSION, QUALITY, THUMBNAIL_DIMENSION));
+        assertNotEquals(hash, hash(photo, 0, MAX_DIMENSION / 2, QUALITY, THUMBNAIL_DIMENSION));
+        assertNotEquals(hash, hash(photo, 0, MAX_DIMENSION, QUALITY - 10, THUMBNAIL_DIMENSION));
+        assertNotEquals(hash, hash(photo, 0, MAX_DIMENSION, QUALITY, THUMBNAIL_DIMENSION / 2));
+    }
+
+    @Test
+    public void hashIncludesWhatTheBoundsDecodeLeftUnread() throws IOException {
+        byte[] photo = bytes(20000, 1);
+        assertEquals(hash(photo, 0, MAX_DIMENSION, QUALITY, THUMBNAIL_DIMENSION),
+                hash(photo, 100, MAX_DIMENSION, QUALITY, THUMBNAIL_DIMENSION));
+        //Photos with the same header are still told apart.
+        byte[] other = photo.clone();
+        other[other.length - 1]++;
+        assertNotEquals(hash(photo, 100, MAX_DIMENSION, QUALITY, THUMBNAIL_DIMENSION),
+                hash(other, 100, MAX_DIMENSION, QUALITY, THUMBNAIL_DIMENSION));
+    }
+
+    @Test
+    public void thumbnailMessageIsSentThenUpdatedWithThePhoto() {
+        PhotoUploadQueue.Job job = newJob();
+        assertTrue(job.isThumbnailNext());
+
+        FriendlyMessage thumbnailMessage = job.onThumbnailUploaded("https://example.com/thumb.jpg");
+        assertNull(thumbnailMessage.getPhotoUrl());
+        mQueue.send(thumbnailMessage);
+        job.messageKey = thumbnailMessage.getKey();
+        runScheduled();
+        assertFalse(job.isThumbnailNext());
+        assertEquals("https://example.com/thumb.jpg", valueOf(ROOM_ID, job.messageKey).get("thumbnailUrl"));
+        assertNull(valueOf(ROOM_ID, job.messageKey).get("photoUrl"));
+
+        FriendlyMessage photoMessage = job.onPhotoUploaded("https://example.com/photo.jpg");
+        assertEquals(job.messageKey, photoMessage.getKey());
+        mQueue.update(photoMessage);
+        runScheduled();
+        Map<String, Object> value = valueOf(ROOM_ID, job.messageKey);
+        assertEquals("https://example.com/photo.jpg", value.get("photoUrl"));
+        assertEquals("https://example.com/thumb.jpg", value.get("thumbnailUrl"));
+        assertEquals("Author", value.get("name"));
+        assertEquals(1, countMessages());
+        //Clients that stored the thumbnail only find the photo through the marker.
+        assertEquals(job.messageKey, lastMarkedKey());
+    }
+
+    @Test
+    public void jobSavedBeforeMessageKeysSendsThePhotoAsANewMessage() {
+        //Saved by a version that uploaded the thumbnail first, but sent nothing until the photo was up.
+        PhotoUploadQueue.Job job = PhotoUploadQueue.Job.fromJson("legacy",
+                "{\"author\":\"Author\",\"contentHash\":\"0123\",\"photoFile\":\"/cache/upload_legacy.jpg\","
+                        + "\"thumbnailFile\":\"/cache/upload_legacy_thumb.jpg\",\"thumbnailUrl\":\"https://example.com/thumb.jpg\"}");
+        assertFalse(job.isThumbnailNext());
+        //From before rooms too.
+        assertEquals(Room.DEFAULT_ROOM_ID, job.roomId);
+
+        FriendlyMessage photoMessage = job.onPhotoUploaded("https://example.com/photo.jpg");
+        assertNull(photoMessage.getKey());
+        mQueue.send(photoMessage);
+        runScheduled();
+        Map<String, Object> value = valueOf(Room.DEFAULT_ROOM_ID, photoMessage.getKey());
+        assertEquals("https://example.com/photo.jpg", value.get("photoUrl"));
+        assertEquals("https://example.com/thumb.jpg", value.get("thumbnailUrl"));
+    }
+
+    @Test
+    public void messageKeySurvivesSavingTheJob() {
+        PhotoUploadQueue.Job job = newJob();
+        job.onThumbnailUploaded("https://example.com/thumb.jpg");
+        job.messageKey = mDatabase.newKey();
+
+        PhotoUploadQueue.Job restored = PhotoUploadQueue.Job.fromJson(job.id, job.toJson());
+        assertEquals(job.messageKey, restored.onPhotoUploaded("https://example.com/photo.jpg").getKey());
+        assertEquals(ROOM_ID, restored.roomId);
+        assertEquals(job.photoFile, restored.photoFile);
+        assertEquals(job.thumbnailFile, restored.thumbnailFile);
+    }
+
+    @Test
+    public void retriesBackOffUntilAnUploadSucceeds() {
+        PhotoUploadQueue.Job job = newJob();
+        assertEquals(2000, job.onUploadFailed());
+        assertEquals(4000, job.onUploadFailed());
+        assertEquals(8000, job.onUploadFailed());
+        for (int i = 0; i < 100; i++) {
+            job.onUploadFailed();
+        }
+        //Capped, without the shift overflowing.
+        assertEquals(5 * 60 * 1000, job.onUploadFailed());
+
+        job.onThumbnailUploaded("https://example.com/thumb.jpg");
+        assertEquals(2000, job.onUploadFailed());
+        job.onPhotoUploaded("https://example.com/photo.jpg");
+        assertEquals(2000, job.onUploadFailed());
+    }
+
+    private static PhotoUploadQueue.Job newJob() {
+        PhotoUploadQueue.Job job = new PhotoUploadQueue.Job("job", "Author", ROOM_ID);
+        job.contentHash = "0123";
+        job.photoFile = new File("/cache/upload_job.jpg");
+        job.thumbnailFile = new File("/cache/upload_job_thumb.jpg");
+        return job;
+    }
+
+    /*Hash the bytes like prepare() does, with skip bytes read by the bounds decode first.*/
+    private static String hash(byte[] bytes, int skip, int maxDimension, int quality, int thumbnailDimension)
+            throws IOException {
+        DigestInputStream in = new DigestInputStream(new ByteArrayInputStream(bytes),
+                PhotoUploadQueue.newContentDigest());
+        in.read(new byte[skip]);
+        return PhotoUploadQueue.contentHash(in, maxDimension, quality, thumbnailDimension);
+    }
+
+    private static byte[] bytes(int length, int seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    //The queue flushes when its scheduled tasks run.
+    private void runScheduled() {
+        while (!mScheduled.isEmpty()) {
+            mScheduled.remove(0).run();
+        }
+        assertEquals(0, mQueue.getQueueDepth());
+    }
+
+    private Map<String, Object> valueOf(String roomId, final String key) {
+        final List<Map<String, Object>> values = new ArrayList<>();
+        mDatabase.getFirst(new Room(roomId).bucketPath(Room.bucketOf(key)), key, 1, new MessageSource.PageCallback() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public void onPage(List<MessageSource.Child> children) {
+                assertEquals(key, children.get(0).getKey());
+                values.add((Map<String, Object>) children.get(0).getValue());
+            }
+
+            @Override
+            public void onCancelled(Exception error) {
+                throw new AssertionError(error);
+            }
+        });
+        return values.get(0);
+    }
+
+    /*The message key of the newest change marker.*/
+    private String lastMarkedKey() {
+        final List<Object> keys = new ArrayList<>();
+        mDatabase.getLast(new Room(ROOM_ID).changesPath(), null, 1, new MessageSource.PageCallback() {
+            @Override
+            public void onPage(List<MessageSource.Child> children) {
+                keys.add(((Map<?, ?>) children.get(0).getValue()).get("key"));
+            }
+
+            @Override
+            public void onCancelled(Exception error) {
+                throw new AssertionError(error);
+            }
+        });
+        return (String) keys.get(0);
+    }
+
+    private int countMessages() {
+        final int[] count = new int[1];
+        mDatabase.getLast(new Room(ROOM_ID).bucketPath(Room.bucketAt(mDatabase.getServerTimeMs())), null,
+                Integer.MAX_VALUE, new MessageSource.PageCallback() {
+                    @Override
+                    public void onPage(List<MessageSource.Child> children) {
+                        count[0] = children.size();
+                    }
+
+                    @Override
+                    public void onCancelled(Exception error) {
+                        throw new AssertionError(error);
+                    }
+                });
+        return count[0];
+    }
+}